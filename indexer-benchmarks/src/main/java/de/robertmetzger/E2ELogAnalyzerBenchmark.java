@@ -0,0 +1,56 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the line matching of the E2ELogAnalyzer on the output of an e2e job. The test results are not written
+ * to the database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class E2ELogAnalyzerBenchmark {
+
+    // a typical e2e job has about 100k lines of output
+    @Param({"100000"})
+    public int lines;
+
+    private byte[] output;
+    private E2ELogAnalyzer analyzer;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        output = SyntheticLogs.e2eOutput(lines, 42L);
+        analyzer = new E2ELogAnalyzer(ParameterTool.fromArgs(new String[] {"--database", "jdbc:sqlite::memory:"})) {
+            @Override
+            protected void emitTestResult(String testName, int seconds, int buildId, String commitSha, String runDate) {
+            }
+        };
+    }
+
+    @Benchmark
+    public int analyzeLog() throws IOException {
+        return analyzer.analyzeLog(new ByteArrayInputStream(output), 4143);
+    }
+}
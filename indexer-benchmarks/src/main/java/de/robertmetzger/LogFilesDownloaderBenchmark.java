@@ -0,0 +1,59 @@
+package de.robertmetzger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the parsing of the Azure REST responses by the LogFilesDownloader: a page of the builds list
+ * ($top=2500) and the timeline of a build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class LogFilesDownloaderBenchmark {
+
+    // the responses as they are received
+    private byte[] builds;
+    private byte[] timeline;
+    private JsonUtils jsonUtils;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        builds = SyntheticLogs.buildsJson(2500, 42L).getBytes(StandardCharsets.UTF_8);
+        timeline = SyntheticLogs.timelineJson(300, 42L).getBytes(StandardCharsets.UTF_8);
+        jsonUtils = new JsonUtils();
+    }
+
+    @Benchmark
+    public List<LogFilesDownloader.Build> parseBuilds() throws IOException {
+        return jsonUtils.parse(builds, LogFilesDownloader::readBuildsPage).masterBuilds;
+    }
+
+    @Benchmark
+    public List<LogFilesDownloader.Download> parseTimeline() throws IOException {
+        return jsonUtils.parse(timeline, parser -> LogFilesDownloader.readE2ELogOutputLinks(parser, 4143));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        jsonUtils.close();
+    }
+}
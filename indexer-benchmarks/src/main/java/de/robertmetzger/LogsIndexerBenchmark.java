@@ -0,0 +1,125 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the stages the LogsIndexer runs for every record of a log file: splitting the file into records,
+ * extracting the timestamps and serializing the records into bulk requests. The bulk requests are not sent.
+ *
+ * <pre>
+ * mvn package -pl indexer-benchmarks -am
+ * java -jar indexer-benchmarks/target/benchmarks.jar LogsIndexerBenchmark -p logSizeMb=64
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class LogsIndexerBenchmark {
+    private static final String INNER_ARCHIVE = "logs-ci-e2e/20200629.4.tgz";
+    private static final String BUILDNAME = "4143-logs-ci-e2e-1593394347.zip-flink-tests/mvn-1.log";
+
+    @Param({"16"})
+    public int logSizeMb;
+
+    private byte[] log;
+    private int[] recordOffsets;
+    private int[] recordLengths;
+    private LogsIndexer noopIndexer;
+    private LogsIndexer serializingIndexer;
+    private BulkRequestBuffer bulk;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        log = SyntheticLogs.flinkLog(logSizeMb * 1024 * 1024, 42L);
+
+        recordOffsets = new int[1024];
+        recordLengths = new int[1024];
+        int records = 0;
+        LogRecordSplitter splitter = new LogRecordSplitter(new ByteArrayInputStream(log));
+        LogRecord record;
+        while((record = splitter.next()) != null) {
+            if(records == recordOffsets.length) {
+                recordOffsets = Arrays.copyOf(recordOffsets, records * 2);
+                recordLengths = Arrays.copyOf(recordLengths, records * 2);
+            }
+            recordOffsets[records] = (int) record.getStreamOffset();
+            recordLengths[records] = record.getLength();
+            records++;
+        }
+        recordOffsets = Arrays.copyOf(recordOffsets, records);
+        recordLengths = Arrays.copyOf(recordLengths, records);
+
+        ParameterTool parameters = ParameterTool.fromArgs(new String[0]);
+        noopIndexer = new LogsIndexer(parameters) {
+            @Override
+            protected void emitLogToElastic(LogRecord line, String buildname, long timestamp, ArchiveProgress archive) {
+            }
+        };
+        bulk = new BulkRequestBuffer(16 * 1024 * 1024);
+        serializingIndexer = new LogsIndexer(parameters) {
+            @Override
+            protected void emitLogToElastic(LogRecord line, String buildname, long timestamp, ArchiveProgress archive) {
+                // serialize like the BulkIndexWriter, but drop the bulk requests instead of sending them
+                bulk.add(line, buildname, timestamp);
+                if(bulk.getActions() >= 5000 || bulk.getSize() >= 10 * 1024 * 1024) {
+                    bulk.reset(null);
+                }
+            }
+        };
+    }
+
+    @Benchmark
+    public void splitRecords(Blackhole blackhole) throws IOException {
+        LogRecordSplitter splitter = new LogRecordSplitter(new ByteArrayInputStream(log));
+        LogRecord record;
+        while((record = splitter.next()) != null) {
+            blackhole.consume(record.getLength());
+        }
+    }
+
+    @Benchmark
+    public void parseTimestamps(Blackhole blackhole) {
+        for(int i = 0; i < recordOffsets.length; i++) {
+            blackhole.consume(LogTimestampParser.parseTimeOfDay(log, recordOffsets[i], recordLengths[i]));
+        }
+    }
+
+    /**
+     * Splitting and timestamp extraction, as done by {@link LogsIndexer#parseLogfile}.
+     */
+    @Benchmark
+    public void parseLogfile() throws IOException {
+        noopIndexer.parseLogfile(new ByteArrayInputStream(log), BUILDNAME, INNER_ARCHIVE);
+    }
+
+    /**
+     * {@link #parseLogfile()} plus the serialization of the records into bulk requests.
+     */
+    @Benchmark
+    public int parseAndSerialize() throws IOException {
+        serializingIndexer.parseLogfile(new ByteArrayInputStream(log), BUILDNAME, INNER_ARCHIVE);
+        return bulk.getSize();
+    }
+}
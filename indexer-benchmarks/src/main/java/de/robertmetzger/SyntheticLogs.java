@@ -0,0 +1,223 @@
+package de.robertmetzger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates synthetic Flink CI data with the structure of the real artifacts: log4j logs of the tests (the input
+ * of the LogsIndexer), e2e job output (the input of the E2ELogAnalyzer) and the JSON responses of the Azure REST API
+ * (parsed by the LogFilesDownloader).
+ *
+ * <p>The output only depends on the seed, so benchmark runs are comparable.
+ */
+public class SyntheticLogs {
+
+    private static final String[] LOGGERS = {
+            "org.apache.flink.runtime.taskexecutor.TaskExecutor",
+            "org.apache.flink.runtime.executiongraph.ExecutionGraph",
+            "org.apache.flink.runtime.checkpoint.CheckpointCoordinator",
+            "org.apache.flink.runtime.jobmaster.JobMaster",
+            "org.apache.flink.streaming.runtime.tasks.StreamTask",
+            "org.apache.flink.runtime.io.network.netty.NettyServer",
+            "org.apache.flink.runtime.state.heap.HeapKeyedStateBackend",
+            "org.apache.kafka.clients.consumer.internals.Fetcher",
+    };
+    private static final String[] THREADS = {
+            "main", "flink-akka.actor.default-dispatcher-4", "Source: Custom Source -> Map (1/4)",
+            "Checkpoint Timer", "Flink Netty Server (0) Thread 0", "jobmanager-future-thread-2",
+    };
+    private static final String[] MESSAGES = {
+            "Source: Custom Source -> Map (1/4) (b3e7c3a8e4f8b5a2d0c1f9e6a7b8c9d0) switched from DEPLOYING to RUNNING.",
+            "Triggering checkpoint 42 (type=CHECKPOINT) @ 1593434307908 for job 6d3b4e2f1a0c9b8d7e6f5a4b3c2d1e0f.",
+            "Completed checkpoint 42 for job 6d3b4e2f1a0c9b8d7e6f5a4b3c2d1e0f (2342 bytes in 23 ms).",
+            "No state backend has been configured, using default (Memory / JobManager) MemoryStateBackend (data in heap memory / checkpoints to JobManager) (checkpoints: 'null', savepoints: 'null', asynchronous: TRUE, maxStateSize: 5242880)",
+            "Received task Map -> Sink: Unnamed (3/4).",
+            "Loading configuration property: taskmanager.memory.process.size, 1728m",
+            "Receive slot request 7c0c1f6e2a9b8d3e4f5a6b7c8d9e0f1a for job 6d3b4e2f1a0c9b8d7e6f5a4b3c2d1e0f from resource manager with leader id 00000000000000000000000000000000.",
+            "Freeing task resources for Map -> Sink: Unnamed (3/4) (a1b2c3d4e5f60718293a4b5c6d7e8f90).",
+            "Verifying über-jar dependencies of flink-dist € — done.",
+    };
+    private static final String[] FRAMES = {
+            "org.apache.flink.runtime.state.heap.HeapKeyedStateBackendBuilder.build(HeapKeyedStateBackendBuilder.java:116) ~[flink-runtime_2.11-1.12-SNAPSHOT.jar:1.12-SNAPSHOT]",
+            "org.apache.flink.streaming.api.operators.BackendRestorerProcedure.attemptCreateAndRestore(BackendRestorerProcedure.java:142) ~[flink-streaming-java_2.11-1.12-SNAPSHOT.jar:1.12-SNAPSHOT]",
+            "org.apache.flink.streaming.runtime.tasks.StreamTask.invoke(StreamTask.java:527) ~[flink-streaming-java_2.11-1.12-SNAPSHOT.jar:1.12-SNAPSHOT]",
+            "org.apache.flink.runtime.taskmanager.Task.doRun(Task.java:721) [flink-runtime_2.11-1.12-SNAPSHOT.jar:1.12-SNAPSHOT]",
+            "org.junit.runners.ParentRunner.runLeaf(ParentRunner.java:325) [junit-4.12.jar:4.12]",
+            "sun.reflect.NativeMethodAccessorImpl.invoke(NativeMethodAccessorImpl.java:62) ~[?:1.8.0_242]",
+            "java.lang.Thread.run(Thread.java:748) [?:1.8.0_242]",
+    };
+    private static final String[] JAVA_TESTS = {
+            "org.apache.flink.tests.util.kafka.SQLClientKafkaITCase",
+            "org.apache.flink.tests.util.elasticsearch.Elasticsearch7SinkE2ECase",
+            "org.apache.flink.metrics.prometheus.tests.PrometheusReporterEndToEndITCase",
+            "org.apache.flink.connector.hbase.HBaseConnectorITCase",
+    };
+    private static final String[] BASH_TESTS = {
+            "Running HA (hashmap, async) end-to-end test",
+            "Resuming Savepoint (file, async, no parallelism change) end-to-end test",
+            "Streaming SQL end-to-end test (Old planner)",
+            "Wordcount on Docker test (custom fs plugin)",
+            "Queryable state (rocksdb) end-to-end test",
+    };
+
+    /**
+     * A log4j log of a Flink test run of about {@code size} bytes. About every 50th record is a warning with a
+     * stack trace, some records continue with lines that do not start with a timestamp.
+     */
+    public static byte[] flinkLog(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder log = new StringBuilder(size + 4096);
+        long timeOfDay = 12 * 3600_000L;
+        while(log.length() < size) {
+            timeOfDay = (timeOfDay + random.nextInt(200)) % (24 * 3600_000L);
+            appendTimeOfDay(log, timeOfDay);
+            boolean warning = random.nextInt(50) == 0;
+            log.append(" [").append(pad(THREADS[random.nextInt(THREADS.length)], 20)).append("] ")
+                    .append(warning ? "WARN " : "INFO ").append(' ')
+                    .append(pad(LOGGERS[random.nextInt(LOGGERS.length)], 60)).append(" [] - ")
+                    .append(MESSAGES[random.nextInt(MESSAGES.length)]).append('\n');
+            if(warning) {
+                log.append("java.io.IOException: Connection reset by peer\n");
+                int frames = 10 + random.nextInt(50);
+                for(int i = 0; i < frames; i++) {
+                    log.append("\tat ").append(FRAMES[random.nextInt(FRAMES.length)]).append('\n');
+                }
+            } else if(random.nextInt(100) == 0) {
+                log.append("Printing to stdout: value=").append(random.nextLong()).append('\n');
+            }
+        }
+        return log.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The output of an e2e CI job with {@code lines} lines, as downloaded from the Azure timeline.
+     */
+    public static byte[] e2eOutput(int lines, long seed) {
+        Random random = new Random(seed);
+        StringBuilder log = new StringBuilder(lines * 100);
+        long nanosOfDay = 2 * 3600_000_000_000L;
+        for(int i = 0; i < lines; i++) {
+            nanosOfDay += random.nextInt(100_000_000);
+            appendIso8601(log, nanosOfDay);
+            if(i == 0) {
+                log.append("##[section]Starting: e2e_ci\n");
+            } else if(i == 20) {
+                log.append("git checkout --progress --force 3f4a5b6c7d8e9f0a1b2c3d4e5f6a7b8c9d0e1f2a\n");
+            } else if(random.nextInt(200) == 0) {
+                log.append("[INFO] Tests run: 1, Failures: 0, Errors: 0, Skipped: 0, Time elapsed: ")
+                        .append(random.nextInt(600)).append('.').append(random.nextInt(1000))
+                        .append(" s - in ").append(JAVA_TESTS[random.nextInt(JAVA_TESTS.length)]).append('\n');
+            } else if(random.nextInt(200) == 0) {
+                log.append("[PASS] '").append(BASH_TESTS[random.nextInt(BASH_TESTS.length)]).append("' passed after ")
+                        .append(random.nextInt(30)).append(" minutes and ").append(random.nextInt(60))
+                        .append(" seconds! Test exited with exit code 0.\n");
+            } else if(random.nextBoolean()) {
+                log.append("[INFO] Downloaded from central: https://repo.maven.apache.org/maven2/org/apache/flink/flink-core/1.12-SNAPSHOT/flink-core-1.12-SNAPSHOT.jar (")
+                        .append(random.nextInt(4000)).append(" kB at ").append(random.nextInt(20000)).append(" kB/s)\n");
+            } else {
+                log.append("Jun 08 02:50:48 ").append(MESSAGES[random.nextInt(MESSAGES.length)]).append('\n');
+            }
+        }
+        return log.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A response of the builds REST API with {@code builds} builds, as in {@code _apis/build/builds?$top=2500}.
+     */
+    public static String buildsJson(int builds, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(builds * 1500);
+        json.append("{\"count\":").append(builds).append(",\"value\":[");
+        for(int i = 0; i < builds; i++) {
+            int id = 10000 - i;
+            String definition = random.nextInt(3) == 0 ? "flink-ci.flink" : random.nextBoolean() ? "flink-ci.flink-master-mirror" : "flink-ci.flink-pr";
+            if(i > 0) {
+                json.append(',');
+            }
+            json.append("{\"_links\":{\"self\":{\"href\":\"https://dev.azure.com/apache-flink/98463496-1af2-4620-8eab-a2ecc1a2e6fe/_apis/build/Builds/").append(id).append("\"},")
+                    .append("\"web\":{\"href\":\"https://dev.azure.com/apache-flink/98463496-1af2-4620-8eab-a2ecc1a2e6fe/_build/results?buildId=").append(id).append("\"}},")
+                    .append("\"properties\":{},\"tags\":[],\"validationResults\":[],\"plans\":[{\"planId\":\"").append(uuid(random)).append("\"}],")
+                    .append("\"id\":").append(id).append(",\"buildNumber\":\"20200629.").append(i % 20).append("\",")
+                    .append("\"status\":\"completed\",\"result\":\"").append(random.nextInt(4) == 0 ? "failed" : "succeeded").append("\",")
+                    .append("\"queueTime\":\"2020-06-29T02:50:48.5046084Z\",\"startTime\":\"2020-06-29T02:51:02.123Z\",\"finishTime\":\"2020-06-29T06:12:45.456Z\",")
+                    .append("\"url\":\"https://dev.azure.com/apache-flink/98463496-1af2-4620-8eab-a2ecc1a2e6fe/_apis/build/Builds/").append(id).append("\",")
+                    .append("\"definition\":{\"drafts\":[],\"id\":").append(definition.length()).append(",\"name\":\"").append(definition).append("\",")
+                    .append("\"url\":\"https://dev.azure.com/apache-flink/98463496-1af2-4620-8eab-a2ecc1a2e6fe/_apis/build/Definitions/1?revision=2\",")
+                    .append("\"path\":\"\\\\\",\"type\":\"build\",\"queueStatus\":\"enabled\",\"revision\":2},")
+                    .append("\"sourceBranch\":\"refs/heads/master\",\"sourceVersion\":\"").append(Long.toHexString(random.nextLong())).append(Long.toHexString(random.nextLong())).append("\",")
+                    .append("\"priority\":\"normal\",\"reason\":\"schedule\",")
+                    .append("\"requestedFor\":{\"displayName\":\"Microsoft.VisualStudio.Services.TFS\",\"id\":\"").append(uuid(random)).append("\",\"uniqueName\":\"00000002-0000-8888-8000-000000000000@2c895908-04e0-4952-89fd-54b0046d6288\"},")
+                    .append("\"lastChangedDate\":\"2020-06-29T06:12:46.04Z\",\"retainedByRelease\":false,\"triggeredByBuild\":null}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * A response of the Timeline REST API of a build with {@code records} records.
+     */
+    public static String timelineJson(int records, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(records * 700);
+        json.append("{\"records\":[");
+        for(int i = 0; i < records; i++) {
+            boolean job = random.nextInt(5) == 0;
+            String name = job ? (random.nextBoolean() ? "e2e_ci" : "test_ci_core") : "Run e2e tests " + i;
+            if(i > 0) {
+                json.append(',');
+            }
+            json.append("{\"previousAttempts\":[],\"id\":\"").append(uuid(random)).append("\",\"parentId\":\"").append(uuid(random)).append("\",")
+                    .append("\"type\":\"").append(job ? "Job" : "Task").append("\",\"name\":\"").append(name).append("\",")
+                    .append("\"startTime\":\"2020-06-29T02:51:02.123Z\",\"finishTime\":\"2020-06-29T04:12:45.456Z\",\"currentOperation\":null,")
+                    .append("\"percentComplete\":null,\"state\":\"completed\",\"result\":\"succeeded\",\"resultCode\":null,\"changeId\":").append(i).append(',')
+                    .append("\"lastModified\":\"0001-01-01T00:00:00\",\"workerName\":\"Azure Pipelines ").append(random.nextInt(20)).append("\",\"order\":").append(i).append(',')
+                    .append("\"details\":null,\"errorCount\":0,\"warningCount\":0,\"url\":null,");
+            if(random.nextInt(10) == 0) {
+                json.append("\"log\":null,");
+            } else {
+                json.append("\"log\":{\"id\":").append(i).append(",\"type\":\"Container\",\"url\":\"https://dev.azure.com/apache-flink/98463496-1af2-4620-8eab-a2ecc1a2e6fe/_apis/build/builds/4143/logs/").append(i).append("\"},");
+            }
+            json.append("\"task\":null,\"attempt\":1,\"identifier\":null}");
+        }
+        return json.append("],\"lastChangedBy\":\"00000002-0000-8888-8000-000000000000\",\"id\":\"").append(uuid(random)).append("\"}").toString();
+    }
+
+    private static void appendTimeOfDay(StringBuilder log, long millisOfDay) {
+        appendTwoDigits(log, (int) (millisOfDay / 3600_000));
+        log.append(':');
+        appendTwoDigits(log, (int) (millisOfDay / 60_000 % 60));
+        log.append(':');
+        appendTwoDigits(log, (int) (millisOfDay / 1000 % 60));
+        log.append(',');
+        int millis = (int) (millisOfDay % 1000);
+        log.append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10));
+    }
+
+    private static void appendIso8601(StringBuilder log, long nanosOfDay) {
+        log.append("2020-06-08T");
+        long millisOfDay = nanosOfDay / 1_000_000;
+        appendTwoDigits(log, (int) (millisOfDay / 3600_000));
+        log.append(':');
+        appendTwoDigits(log, (int) (millisOfDay / 60_000 % 60));
+        log.append(':');
+        appendTwoDigits(log, (int) (millisOfDay / 1000 % 60));
+        String fraction = Long.toString(10_000_000 + nanosOfDay / 100 % 10_000_000);
+        log.append('.').append(fraction, 1, fraction.length()).append("Z ");
+    }
+
+    private static void appendTwoDigits(StringBuilder log, int value) {
+        log.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    private static String pad(String value, int width) {
+        StringBuilder padded = new StringBuilder(width);
+        for(int i = value.length(); i < width; i++) {
+            padded.append(' ');
+        }
+        return padded.append(value).toString();
+    }
+
+    private static String uuid(Random random) {
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+}
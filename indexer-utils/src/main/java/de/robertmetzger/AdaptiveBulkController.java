@@ -0,0 +1,183 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adjusts the size of the bulk requests and the number of bulk requests in flight to what ES can handle (AIMD).
+ *
+ * <p>As long as bulk requests come back within the latency target, the controller increases the concurrency by one
+ * and the bulk size by one step per round of responses. Bulks that are slower than the target shrink the bulk size.
+ * Once ES rejects documents (HTTP 429, es_rejected_execution_exception), concurrency and bulk size are halved.
+ * Decreases only happen for requests sent after the previous decrease, so that the responses of one overloaded
+ * period do not collapse the limits to the minimum.
+ *
+ * <p>Retries are delayed with an exponential backoff with jitter.
+ */
+public class AdaptiveBulkController {
+    private final static Logger LOG = LoggerFactory.getLogger(AdaptiveBulkController.class);
+
+    private final int minBulkActions;
+    private final int maxBulkActions;
+    private final int bulkActionsStep;
+    private final int maxConcurrency;
+    private final long latencyTargetNanos;
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    private volatile int bulkActions;
+    private int concurrencyLimit;
+    private int inFlight = 0;
+    private int successesInRound = 0;
+    private long lastDecreaseNanos = System.nanoTime();
+
+    public AdaptiveBulkController(int initialBulkActions, int minBulkActions, int maxBulkActions,
+                                  int initialConcurrency, int maxConcurrency, long latencyTargetMillis,
+                                  int maxRetries, long initialBackoffMillis, long maxBackoffMillis) {
+        this.minBulkActions = Math.max(1, minBulkActions);
+        this.maxBulkActions = Math.max(this.minBulkActions, maxBulkActions);
+        this.bulkActions = clamp(initialBulkActions, this.minBulkActions, this.maxBulkActions);
+        this.bulkActionsStep = Math.max(1, this.bulkActions / 10);
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        // 0 concurrent requests means that only one request is sent at a time
+        this.concurrencyLimit = clamp(initialConcurrency, 1, this.maxConcurrency);
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public static AdaptiveBulkController fromParameters(ParameterTool parameters) {
+        int bulkActions = parameters.getInt("es.bulkactions", 5000);
+        int concurrent = parameters.getInt("es.concurrent", 5);
+        return new AdaptiveBulkController(
+                bulkActions,
+                parameters.getInt("es.bulkactions.min", Math.max(1, bulkActions / 10)),
+                parameters.getInt("es.bulkactions.max", bulkActions * 4),
+                concurrent,
+                parameters.getInt("es.concurrent.max", Math.max(1, concurrent) * 2),
+                parameters.getLong("es.latency-target-ms", 5000L),
+                parameters.getInt("es.retries", 8),
+                parameters.getLong("es.backoff-ms", 1000L),
+                parameters.getLong("es.backoff-max-ms", 60_000L));
+    }
+
+    /**
+     * Number of documents after which a bulk request is sent.
+     */
+    public int getBulkActions() {
+        return bulkActions;
+    }
+
+    public synchronized int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Blocks until another bulk request may be sent.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while(inFlight >= concurrencyLimit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Called once a bulk request (including its retries) is done.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Waits until no bulk request is in flight anymore.
+     *
+     * @return false, if there were still requests in flight after the timeout
+     */
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(inFlight > 0) {
+            long remaining = deadline - System.nanoTime();
+            if(remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Called for every response of ES.
+     *
+     * @param sentNanos System.nanoTime() when the request was sent
+     * @param rejectedItems number of documents ES rejected because it was overloaded
+     */
+    public synchronized void onResponse(long sentNanos, int rejectedItems) {
+        if(rejectedItems > 0) {
+            onRejected(sentNanos);
+            return;
+        }
+        long latency = System.nanoTime() - sentNanos;
+        if(latency > latencyTargetNanos) {
+            if(sentNanos - lastDecreaseNanos > 0) {
+                bulkActions = Math.max(minBulkActions, bulkActions * 3 / 4);
+                lastDecreaseNanos = System.nanoTime();
+                LOG.debug("Bulk took {} ms. Reducing bulk size to {}", TimeUnit.NANOSECONDS.toMillis(latency), bulkActions);
+            }
+            return;
+        }
+        // additive increase: once per round of responses
+        if(++successesInRound >= concurrencyLimit) {
+            successesInRound = 0;
+            bulkActions = Math.min(maxBulkActions, bulkActions + bulkActionsStep);
+            if(concurrencyLimit < maxConcurrency) {
+                concurrencyLimit++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Called when ES rejected a whole bulk request, or some of its documents, because it is overloaded.
+     */
+    public synchronized void onRejected(long sentNanos) {
+        successesInRound = 0;
+        if(sentNanos - lastDecreaseNanos <= 0) {
+            // the decrease for this overload has already happened
+            return;
+        }
+        concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+        bulkActions = Math.max(minBulkActions, bulkActions / 2);
+        lastDecreaseNanos = System.nanoTime();
+        LOG.info("ES is rejecting requests. Reducing concurrency to {} and bulk size to {}", concurrencyLimit, bulkActions);
+    }
+
+    public boolean shouldRetry(int attempt) {
+        return attempt < maxRetries;
+    }
+
+    /**
+     * Exponential backoff with jitter for the given retry attempt (starting at 0).
+     */
+    public long getBackoffMillis(int attempt) {
+        long backoff = initialBackoffMillis << Math.min(attempt, 20);
+        backoff = Math.min(maxBackoffMillis, backoff);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
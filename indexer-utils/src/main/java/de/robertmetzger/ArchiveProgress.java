@@ -0,0 +1,243 @@
+package de.robertmetzger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the documents of one archive that have been handed to ES, but have not been acknowledged yet.
+ *
+ * <p>Once the archive has been read completely ({@link #seal()}) and all of its documents have been
+ * acknowledged, the future returned by {@link #acknowledged()} completes. It completes with false if
+ * any of the documents failed, so that the caller can leave the archive in place for a retry.
+ *
+ * <p>Every bulk request of the archive carries a {@link Checkpoint} with the positions it covers. Bulk requests
+ * may be acknowledged out of order, the positions are written to the {@link IngestionJournal} in order, once
+ * all previous bulk requests of the archive have been acknowledged as well.
+ *
+ * <p>The documents of an archive are collected into bulk requests by a single thread. Entries of an archive that
+ * are read by separate threads get their own reader ({@link #newReader()}), which shares the acknowledgement
+ * state with the archive.
+ */
+public class ArchiveProgress {
+    private final static Logger LOG = LoggerFactory.getLogger(ArchiveProgress.class);
+
+    private final File archive;
+    private final IngestionJournal journal;
+    // the progress of the whole archive, "this" for the archive itself
+    private final ArchiveProgress root;
+    private final AtomicLong pending = new AtomicLong();
+    private final CompletableFuture<Boolean> acknowledged = new CompletableFuture<>();
+    private final AtomicLong nextCheckpoint = new AtomicLong();
+    private volatile boolean sealed = false;
+    private volatile boolean failed = false;
+
+    // documents that have not been sent yet. Only accessed by the thread reading the entries of this reader
+    private BulkRequestBuffer bulk;
+    private Checkpoint checkpoint;
+
+    // acknowledged checkpoints that wait for their predecessors, guarded by the root
+    private final TreeMap<Long, Checkpoint> acknowledgedCheckpoints = new TreeMap<>();
+    private long nextCheckpointToJournal = 0;
+
+    public ArchiveProgress(File archive) {
+        this(archive, null);
+    }
+
+    public ArchiveProgress(File archive, IngestionJournal journal) {
+        this.archive = archive;
+        this.journal = journal;
+        this.root = this;
+    }
+
+    private ArchiveProgress(ArchiveProgress root) {
+        this.archive = root.archive;
+        this.journal = root.journal;
+        this.root = root;
+    }
+
+    /**
+     * Returns a reader for entries of the archive that are read concurrently to other entries. The documents of
+     * the reader have to be flushed before the archive is sealed.
+     */
+    public ArchiveProgress newReader() {
+        return new ArchiveProgress(root);
+    }
+
+    public File getArchive() {
+        return archive;
+    }
+
+    /**
+     * Returns the offset in the entry where indexing has to continue, see {@link IngestionJournal#getResumeOffset}.
+     */
+    public long getResumeOffset(String entry) {
+        return journal == null ? 0L : journal.getResumeOffset(archive.getName(), entry);
+    }
+
+    /**
+     * Called for every document sent to ES on behalf of this archive.
+     *
+     * @param entry the log file the document belongs to
+     * @param nextOffset offset in the log file after the document
+     */
+    public void added(String entry, long nextOffset) {
+        root.pending.incrementAndGet();
+        currentCheckpoint().position(entry, nextOffset);
+    }
+
+    /**
+     * Called when an entry (a log file or a tgz) has been read completely.
+     */
+    public void entryCompleted(String entry) {
+        currentCheckpoint().position(entry, IngestionJournal.COMPLETE);
+    }
+
+    private Checkpoint currentCheckpoint() {
+        if(checkpoint == null) {
+            checkpoint = new Checkpoint(root.nextCheckpoint.getAndIncrement());
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Hands the positions of the documents added since the last call to a bulk request with {@code documents}
+     * documents. Returns null if there is nothing to hand over.
+     */
+    Checkpoint takeCheckpoint(int documents) {
+        Checkpoint result = checkpoint;
+        checkpoint = null;
+        if(result != null) {
+            result.finish(documents);
+            if(documents == 0) {
+                // nothing to wait for, e.g. only completed entries
+                root.checkpointAcked(result);
+                return null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Called once ES has responded for {@code count} documents of this archive.
+     */
+    public void acked(Checkpoint checkpoint, int count) {
+        if(checkpoint != null && checkpoint.remaining.addAndGet(-count) == 0) {
+            root.checkpointAcked(checkpoint);
+        }
+        if(root.pending.addAndGet(-count) == 0 && root.sealed) {
+            root.acknowledged.complete(!root.failed);
+        }
+    }
+
+    private synchronized void checkpointAcked(Checkpoint checkpoint) {
+        if(journal == null) {
+            return;
+        }
+        acknowledgedCheckpoints.put(checkpoint.sequence, checkpoint);
+        Checkpoint next;
+        while((next = acknowledgedCheckpoints.remove(nextCheckpointToJournal)) != null) {
+            if(next.failed) {
+                // later progress must not be recorded, the failed documents have to be sent again
+                LOG.debug("Checkpoint {} of {} failed. Not recording any further progress", next.sequence, archive);
+                return;
+            }
+            try {
+                for(Map.Entry<String, Long> position: next.positions.entrySet()) {
+                    journal.record(archive.getName(), next.sequence, position.getKey(), position.getValue());
+                }
+            } catch (IOException e) {
+                LOG.warn("Unable to write to the journal", e);
+            }
+            nextCheckpointToJournal++;
+        }
+    }
+
+    public void markFailed() {
+        root.failed = true;
+    }
+
+    /**
+     * Marks the documents of the checkpoint and the archive as failed.
+     */
+    public void markFailed(Checkpoint checkpoint) {
+        if(checkpoint != null) {
+            checkpoint.failed = true;
+        }
+        root.failed = true;
+    }
+
+    /**
+     * Marks the archive as fully read. No documents may be added afterwards, by none of its readers.
+     */
+    public void seal() {
+        root.sealed = true;
+        if(root.pending.get() == 0) {
+            root.acknowledged.complete(!root.failed);
+        }
+    }
+
+    BulkRequestBuffer getBulk() {
+        return bulk;
+    }
+
+    void setBulk(BulkRequestBuffer bulk) {
+        this.bulk = bulk;
+    }
+
+    public CompletableFuture<Boolean> acknowledged() {
+        return root.acknowledged;
+    }
+
+    @Override
+    public String toString() {
+        return "ArchiveProgress{" +
+                "archive=" + archive +
+                ", pending=" + root.pending +
+                ", sealed=" + root.sealed +
+                ", failed=" + root.failed +
+                '}';
+    }
+
+    /**
+     * The positions in the entries of the archive that are reached once the documents of one bulk request
+     * (including retries) have been acknowledged.
+     */
+    public static class Checkpoint {
+        private final long sequence;
+        private final Map<String, Long> positions = new LinkedHashMap<>();
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile boolean failed = false;
+        // the entry of the last document is kept outside of the map, so that we don't update the map per document
+        private String currentEntry;
+        private long currentOffset;
+
+        private Checkpoint(long sequence) {
+            this.sequence = sequence;
+        }
+
+        private void position(String entry, long offset) {
+            if(currentEntry != null && !currentEntry.equals(entry)) {
+                positions.put(currentEntry, currentOffset);
+            }
+            currentEntry = entry;
+            currentOffset = offset;
+        }
+
+        private void finish(int documents) {
+            if(currentEntry != null) {
+                positions.put(currentEntry, currentOffset);
+                currentEntry = null;
+            }
+            remaining.set(documents);
+        }
+    }
+}
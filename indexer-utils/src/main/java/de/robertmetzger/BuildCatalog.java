@@ -0,0 +1,197 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local catalog of the builds and artifacts seen by the LogFilesDownloader, so that a sync only touches new builds
+ * and does not depend on the files in the data dir (they are moved away by the LogsIndexer).
+ *
+ * <pre>
+ * builds     (build_id, kind, finish_time, resolved_at)     builds whose download links of a kind are in artifacts
+ * artifacts  (name, build_id, url, size, state, updated_at) one row per file, state is one of {@link State}
+ * sync_state (key, value)                                   the finish time of the newest synced build, per kind
+ * </pre>
+ * The kind is "files" for the log artifacts, and "output" for the logs of the e2e jobs.
+ *
+ * <p>The catalog is shared by the download threads, all methods are synchronized.
+ */
+public class BuildCatalog implements Closeable {
+    private final static Logger LOG = LoggerFactory.getLogger(BuildCatalog.class);
+
+    public enum State {
+        DISCOVERED, DOWNLOADED, INDEXED
+    }
+
+    private final Connection connection;
+
+    public BuildCatalog(String url) throws SQLException {
+        this.connection = DriverManager.getConnection(url);
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS builds (build_id INTEGER NOT NULL, kind TEXT NOT NULL, "
+                    + "finish_time TEXT, resolved_at DATE, PRIMARY KEY (build_id, kind))");
+            statement.execute("CREATE TABLE IF NOT EXISTS artifacts (name TEXT PRIMARY KEY, build_id INTEGER NOT NULL, "
+                    + "url TEXT NOT NULL, size INTEGER, state TEXT NOT NULL, updated_at DATE)");
+            statement.execute("CREATE INDEX IF NOT EXISTS artifacts_state ON artifacts (state)");
+            statement.execute("CREATE TABLE IF NOT EXISTS sync_state (key TEXT PRIMARY KEY, value TEXT NOT NULL)");
+        }
+    }
+
+    /**
+     * Opens the catalog configured by "catalog", shared by the LogFilesDownloader and the LogsIndexer.
+     */
+    public static BuildCatalog fromParameters(ParameterTool parameters) throws IOException {
+        try {
+            return new BuildCatalog(parameters.get("catalog", "jdbc:sqlite:build-catalog.sqlite"));
+        } catch (SQLException e) {
+            throw new IOException("Unable to open the build catalog", e);
+        }
+    }
+
+    /**
+     * Returns the finish time of the newest build of the last complete sync of that kind, or null.
+     */
+    public synchronized String getSyncMark(String kind) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("SELECT value FROM sync_state WHERE key = ?")) {
+            statement.setString(1, kind + ".min_time");
+            try(ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getString(1) : null;
+            }
+        }
+    }
+
+    public synchronized void setSyncMark(String kind, String finishTime) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("INSERT OR REPLACE INTO sync_state (key, value) VALUES (?, ?)")) {
+            statement.setString(1, kind + ".min_time");
+            statement.setString(2, finishTime);
+            statement.execute();
+        }
+    }
+
+    public synchronized boolean isResolved(int buildId, String kind) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM builds WHERE build_id = ? AND kind = ?")) {
+            statement.setInt(1, buildId);
+            statement.setString(2, kind);
+            try(ResultSet result = statement.executeQuery()) {
+                return result.next();
+            }
+        }
+    }
+
+    /**
+     * Records the download links of a build. Artifacts which are known already keep their state.
+     */
+    public synchronized void addBuild(int buildId, String kind, String finishTime, List<LogFilesDownloader.Download> downloads) throws SQLException {
+        connection.setAutoCommit(false);
+        try(PreparedStatement build = connection.prepareStatement("INSERT OR REPLACE INTO builds (build_id, kind, finish_time, resolved_at) "
+                    + "VALUES (?, ?, ?, datetime('now'))");
+            PreparedStatement artifact = connection.prepareStatement("INSERT OR IGNORE INTO artifacts (name, build_id, url, size, state, updated_at) "
+                    + "VALUES (?, ?, ?, ?, ?, datetime('now'))")) {
+            build.setInt(1, buildId);
+            build.setString(2, kind);
+            build.setString(3, finishTime);
+            build.execute();
+            for(LogFilesDownloader.Download download: downloads) {
+                artifact.setString(1, download.name);
+                artifact.setInt(2, buildId);
+                artifact.setString(3, download.url);
+                if(download.size >= 0) {
+                    artifact.setLong(4, download.size);
+                } else {
+                    artifact.setNull(4, Types.INTEGER);
+                }
+                artifact.setString(5, State.DISCOVERED.name());
+                artifact.addBatch();
+            }
+            artifact.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Returns the artifacts which have been discovered, but not downloaded yet.
+     */
+    public synchronized List<LogFilesDownloader.Download> getPendingDownloads() throws SQLException {
+        List<LogFilesDownloader.Download> downloads = new ArrayList<>();
+        try(PreparedStatement statement = connection.prepareStatement("SELECT name, url, size FROM artifacts WHERE state = ? ORDER BY build_id")) {
+            statement.setString(1, State.DISCOVERED.name());
+            try(ResultSet rows = statement.executeQuery()) {
+                while(rows.next()) {
+                    LogFilesDownloader.Download download = new LogFilesDownloader.Download();
+                    download.name = rows.getString(1);
+                    download.url = rows.getString(2);
+                    download.size = rows.getLong(3);
+                    if(rows.wasNull()) {
+                        download.size = -1;
+                    }
+                    downloads.add(download);
+                }
+            }
+        }
+        return downloads;
+    }
+
+    /**
+     * Returns the state of the artifact, or null if it is not in the catalog.
+     */
+    public synchronized State getState(String name) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("SELECT state FROM artifacts WHERE name = ?")) {
+            statement.setString(1, name);
+            try(ResultSet result = statement.executeQuery()) {
+                return result.next() ? State.valueOf(result.getString(1)) : null;
+            }
+        }
+    }
+
+    public synchronized void markDownloaded(String name, long size) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("UPDATE artifacts SET state = ?, size = ?, "
+                + "updated_at = datetime('now') WHERE name = ? AND state = ?")) {
+            statement.setString(1, State.DOWNLOADED.name());
+            statement.setLong(2, size);
+            statement.setString(3, name);
+            statement.setString(4, State.DISCOVERED.name());
+            statement.execute();
+        }
+    }
+
+    /**
+     * Marks an artifact as indexed. Files which have not been downloaded by the LogFilesDownloader are ignored.
+     */
+    public synchronized void markIndexed(String name) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("UPDATE artifacts SET state = ?, updated_at = datetime('now') WHERE name = ?")) {
+            statement.setString(1, State.INDEXED.name());
+            statement.setString(2, name);
+            if(statement.executeUpdate() == 0) {
+                LOG.debug("{} is not in the build catalog", name);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw new IOException("Unable to close the build catalog", e);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends log records to ES as raw bulk requests.
+ *
+ * <p>Every archive fills its own {@link BulkRequestBuffer}, which is sent once it contains as many documents as
+ * the {@link AdaptiveBulkController} currently allows, {@code bulkSizeBytes} bytes, or when the archive has been read
+ * completely. Workers adding documents block while the controller does not allow more requests in flight.
+ * The buffers are returned to a pool after ES has responded.
+ *
+ * <p>Documents rejected by an overloaded ES are retried individually with an exponential backoff. Documents that
+ * fail permanently mark their archive as failed, so that it stays in the data dir.
+ *
+ * <p>The writer reports the serialization time of every {@value #SERIALIZATION_SAMPLE_INTERVAL}th document, the time
+ * workers wait for a free request slot, and the latency, size and retries of the bulk requests.
+ */
+public class BulkIndexWriter implements Closeable {
+    private final static Logger LOG = LoggerFactory.getLogger(BulkIndexWriter.class);
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson");
+    private static final int SERIALIZATION_SAMPLE_INTERVAL = 32;
+
+    private final RestClient client;
+    private final String endpoint;
+    private final long bulkSizeBytes;
+    private final AdaptiveBulkController controller;
+    private final BlockingQueue<BulkRequestBuffer> bufferPool = new LinkedBlockingQueue<>();
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    private final Timer serializeTimer;
+    private final Timer acquireTimer;
+    private final Timer latencyTimer;
+    private final Histogram bulkBytes;
+    private final Histogram bulkActions;
+    private final Meter retriedDocuments;
+
+    public BulkIndexWriter(RestClient client, String index, long bulkSizeBytes, AdaptiveBulkController controller, MetricRegistry metrics) {
+        this.client = client;
+        this.endpoint = "/" + index + "/_bulk";
+        this.bulkSizeBytes = bulkSizeBytes;
+        this.controller = controller;
+
+        this.serializeTimer = metrics.timer("bulk.serialize", SummingTimer::new);
+        this.acquireTimer = metrics.timer("bulk.acquire", SummingTimer::new);
+        this.latencyTimer = metrics.timer("bulk.latency", SummingTimer::new);
+        this.bulkBytes = metrics.histogram("bulk.bytes", SummingHistogram::new);
+        this.bulkActions = metrics.histogram("bulk.actions", SummingHistogram::new);
+        this.retriedDocuments = metrics.meter("bulk.retried-documents");
+        metrics.register("bulk.in-flight", (Gauge<Integer>) controller::getInFlight);
+        metrics.register("bulk.concurrency-limit", (Gauge<Integer>) controller::getConcurrencyLimit);
+        metrics.register("bulk.actions-limit", (Gauge<Integer>) controller::getBulkActions);
+        metrics.register("bulk.buffer-pool", (Gauge<Integer>) bufferPool::size);
+    }
+
+    /**
+     * Adds a log record of the given archive. The record is copied, so it may be reused afterwards.
+     */
+    public void add(ArchiveProgress archive, LogRecord line, String buildname, long timestamp) throws IOException {
+        BulkRequestBuffer bulk = archive.getBulk();
+        if(bulk == null) {
+            bulk = newBuffer(archive);
+            archive.setBulk(bulk);
+        }
+        archive.added(buildname, line.getNextStreamOffset());
+        if(bulk.getActions() % SERIALIZATION_SAMPLE_INTERVAL == 0) {
+            long start = System.nanoTime();
+            bulk.add(line, buildname, timestamp);
+            serializeTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        } else {
+            bulk.add(line, buildname, timestamp);
+        }
+        if(bulk.getActions() >= controller.getBulkActions() || bulk.getSize() >= bulkSizeBytes) {
+            flush(archive);
+        }
+    }
+
+    /**
+     * Sends the pending documents of the archive.
+     */
+    public void flush(ArchiveProgress archive) throws IOException {
+        BulkRequestBuffer bulk = archive.getBulk();
+        ArchiveProgress.Checkpoint checkpoint = archive.takeCheckpoint(bulk == null ? 0 : bulk.getActions());
+        if(bulk == null) {
+            return;
+        }
+        archive.setBulk(null);
+        bulk.setCheckpoint(checkpoint);
+        try(Timer.Context ignored = acquireTimer.time()) {
+            controller.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a bulk request to finish");
+        }
+        send(bulk, 0);
+    }
+
+    /**
+     * Sends the bulk. The caller holds a slot of the controller, which is released once the bulk
+     * (including all retries) is done.
+     */
+    private void send(BulkRequestBuffer bulk, int attempt) {
+        Request request = new Request("POST", endpoint);
+        request.setEntity(new NByteArrayEntity(bulk.getData(), 0, bulk.getSize(), NDJSON));
+        bulkBytes.update(bulk.getSize());
+        bulkActions.update(bulk.getActions());
+        long sentNanos = System.nanoTime();
+        client.performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                latencyTimer.update(System.nanoTime() - sentNanos, TimeUnit.NANOSECONDS);
+                IntArrayList rejected = new IntArrayList();
+                try {
+                    readResponse(bulk, response, rejected);
+                } catch (Throwable t) {
+                    LOG.warn("Unable to read bulk response", t);
+                    fail(bulk);
+                    return;
+                }
+                controller.onResponse(sentNanos, rejected.size());
+                bulk.getArchive().acked(bulk.getCheckpoint(), bulk.getActions() - rejected.size());
+                if(rejected.size() == 0) {
+                    done(bulk);
+                } else {
+                    retry(bulk, rejected, attempt);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                if(!isRetryable(exception)) {
+                    LOG.warn("Bulk request for " + bulk.getArchive().getArchive() + " failed", exception);
+                    fail(bulk);
+                    return;
+                }
+                if(exception instanceof ResponseException) {
+                    controller.onRejected(sentNanos);
+                }
+                if(!controller.shouldRetry(attempt)) {
+                    LOG.warn("Bulk request for " + bulk.getArchive().getArchive() + " failed after " + attempt + " retries", exception);
+                    fail(bulk);
+                    return;
+                }
+                retriedDocuments.mark(bulk.getActions());
+                long backoff = controller.getBackoffMillis(attempt);
+                LOG.debug("Bulk request failed. Retrying in {} ms", backoff, exception);
+                retryExecutor.schedule(() -> send(bulk, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Sends the rejected documents of the bulk again, after a backoff.
+     */
+    private void retry(BulkRequestBuffer bulk, IntArrayList rejected, int attempt) {
+        ArchiveProgress archive = bulk.getArchive();
+        if(!controller.shouldRetry(attempt)) {
+            LOG.warn("{} documents of {} were still rejected after {} retries", rejected.size(), archive.getArchive(), attempt);
+            archive.markFailed(bulk.getCheckpoint());
+            archive.acked(bulk.getCheckpoint(), rejected.size());
+            done(bulk);
+            return;
+        }
+        retriedDocuments.mark(rejected.size());
+        BulkRequestBuffer retryBulk = newBuffer(archive);
+        retryBulk.setCheckpoint(bulk.getCheckpoint());
+        for(int i = 0; i < rejected.size(); i++) {
+            retryBulk.addAction(bulk, rejected.get(i));
+        }
+        recycle(bulk);
+        long backoff = controller.getBackoffMillis(attempt);
+        LOG.debug("Retrying {} rejected documents in {} ms", rejected.size(), backoff);
+        retryExecutor.schedule(() -> send(retryBulk, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isRetryable(Exception exception) {
+        if(exception instanceof ResponseException) {
+            int status = ((ResponseException) exception).getResponse().getStatusLine().getStatusCode();
+            return status == 429 || status == 502 || status == 503 || status == 504;
+        }
+        // connection problems
+        return exception instanceof IOException;
+    }
+
+    /**
+     * Reads the bulk response, collecting the documents that have been rejected because ES is overloaded.
+     * Documents that failed for other reasons mark the archive as failed.
+     */
+    private void readResponse(BulkRequestBuffer bulk, Response response, IntArrayList rejected) throws IOException {
+        try(InputStream body = response.getEntity().getContent();
+            JsonParser parser = jsonFactory.createParser(body)) {
+            // {"took":30,"errors":false,"items":[{"index":{"_index":"logs", ... "status":201}}, ...]}
+            parser.nextToken();
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if("errors".equals(field) && !parser.getBooleanValue()) {
+                    // the common case: we don't need to look at the items
+                    break;
+                } else if("items".equals(field)) {
+                    readFailedItems(parser, bulk, rejected);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void readFailedItems(JsonParser parser, BulkRequestBuffer bulk, IntArrayList rejected) throws IOException {
+        ArchiveProgress archive = bulk.getArchive();
+        int item = 0;
+        while(parser.nextToken() == JsonToken.START_OBJECT) {
+            // {"index":{ ... }}
+            parser.nextToken();
+            parser.nextToken();
+            int status = 0;
+            String error = null;
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if("status".equals(field)) {
+                    status = parser.getIntValue();
+                } else if("error".equals(field)) {
+                    error = readErrorReason(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            parser.nextToken();
+            if(status == 429) {
+                // es_rejected_execution_exception
+                rejected.add(item);
+            } else if(status >= 300) {
+                LOG.warn("Failed to index document of {}: status {} {}", archive.getArchive(), status, error);
+                archive.markFailed(bulk.getCheckpoint());
+            }
+            item++;
+        }
+    }
+
+    /**
+     * Reads the reason out of an item error like {"type":"mapper_parsing_exception","reason":"failed to parse"}.
+     */
+    private static String readErrorReason(JsonParser parser) throws IOException {
+        if(parser.currentToken() != JsonToken.START_OBJECT) {
+            return parser.getText();
+        }
+        String reason = null;
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if("reason".equals(field)) {
+                reason = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return reason;
+    }
+
+    private BulkRequestBuffer newBuffer(ArchiveProgress archive) {
+        BulkRequestBuffer bulk = bufferPool.poll();
+        if(bulk == null) {
+            bulk = new BulkRequestBuffer((int) Math.min(bulkSizeBytes + bulkSizeBytes / 4, Integer.MAX_VALUE - 8));
+        }
+        bulk.reset(archive);
+        return bulk;
+    }
+
+    private void recycle(BulkRequestBuffer bulk) {
+        bulk.reset(null);
+        bufferPool.offer(bulk);
+    }
+
+    private void fail(BulkRequestBuffer bulk) {
+        bulk.getArchive().markFailed(bulk.getCheckpoint());
+        bulk.getArchive().acked(bulk.getCheckpoint(), bulk.getActions());
+        done(bulk);
+    }
+
+    private void done(BulkRequestBuffer bulk) {
+        recycle(bulk);
+        controller.release();
+    }
+
+    /**
+     * Waits until all bulk requests have finished and closes the client.
+     *
+     * @return false, if some requests were still in flight after the timeout.
+     */
+    public boolean awaitClose(long timeout, TimeUnit unit) throws InterruptedException, IOException {
+        boolean finished = controller.awaitIdle(timeout, unit);
+        close();
+        return finished;
+    }
+
+    @Override
+    public void close() throws IOException {
+        retryExecutor.shutdownNow();
+        client.close();
+    }
+
+    /**
+     * Minimal growable list of ints, for the positions of rejected documents.
+     */
+    private static class IntArrayList {
+        private int[] values = new int[16];
+        private int size = 0;
+
+        void add(int value) {
+            if(size == values.length) {
+                int[] larger = new int[2 * values.length];
+                System.arraycopy(values, 0, larger, 0, size);
+                values = larger;
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package de.robertmetzger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * NDJSON body of one bulk request, serialized directly from the {@link LogRecord} bytes.
+ *
+ * <p>Every log record becomes an index action followed by the document:
+ * <pre>
+ * {"index":{"_id":"3f2a9c0d51b7e6a4-1f40"}}
+ * {"buildname":"...","line":"...","log-ts":"2020-06-29T12:52:27.904Z"}
+ * </pre>
+ * The document id is derived from the buildname and the position of the record in the log file, so that
+ * sending a record again overwrites the existing document instead of creating a duplicate.
+ * The parts depending on the buildname are encoded once per buildname. Buffers are pooled by the {@link BulkIndexWriter},
+ * so after warm-up no memory is allocated for the serialization.
+ *
+ * <p>A buffer only contains documents of a single archive.
+ */
+public class BulkRequestBuffer {
+    private static final byte[] LINE_SUFFIX = "\",\"log-ts\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DOCUMENT_SUFFIX = "\"}\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+    // "2020-06-29T12:52:27.904Z"
+    private static final int TIMESTAMP_LENGTH = 24;
+
+    private byte[] data;
+    private int size = 0;
+    private int actions = 0;
+    // start of every action in the buffer, so that single documents can be retried
+    private int[] actionOffsets = new int[1024];
+    private ArchiveProgress archive;
+    private ArchiveProgress.Checkpoint checkpoint;
+
+    private String buildname;
+    // {"index":{"_id":"<hash of buildname>-
+    private byte[] actionPrefix;
+    // "}}\n{"buildname":"...","line":"
+    private byte[] documentPrefix;
+
+    public BulkRequestBuffer(int initialCapacity) {
+        this.data = new byte[initialCapacity];
+    }
+
+    void reset(ArchiveProgress archive) {
+        this.archive = archive;
+        this.checkpoint = null;
+        this.size = 0;
+        this.actions = 0;
+    }
+
+    public void add(LogRecord line, String buildname, long timestamp) {
+        if(!buildname.equals(this.buildname)) {
+            this.buildname = buildname;
+            this.actionPrefix = encodeActionPrefix(buildname);
+            this.documentPrefix = encodeDocumentPrefix(buildname);
+        }
+        // worst case: every byte of the line needs a \\u00XX escape
+        ensureCapacity(actionPrefix.length + 16 + documentPrefix.length + 6 * line.getLength()
+                + LINE_SUFFIX.length + TIMESTAMP_LENGTH + DOCUMENT_SUFFIX.length);
+        startAction();
+
+        System.arraycopy(actionPrefix, 0, data, size, actionPrefix.length);
+        size += actionPrefix.length;
+        writeHex(line.getStreamOffset());
+        System.arraycopy(documentPrefix, 0, data, size, documentPrefix.length);
+        size += documentPrefix.length;
+        writeEscapedUtf8(line.getData(), line.getOffset(), line.getLength());
+        System.arraycopy(LINE_SUFFIX, 0, data, size, LINE_SUFFIX.length);
+        size += LINE_SUFFIX.length;
+        writeTimestamp(timestamp);
+        System.arraycopy(DOCUMENT_SUFFIX, 0, data, size, DOCUMENT_SUFFIX.length);
+        size += DOCUMENT_SUFFIX.length;
+    }
+
+    /**
+     * Copies a single action (including its document) from another buffer, for retrying it.
+     */
+    public void addAction(BulkRequestBuffer source, int action) {
+        int start = source.actionOffsets[action];
+        int end = action + 1 < source.actions ? source.actionOffsets[action + 1] : source.size;
+        ensureCapacity(end - start);
+        startAction();
+        System.arraycopy(source.data, start, data, size, end - start);
+        size += end - start;
+    }
+
+    private void startAction() {
+        if(actions == actionOffsets.length) {
+            int[] larger = new int[2 * actionOffsets.length];
+            System.arraycopy(actionOffsets, 0, larger, 0, actions);
+            actionOffsets = larger;
+        }
+        actionOffsets[actions++] = size;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getActions() {
+        return actions;
+    }
+
+    public ArchiveProgress getArchive() {
+        return archive;
+    }
+
+    public ArchiveProgress.Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    void setCheckpoint(ArchiveProgress.Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    private static byte[] encodeActionPrefix(String buildname) {
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-1").digest(buildname.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+        StringBuilder prefix = new StringBuilder("{\"index\":{\"_id\":\"");
+        for(int i = 0; i < 8; i++) {
+            prefix.append((char) HEX[(hash[i] >> 4) & 0xF]).append((char) HEX[hash[i] & 0xF]);
+        }
+        prefix.append('-');
+        return prefix.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] encodeDocumentPrefix(String buildname) {
+        byte[] name = buildname.getBytes(StandardCharsets.UTF_8);
+        BulkRequestBuffer prefix = new BulkRequestBuffer(64 + 6 * name.length);
+        prefix.append("\"}}\n{\"buildname\":\"");
+        prefix.writeEscapedUtf8(name, 0, name.length);
+        prefix.append("\",\"line\":\"");
+        byte[] result = new byte[prefix.size];
+        System.arraycopy(prefix.data, 0, result, 0, prefix.size);
+        return result;
+    }
+
+    private void append(String ascii) {
+        for(int i = 0; i < ascii.length(); i++) {
+            data[size++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    private void ensureCapacity(int additionalBytes) {
+        if(size + additionalBytes > data.length) {
+            byte[] larger = new byte[Math.max(2 * data.length, size + additionalBytes)];
+            System.arraycopy(data, 0, larger, 0, size);
+            data = larger;
+        }
+    }
+
+    /**
+     * Writes the bytes as the content of a JSON string. Invalid UTF-8 sequences are replaced by U+FFFD,
+     * so that a single broken byte in a log file does not fail the document.
+     */
+    private void writeEscapedUtf8(byte[] src, int offset, int length) {
+        int end = offset + length;
+        int i = offset;
+        while(i < end) {
+            int b = src[i] & 0xFF;
+            if(b >= 0x20 && b != '"' && b != '\\' && b < 0x80) {
+                data[size++] = (byte) b;
+                i++;
+            } else if(b >= 0x80) {
+                int sequenceLength = utf8SequenceLength(src, i, end);
+                if(sequenceLength == 0) {
+                    data[size++] = (byte) 0xEF;
+                    data[size++] = (byte) 0xBF;
+                    data[size++] = (byte) 0xBD;
+                    i++;
+                } else {
+                    System.arraycopy(src, i, data, size, sequenceLength);
+                    size += sequenceLength;
+                    i += sequenceLength;
+                }
+            } else {
+                data[size++] = '\\';
+                switch(b) {
+                    case '"': data[size++] = '"'; break;
+                    case '\\': data[size++] = '\\'; break;
+                    case '\n': data[size++] = 'n'; break;
+                    case '\r': data[size++] = 'r'; break;
+                    case '\t': data[size++] = 't'; break;
+                    default:
+                        data[size++] = 'u';
+                        data[size++] = '0';
+                        data[size++] = '0';
+                        data[size++] = HEX[b >> 4];
+                        data[size++] = HEX[b & 0xF];
+                }
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the valid UTF-8 sequence starting at {@code i}, or 0 if it is invalid.
+     */
+    private static int utf8SequenceLength(byte[] src, int i, int end) {
+        int b = src[i] & 0xFF;
+        int length;
+        int min = 0x80;
+        int max = 0xBF;
+        if(b >= 0xC2 && b <= 0xDF) {
+            length = 2;
+        } else if(b >= 0xE0 && b <= 0xEF) {
+            length = 3;
+            if(b == 0xE0) {
+                min = 0xA0; // overlong
+            } else if(b == 0xED) {
+                max = 0x9F; // surrogates
+            }
+        } else if(b >= 0xF0 && b <= 0xF4) {
+            length = 4;
+            if(b == 0xF0) {
+                min = 0x90; // overlong
+            } else if(b == 0xF4) {
+                max = 0x8F; // > U+10FFFF
+            }
+        } else {
+            return 0;
+        }
+        if(i + length > end) {
+            return 0;
+        }
+        int second = src[i + 1] & 0xFF;
+        if(second < min || second > max) {
+            return 0;
+        }
+        for(int j = i + 2; j < i + length; j++) {
+            int continuation = src[j] & 0xFF;
+            if(continuation < 0x80 || continuation > 0xBF) {
+                return 0;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes the timestamp in the same format as XContentBuilder.timeField(): "2020-06-29T12:52:27.904Z"
+     */
+    private void writeTimestamp(long epochMillis) {
+        long days = Math.floorDiv(epochMillis, 86_400_000L);
+        int millisOfDay = (int) Math.floorMod(epochMillis, 86_400_000L);
+
+        // civil date from days since the epoch, see LogTimestampParser for the inverse
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        writeDigits(year, 4);
+        data[size++] = '-';
+        writeDigits(month, 2);
+        data[size++] = '-';
+        writeDigits(day, 2);
+        data[size++] = 'T';
+        writeDigits(millisOfDay / 3_600_000, 2);
+        data[size++] = ':';
+        writeDigits(millisOfDay / 60_000 % 60, 2);
+        data[size++] = ':';
+        writeDigits(millisOfDay / 1000 % 60, 2);
+        data[size++] = '.';
+        writeDigits(millisOfDay % 1000, 3);
+        data[size++] = 'Z';
+    }
+
+    private void writeHex(long value) {
+        int digits = Math.max(1, (64 - Long.numberOfLeadingZeros(value) + 3) / 4);
+        for(int i = digits - 1; i >= 0; i--) {
+            data[size + i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+        size += digits;
+    }
+
+    private void writeDigits(int value, int digits) {
+        for(int i = digits - 1; i >= 0; i--) {
+            data[size + i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+}
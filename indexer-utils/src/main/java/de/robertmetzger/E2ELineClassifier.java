@@ -0,0 +1,198 @@
+package de.robertmetzger;
+
+/**
+ * Finds the lines of e2e job output that the E2ELogAnalyzer is interested in, and extracts their fields.
+ *
+ * <p>Most lines are neither test results nor the checkout of the commit, so every line is first checked for a
+ * literal ("Time elapsed: ", " seconds!", "git checkout --progress --force ") and only the candidates are parsed.
+ * The parsers accept the same lines as the regular expressions the analyzer used before:
+ * <pre>
+ * java:   .*Time elapsed: ([0-9]+)(.[0-9]+)? s - in (.*)
+ * bash:   .*] '([^']+)'.* ([0-9]+) minutes.* ([0-9]+) seconds!.*        (on the trimmed line)
+ * commit: .*git checkout --progress --force ([a-z0-9-_.]+).*
+ * </pre>
+ *
+ * <p>The lines are expected without line terminators, as returned by {@link java.io.BufferedReader#readLine()}.
+ * The classifier keeps the fields of the last classified line, so it is not thread safe.
+ */
+public class E2ELineClassifier {
+    private static final String JAVA_MARKER = "Time elapsed: ";
+    private static final String JAVA_NAME_MARKER = " s - in ";
+    private static final String BASH_MINUTES = " minutes";
+    private static final String BASH_SECONDS = " seconds!";
+    private static final String COMMIT_MARKER = "git checkout --progress --force";
+
+    public enum LineType {
+        OTHER,
+        COMMIT,
+        JAVA_TEST,
+        BASH_TEST
+    }
+
+    private String testName;
+    private int seconds;
+    private String commit;
+
+    /**
+     * Classifies the line. For test results, {@link #getTestName()} and {@link #getSeconds()} return the fields of
+     * the line afterwards, for the commit line {@link #getCommit()}.
+     */
+    public LineType classify(String line) {
+        if(line.contains(COMMIT_MARKER)) {
+            if(!parseCommit(line)) {
+                throw new RuntimeException("Error. Unexpected format in line " + line);
+            }
+            return LineType.COMMIT;
+        }
+        if(line.contains(JAVA_MARKER) && parseJavaTest(line)) {
+            return LineType.JAVA_TEST;
+        }
+        if(line.contains(BASH_SECONDS) && parseBashTest(line.trim())) {
+            return LineType.BASH_TEST;
+        }
+        return LineType.OTHER;
+    }
+
+    public String getTestName() {
+        return testName;
+    }
+
+    public int getSeconds() {
+        return seconds;
+    }
+
+    public String getCommit() {
+        return commit;
+    }
+
+    private boolean parseCommit(String line) {
+        // like the greedy regex, use the last occurrence that is followed by a commit
+        for(int marker = line.lastIndexOf(COMMIT_MARKER); marker >= 0; marker = line.lastIndexOf(COMMIT_MARKER, marker - 1)) {
+            int start = marker + COMMIT_MARKER.length() + 1;
+            if(start > line.length() || line.charAt(start - 1) != ' ') {
+                continue;
+            }
+            int end = start;
+            while(end < line.length() && isCommitChar(line.charAt(end))) {
+                end++;
+            }
+            if(end > start) {
+                commit = line.substring(start, end);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean parseJavaTest(String line) {
+        for(int marker = line.lastIndexOf(JAVA_MARKER); marker >= 0; marker = line.lastIndexOf(JAVA_MARKER, marker - 1)) {
+            int pos = marker + JAVA_MARKER.length();
+            int digitsEnd = skipDigits(line, pos);
+            if(digitsEnd == pos) {
+                continue;
+            }
+            int nameMarker = digitsEnd;
+            if(!line.startsWith(JAVA_NAME_MARKER, nameMarker)) {
+                // optional fraction: any character followed by digits
+                int fractionEnd = skipDigits(line, digitsEnd + 1);
+                if(digitsEnd + 1 >= line.length() || fractionEnd == digitsEnd + 1 || !line.startsWith(JAVA_NAME_MARKER, fractionEnd)) {
+                    continue;
+                }
+                nameMarker = fractionEnd;
+            }
+            Integer parsed = parseInt(line, pos, digitsEnd);
+            if(parsed == null) {
+                continue;
+            }
+            seconds = parsed;
+            testName = line.substring(nameMarker + JAVA_NAME_MARKER.length());
+            return true;
+        }
+        return false;
+    }
+
+    private boolean parseBashTest(String line) {
+        // " <digits> seconds!", the last occurrence
+        int secondsStart = -1;
+        int secondsEnd = -1;
+        for(int marker = line.lastIndexOf(BASH_SECONDS); marker >= 0 && secondsStart < 0; marker = line.lastIndexOf(BASH_SECONDS, marker - 1)) {
+            int digitsStart = skipDigitsBackwards(line, marker);
+            if(digitsStart < marker && digitsStart > 0 && line.charAt(digitsStart - 1) == ' ') {
+                secondsStart = digitsStart;
+                secondsEnd = marker;
+            }
+        }
+        if(secondsStart < 0) {
+            return false;
+        }
+        // " <digits> minutes", the last occurrence before the seconds
+        int minutesStart = -1;
+        int minutesEnd = -1;
+        int searchEnd = secondsStart - 1 - BASH_MINUTES.length();
+        for(int marker = line.lastIndexOf(BASH_MINUTES, searchEnd); marker >= 0 && minutesStart < 0; marker = line.lastIndexOf(BASH_MINUTES, marker - 1)) {
+            int digitsStart = skipDigitsBackwards(line, marker);
+            if(digitsStart < marker && digitsStart > 0 && line.charAt(digitsStart - 1) == ' ') {
+                minutesStart = digitsStart;
+                minutesEnd = marker;
+            }
+        }
+        if(minutesStart < 0) {
+            return false;
+        }
+        // "] '<name>'", the last occurrence before the minutes
+        String name = null;
+        for(int marker = line.lastIndexOf("] '", minutesStart - 1); marker >= 0 && name == null; marker = line.lastIndexOf("] '", marker - 1)) {
+            int nameStart = marker + 3;
+            int nameEnd = line.indexOf('\'', nameStart);
+            if(nameEnd > nameStart && nameEnd < minutesStart - 1) {
+                name = line.substring(nameStart, nameEnd);
+            }
+        }
+        if(name == null) {
+            return false;
+        }
+        Integer minutes = parseInt(line, minutesStart, minutesEnd);
+        Integer secondsValue = parseInt(line, secondsStart, secondsEnd);
+        if(minutes == null || secondsValue == null) {
+            return false;
+        }
+        testName = name;
+        seconds = minutes * 60 + secondsValue;
+        return true;
+    }
+
+    private static int skipDigits(String line, int pos) {
+        while(pos < line.length() && isDigit(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int skipDigitsBackwards(String line, int end) {
+        int pos = end;
+        while(pos > 0 && isDigit(line.charAt(pos - 1))) {
+            pos--;
+        }
+        return pos;
+    }
+
+    private static Integer parseInt(String line, int start, int end) {
+        long value = 0;
+        for(int i = start; i < end; i++) {
+            value = value * 10 + (line.charAt(i) - '0');
+            if(value > Integer.MAX_VALUE) {
+                // Integer.parseInt would have failed as well
+                return null;
+            }
+        }
+        return (int) value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isCommitChar(char c) {
+        return (c >= 'a' && c <= 'z') || isDigit(c) || c == '-' || c == '_' || c == '.';
+    }
+}
@@ -1,47 +1,44 @@
 package de.robertmetzger;
 
+import org.apache.flink.annotation.VisibleForTesting;
 import org.apache.flink.api.java.utils.ParameterTool;
 
+import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.MetricRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Date;
-import java.util.Calendar;
-import java.util.Scanner;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
- * Table:
- *
- * create table test_results
- * (
- *     id       INTEGER
- *         constraint table_name_pk
- *             primary key autoincrement,
- *     name     TEXT    not null,
- *     duration INTEGER not null,
- *     "commit" TEXT,
- *     added_at DATE
- * );
+ * Extracts the durations of the e2e tests from the output of the e2e jobs, into the database described in
+ * test_results.sql.
  */
 public class E2ELogAnalyzer {
     private final static Logger LOG = LoggerFactory.getLogger(LogsIndexer.class);
     private final ParameterTool parameters;
 
-    private final Pattern BASH_PATTERN = Pattern.compile(".*] '([^']+)'.* ([0-9]+) minutes.* ([0-9]+) seconds!.*");
-    private final Pattern JAVA_PATTERN = Pattern.compile(".*Time elapsed: ([0-9]+)(.[0-9]+)? s - in (.*)");
-    private final Pattern COMMIT_PATTERN = Pattern.compile(".*git checkout --progress --force ([a-z0-9-_.]+).*");
     private final Connection connection;
+    // the writer of the results, while run() analyzes the files
+    private TestResultWriter resultWriter;
 
     public E2ELogAnalyzer(ParameterTool parameters) throws SQLException {
         this.parameters = parameters;
@@ -50,35 +47,74 @@ public class E2ELogAnalyzer {
         connection.setAutoCommit(true);
     }
 
-    private void run() throws FileNotFoundException, SQLException {
+    private ParallelFileProcessor.Summary run() throws IOException, SQLException, InterruptedException {
         LOG.info("Starting E2E Log Analyzer");
 
         File dataDir = new File(parameters.get("data-dir", "."));
         File[] logFiles = dataDir.listFiles((dir, name) -> name.startsWith("e2e-dataoutput"));
         if(logFiles == null) {
-            LOG.warn("No logfiles found in " + dataDir.getAbsolutePath());
-            return;
+            throw new IOException("Unable to list the logfiles in " + dataDir.getAbsolutePath());
         }
-
-        // process them one after another
-        ExecutorService executorService = Executors.newFixedThreadPool(parameters.getInt("concurrent-processing",8));
+        List<File> files = new ArrayList<>();
         for(File logFile: logFiles) {
             if (logFile.isDirectory()) {
                 LOG.debug("Skipping directory " + logFile);
                 continue;
             }
-            executorService.submit(() -> {
-                try {
-                    analyzeFile(logFile);
-                } catch (Throwable throwables) {
-                    LOG.warn("Error while processing file", throwables);
-                }
-            });
+            files.add(logFile);
+        }
+
+        TestResultsSchema.migrate(connection);
+        if(parameters.getBoolean("incremental", true)) {
+            Map<String, Long> processed = getProcessedFiles();
+            int before = files.size();
+            // the downloader only adds files. A file with a different size is analyzed again
+            files.removeIf(file -> processed.containsKey(file.getName()) && processed.get(file.getName()) == file.length());
+            LOG.info("Skipping {} already analyzed files", before - files.size());
+        }
+
+        MetricRegistry metrics = new MetricRegistry();
+        ParallelFileProcessor processor = new ParallelFileProcessor("analyzer", parameters.getInt("concurrent-processing",8), metrics);
+        ParallelFileProcessor.Summary summary;
+        try(ConsoleReporter reporter = ConsoleReporter.forRegistry(metrics)
+                .convertRatesTo(TimeUnit.SECONDS)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build()) {
+            reporter.start(30, TimeUnit.SECONDS);
+            // the workers hand their results to a single writer, which inserts them in batches. It is closed on
+            // failures as well, its thread would keep the JVM alive
+            try(TestResultWriter writer = new TestResultWriter(connection, parameters.getInt("db.batch-size", 1000),
+                    parameters.getInt("db.queue-size", 10000))) {
+                resultWriter = writer;
+                summary = processor.process(files, this::analyzeFile);
+            } finally {
+                resultWriter = null;
+            }
+            reporter.report();
+        }
+        // incremental, only the new results are read
+        TestTrendDetector.fromParameters(connection, parameters).update();
+        for(Map.Entry<File, Throwable> failure: summary.getFailed().entrySet()) {
+            LOG.warn("Failed to analyze {}: {}", failure.getKey(), failure.getValue().toString());
+        }
+        LOG.info("Done analyzing {} files", files.size());
+        return summary;
+    }
+
+    private Map<String, Long> getProcessedFiles() throws SQLException {
+        Map<String, Long> processed = new HashMap<>();
+        try(Statement statement = connection.createStatement();
+            ResultSet files = statement.executeQuery("SELECT file_name, size FROM processed_files")) {
+            while(files.next()) {
+                processed.put(files.getString(1), files.getLong(2));
+            }
         }
+        return processed;
     }
 
-    private void analyzeFile(File logFile) throws SQLException, FileNotFoundException {
+    private void analyzeFile(File logFile) throws IOException {
         LOG.info("Analyzing file {}", logFile);
+        long size = logFile.length();
 
         Pattern buildIdPattern = Pattern.compile(".*output-([0-9]+)-.*");
         Matcher buildIdMatcher = buildIdPattern.matcher(logFile.getName());
@@ -87,64 +123,65 @@ public class E2ELogAnalyzer {
         }
         int buildId = Integer.parseInt(buildIdMatcher.group(1));
 
-        Scanner scanner = new Scanner(new FileInputStream(logFile));
-        scanner.useDelimiter("\n");
+        int results;
+        try(InputStream log = new FileInputStream(logFile)) {
+            results = analyzeLog(log, buildId);
+        }
+        resultWriter.fileAnalyzed(new TestResultWriter.ProcessedFile(logFile.getName(), buildId, size, results));
+        LOG.info("Done with file. Processed {} results", results);
+    }
+
+    /**
+     * Extracts the test results of the log output of a build. The results are written by the writer of {@link #run()},
+     * or handed to an overridden {@link #emitTestResult}.
+     *
+     * @return the number of test results found
+     */
+    @VisibleForTesting
+    public int analyzeLog(InputStream log, int buildId) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(log, StandardCharsets.UTF_8), 64 * 1024);
+        E2ELineClassifier classifier = new E2ELineClassifier();
         String commitSha = "";
         String runDate = null;
         int results = 0;
-        while(scanner.hasNext()) {
-            String line = scanner.next();
+        String line;
+        while((line = reader.readLine()) != null) {
             if(runDate == null) {
                 // the first line looks like this
                 // 2020-06-08T02:50:48.5046084Z ##[section]Starting: e2e_ci
-                runDate = line.split("T")[0];
-            }
-            // find commit
-            if(line.contains("git checkout --progress --force")) {
-                Matcher commitMatch = COMMIT_PATTERN.matcher(line);
-                if(!commitMatch.find()) {
-                    throw new RuntimeException("Error. Unexpected format in line " + line);
-                }
-                commitSha = commitMatch.group(1);
+                runDate = LogTimestampParser.parseIso8601Date(line);
             }
-
-            Matcher javaMatcher = JAVA_PATTERN.matcher(line);
-            if(javaMatcher.find()) {
-                // we found a java e2e test
-                emitTestResult(javaMatcher.group(3), Integer.parseInt(javaMatcher.group(1)), buildId, commitSha, runDate);
-                results++;
-            }
-
-            Matcher bashMatcher = BASH_PATTERN.matcher(line.trim());
-            if(bashMatcher.find()) {
-                // found a bash e2e test
-                int seconds = Integer.parseInt(bashMatcher.group(2)) * 60 + Integer.parseInt(bashMatcher.group(3));
-                emitTestResult(bashMatcher.group(1), seconds, buildId, commitSha, runDate);
-                results++;
+            switch(classifier.classify(line)) {
+                case COMMIT:
+                    commitSha = classifier.getCommit();
+                    break;
+                case JAVA_TEST:
+                case BASH_TEST:
+                    emitTestResult(classifier.getTestName(), classifier.getSeconds(), buildId, commitSha, runDate);
+                    results++;
+                    break;
+                default:
+                    break;
             }
         }
-        LOG.info("Done with file. Processed {} results", results);
+        return results;
     }
 
-    private synchronized void emitTestResult(String testName, int seconds, int buildId, String commitSha, String runDate) throws SQLException {
-        final String INSERT_PULL_REQUEST = "INSERT INTO \"test_results\" "
-                + "(\"name\", \"build_id\", \"duration\", \"commit\", \"run_date\", \"added_at\") "
-                + "VALUES (?, ?, ?, ?, ?, ?)";
-        try(PreparedStatement statement = connection.prepareStatement(INSERT_PULL_REQUEST)) {
-            statement.setString(1, testName);
-            statement.setInt(2, buildId);
-            statement.setInt(3, seconds);
-            statement.setString(4, commitSha);
-            statement.setString(5, runDate);
-            statement.setDate(6, new Date(Calendar.getInstance().getTime().getTime()));
-            statement.execute(); // insert :)
+    protected void emitTestResult(String testName, int seconds, int buildId, String commitSha, String runDate) throws IOException {
+        if(resultWriter == null) {
+            throw new IllegalStateException("Test results can only be written while the analyzer runs. Override emitTestResult to collect them");
         }
+        resultWriter.add(new TestResultWriter.TestResult(testName, seconds, buildId, commitSha, runDate));
     }
 
-    public static void main(String[] args) throws FileNotFoundException, SQLException {
+    public static void main(String[] args) throws IOException, SQLException, InterruptedException {
         ParameterTool parameters = ParameterTool.fromArgs(args);
         E2ELogAnalyzer analyzer = new E2ELogAnalyzer(parameters);
 
-        analyzer.run();
+        ParallelFileProcessor.Summary summary = analyzer.run();
+        if(!summary.isSuccessful()) {
+            // let the caller know that the database is incomplete, before generating a report from it
+            System.exit(1);
+        }
     }
 }
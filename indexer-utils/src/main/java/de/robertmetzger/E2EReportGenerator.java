@@ -6,33 +6,63 @@ import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
 import freemarker.template.TemplateExceptionHandler;
-import org.apache.commons.collections.map.HashedMap;
 import org.apache.commons.dbutils.QueryRunner;
-import org.apache.commons.dbutils.handlers.ColumnListHandler;
-import org.apache.commons.dbutils.handlers.MapListHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.io.FileOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import java.util.NoSuchElementException;
+import java.util.Properties;
 
+/**
+ * Renders the e2e test report from the test results database.
+ *
+ * <p>The tests are streamed from the database into the template: the index page lists a cursor over test_summary,
+ * so only one test is in memory at a time. With {@code --report.sharded true}, every test gets its own page in
+ * {@code tests/}, and the index page links to them. A test page is only rendered again if the test's rows changed
+ * since the last report, which is tracked in {@code tests/manifest.properties}.
+ */
 public class E2EReportGenerator {
+    private final static Logger LOG = LoggerFactory.getLogger(E2EReportGenerator.class);
+    private static final String SUMMARY_QUERY = "SELECT name, CAST(total_duration AS REAL) / runs AS avg, "
+            + "min_duration AS min, max_duration AS max, runs, changes FROM test_summary ORDER BY name";
+    private static final String SLOW_TESTS_QUERY = "SELECT r.name, r.build_id, r.duration " +
+            "FROM test_summary s JOIN test_results r ON r.id IN " +
+            "(SELECT id FROM test_results WHERE name = s.name ORDER BY duration DESC, build_id DESC LIMIT 10) " +
+            "ORDER BY r.name, r.duration DESC, r.build_id DESC";
+    private static final String LAST_EXECUTIONS_QUERY = "SELECT r.name, r.build_id, r.duration, r.run_date " +
+            "FROM test_summary s JOIN test_results r ON r.id IN " +
+            "(SELECT id FROM test_results WHERE name = s.name ORDER BY run_date DESC, build_id DESC LIMIT 10) " +
+            "ORDER BY r.name, r.run_date DESC, r.build_id DESC";
+    private static final String TEMPLATE_KEY = "template";
+
     private final ParameterTool parameters;
     private final QueryRunner run = new QueryRunner();
-    private final MapListHandler mapListHandler = new MapListHandler();
     private final Connection connection;
 
-    private final String BUILD_DETAIL_PAGE = "https://dev.azure.com/apache-flink/apache-flink/_build/results?buildId=";
+    private static final String BUILD_DETAIL_PAGE = "https://dev.azure.com/apache-flink/apache-flink/_build/results?buildId=";
 
     public E2EReportGenerator(ParameterTool parameters) throws SQLException {
         this.parameters = parameters;
@@ -40,6 +70,7 @@ public class E2EReportGenerator {
         // Set up db connection
         this.connection = DriverManager.getConnection(parameters.get("database", "jdbc:sqlite:/Users/robert/Projects/flink-workdir/flink-logs-indexer/e2e-data.sqlite"));
         connection.createStatement().execute("PRAGMA cache_size = 10000");
+        TestResultsSchema.migrate(connection);
     }
 
     public void run() throws IOException, SQLException, TemplateException {
@@ -53,77 +84,274 @@ public class E2EReportGenerator {
         cfg.setLogTemplateExceptions(false);
         cfg.setWrapUncheckedExceptions(true);
 
+        Path reportDir = Paths.get(parameters.get("report.dir", "www"));
+        boolean sharded = parameters.getBoolean("report.sharded", false);
+        if(sharded) {
+            renderTestPages(cfg.getTemplate("report-test.ftlh"), reportDir.resolve("tests"));
+        }
+
         /* Create a data-model */
         Map<String, Object> root = new HashMap<>();
-        root.put("aggTable", computeAggregation());
-        root.put("perTestStats", computePerTestStats());
+        root.put("sharded", sharded);
         root.put("generatedTime", new Date().toString());
-
-        System.out.println("root = " + root);
-
-        Template temp = cfg.getTemplate("report.ftlh");
-
-        /* Merge data-model with template */
-        Writer out = new OutputStreamWriter(new FileOutputStream("www/index.html"));
-        temp.process(root, out);
-        out.close();
+        root.put("buildDetailPage", BUILD_DETAIL_PAGE);
+        // usually up to date already, if the E2ELogAnalyzer ran with the same database
+        TestTrendDetector trends = TestTrendDetector.fromParameters(connection, parameters);
+        trends.update();
+        root.put("regressions", trends.getRegressions());
+        try(TestReportCursor tests = new TestReportCursor(!sharded)) {
+            root.put("aggTable", tests);
+            render(cfg.getTemplate("report.ftlh"), root, reportDir.resolve("index.html"));
+            LOG.info("Rendered the report of {} tests into {}", tests.getPosition(), reportDir.resolve("index.html"));
+        }
     }
 
+    /**
+     * Renders the pages of the tests whose rows changed since the last report, and removes the pages of tests
+     * which are gone.
+     */
+    private void renderTestPages(Template template, Path pagesDir) throws IOException, SQLException, TemplateException {
+        Files.createDirectories(pagesDir);
+        Path manifestFile = pagesDir.resolve("manifest.properties");
+        Properties previous = new Properties();
+        if(Files.exists(manifestFile)) {
+            try(InputStream in = Files.newInputStream(manifestFile)) {
+                previous.load(in);
+            }
+        }
+        // a changed template invalidates all pages
+        String templateVersion = Integer.toHexString(template.toString().hashCode());
+        boolean templateChanged = !templateVersion.equals(previous.getProperty(TEMPLATE_KEY));
 
-    private List<String> getTestNames() throws SQLException {
-        ColumnListHandler<String> columnListHandler = new ColumnListHandler<>();
-        return run.query(connection, "SELECT DISTINCT name FROM test_results", columnListHandler);
+        Properties manifest = new Properties();
+        manifest.setProperty(TEMPLATE_KEY, templateVersion);
+        int rendered = 0;
+        try(TestReportCursor tests = new TestReportCursor(false)) {
+            while(tests.hasNext()) {
+                TestReport test = tests.next();
+                String version = test.getVersion();
+                manifest.setProperty(test.page, version);
+                if(!templateChanged && version.equals(previous.getProperty(test.page)) && Files.exists(pagesDir.getParent().resolve(test.page))) {
+                    continue;
+                }
+                test.stats = computeTestStats(test.name);
+                Map<String, Object> root = new HashMap<>();
+                root.put("test", test);
+                root.put("generatedTime", new Date().toString());
+                render(template, root, pagesDir.getParent().resolve(test.page));
+                rendered++;
+            }
+            LOG.info("Rendered {} of {} test pages, the others did not change", rendered, tests.getPosition());
+        }
+        for(String page: previous.stringPropertyNames()) {
+            if(!page.equals(TEMPLATE_KEY) && !manifest.containsKey(page)) {
+                Files.deleteIfExists(pagesDir.getParent().resolve(page));
+            }
+        }
+        try(OutputStream out = Files.newOutputStream(manifestFile)) {
+            manifest.store(out, "Versions of the rendered test pages");
+        }
     }
-    private Map<String, TestStats> computePerTestStats() throws SQLException {
-        List<String> testNames = getTestNames();
-        Map<String, TestStats> result = new HashMap<>();
-        for(String test: testNames) {
-            result.put(test, computeTestStats(test));
+
+    /**
+     * Renders into a temporary file first, so that the web server never serves a partial page.
+     */
+    private static void render(Template template, Object root, Path target) throws IOException, TemplateException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try(Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temp), StandardCharsets.UTF_8), 64 * 1024)) {
+            template.process(root, out);
         }
-        return result;
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     private TestStats computeTestStats(String test) throws SQLException {
         TestStats result = new TestStats();
-        // slow tests
-        List<Map<String, Object>> slowTestsQueryResult = run.query(connection, "SELECT build_id, duration " +
-                "FROM test_results " +
-                "WHERE name = ? " +
-                "ORDER BY duration DESC " +
-                "LIMIT 10", mapListHandler, test);
-
-        result.slowTests = slowTestsQueryResult.stream().map(res -> {
-            ReportUrl url = new ReportUrl();
-            Object id = res.get("build_id");
-            url.url = BUILD_DETAIL_PAGE + id;
-            url.name = "Build #" + id + " (" + res.get("duration") + " seconds)";
-            return url;
-        }).collect(Collectors.toList());
-
-        // last runs
-        List<Map<String, Object>> lastRunsQueryResult = run.query(connection, "SELECT build_id, duration, run_date " +
-                "FROM test_results " +
-                "WHERE name = ? " +
-                "ORDER BY run_date DESC " +
-                "LIMIT 10", mapListHandler, test);
-
-        result.lastExecutions = lastRunsQueryResult.stream().map(res -> {
-            ReportUrl url = new ReportUrl();
-            Object id = res.get("build_id");
-            url.url = BUILD_DETAIL_PAGE + id;
-            url.name = "Build #" + id + " (Executed on " + res.get("run_date") + ") (" + res.get("duration") + "s)";
-            return url;
-        }).collect(Collectors.toList());
-
+        // slow tests, from the (name, duration) index
+        run.query(connection, "SELECT name, build_id, duration FROM test_results WHERE name = ? " +
+                "ORDER BY duration DESC, build_id DESC LIMIT 10", rows -> {
+            while(rows.next()) {
+                result.slowTests.add(slowTest(rows));
+            }
+            return result;
+        }, test);
+        // last runs, from the (name, run_date) index
+        run.query(connection, "SELECT name, build_id, duration, run_date FROM test_results WHERE name = ? " +
+                "ORDER BY run_date DESC, build_id DESC LIMIT 10", rows -> {
+            while(rows.next()) {
+                result.lastExecutions.add(lastExecution(rows));
+            }
+            return result;
+        }, test);
         return result;
     }
 
-    private List<Map<String, Object>> computeAggregation() throws SQLException {
-        return run.query(connection,
-                    "SELECT name, AVG(duration) AS avg, MIN(duration) AS min, MAX(duration) AS max, COUNT(*) AS runs " +
-                        "FROM test_results " +
-                        "GROUP BY name " +
-                        "ORDER BY name", mapListHandler);
+    /**
+     * Maps a (name, build_id, duration) row.
+     */
+    private static ReportUrl slowTest(ResultSet row) throws SQLException {
+        int id = row.getInt(2);
+        return new ReportUrl(BUILD_DETAIL_PAGE + id, "Build #" + id + " (" + row.getInt(3) + " seconds)");
+    }
+
+    /**
+     * Maps a (name, build_id, duration, run_date) row.
+     */
+    private static ReportUrl lastExecution(ResultSet row) throws SQLException {
+        int id = row.getInt(2);
+        return new ReportUrl(BUILD_DETAIL_PAGE + id, "Build #" + id + " (Executed on " + row.getString(4) + ") (" + row.getInt(3) + "s)");
+    }
+
+    /**
+     * Iterates over test_summary. With stats, the slowest and the last 10 runs of each test are merged in from two
+     * more cursors, which are ordered by name as well. Each of the three queries runs once for all tests.
+     */
+    private class TestReportCursor implements Iterator<TestReport>, Closeable {
+        private final List<PreparedStatement> statements = new ArrayList<>();
+        private final ResultSet summary;
+        private final ResultSet slowTests;
+        private final ResultSet lastExecutions;
+        private boolean slowTestsValid;
+        private boolean lastExecutionsValid;
+        private Boolean hasNext;
+        private int position = 0;
+
+        TestReportCursor(boolean withStats) throws SQLException {
+            try {
+                summary = open(SUMMARY_QUERY);
+                slowTests = withStats ? open(SLOW_TESTS_QUERY) : null;
+                lastExecutions = withStats ? open(LAST_EXECUTIONS_QUERY) : null;
+                slowTestsValid = slowTests != null && slowTests.next();
+                lastExecutionsValid = lastExecutions != null && lastExecutions.next();
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private ResultSet open(String query) throws SQLException {
+            PreparedStatement statement = connection.prepareStatement(query);
+            statements.add(statement);
+            return statement.executeQuery();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(hasNext == null) {
+                try {
+                    hasNext = summary.next();
+                } catch (SQLException e) {
+                    throw new RuntimeException("Unable to read the test summary", e);
+                }
+            }
+            return hasNext;
+        }
+
+        @Override
+        public TestReport next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            hasNext = null;
+            position++;
+            try {
+                TestReport test = new TestReport(summary.getString(1), summary.getDouble(2), summary.getInt(3),
+                        summary.getInt(4), summary.getInt(5), summary.getLong(6));
+                while(slowTestsValid && slowTests.getString(1).equals(test.name)) {
+                    test.stats.slowTests.add(slowTest(slowTests));
+                    slowTestsValid = slowTests.next();
+                }
+                while(lastExecutionsValid && lastExecutions.getString(1).equals(test.name)) {
+                    test.stats.lastExecutions.add(lastExecution(lastExecutions));
+                    lastExecutionsValid = lastExecutions.next();
+                }
+                return test;
+            } catch (SQLException e) {
+                throw new RuntimeException("Unable to read the test results", e);
+            }
+        }
+
+        int getPosition() {
+            return position;
+        }
+
+        @Override
+        public void close() {
+            for(PreparedStatement statement: statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    LOG.debug("Unable to close statement", e);
+                }
+            }
+        }
+    }
+
+    public static class TestReport {
+        public final String name;
+        public final double avg;
+        public final int min;
+        public final int max;
+        public final int runs;
+        // the page of the test, relative to the index page
+        public final String page;
+        private final long changes;
+        public TestStats stats = new TestStats();
+
+        public TestReport(String name, double avg, int min, int max, int runs, long changes) {
+            this.name = name;
+            this.avg = avg;
+            this.min = min;
+            this.max = max;
+            this.runs = runs;
+            this.changes = changes;
+            this.page = "tests/" + getPageName(name);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getAvg() {
+            return avg;
+        }
+
+        public int getMin() {
+            return min;
+        }
+
+        public int getMax() {
+            return max;
+        }
+
+        public int getRuns() {
+            return runs;
+        }
+
+        public String getPage() {
+            return page;
+        }
+
+        public List<ReportUrl> getSlowTests() {
+            return stats.slowTests;
+        }
+
+        public List<ReportUrl> getLastExecutions() {
+            return stats.lastExecutions;
+        }
+
+        /**
+         * Changes whenever a row of the test is inserted, updated or deleted.
+         */
+        String getVersion() {
+            return changes + "-" + runs;
+        }
+
+        /**
+         * The test names contain spaces and brackets. The hash keeps names unique which only differ in those.
+         */
+        static String getPageName(String name) {
+            return name.replaceAll("[^a-zA-Z0-9._-]", "_") + "-" + Integer.toHexString(name.hashCode()) + ".html";
+        }
     }
 
     public static class TestStats {
@@ -143,6 +371,11 @@ public class E2EReportGenerator {
         public String name;
         public String url;
 
+        public ReportUrl(String url, String name) {
+            this.url = url;
+            this.name = name;
+        }
+
         public String getName() {
             return name;
         }
@@ -0,0 +1,395 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Downloads files over HTTP into a ".part" file next to the target, which is renamed to the target once the
+ * download is complete. A failed download never leaves a truncated target behind.
+ *
+ * <p>Interrupted downloads are resumed with a Range request from the end of the ".part" file, also by the next
+ * run. Failures are retried with exponential backoff. Files of at least two chunks (by the size hint, and then by
+ * the size sent by the server) are downloaded with up to {@code chunks} parallel Range requests, into the same ".part" file. A chunk resumes from its own
+ * position when it is retried. The chunks are written out of order, so the ".part" file of a chunked download has
+ * holes until it is complete; it is marked by a ".chunks" file, and a chunked download which was not finished starts
+ * over in the next run.
+ *
+ * <p>The retries may be bounded by a {@link RateLimitInterceptor.RetryBudget} shared with other requests. The
+ * client should then not retry by itself, see {@link RateLimitInterceptor#withoutRetries()}.
+ *
+ * <p>The size of the downloaded file is verified before it is renamed, against the size sent by the server (the
+ * Content-Length, or the total of a Content-Range). A ".part" file of the wrong size is deleted, as resuming it would
+ * fail the same way.
+ */
+public class FileDownloader implements Closeable {
+    private final static Logger LOG = LoggerFactory.getLogger(FileDownloader.class);
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+|\\*)");
+    // the Content-Range of a 416 response
+    private static final Pattern UNSATISFIED_RANGE = Pattern.compile("bytes \\*/(\\d+)");
+    public static final String PART_SUFFIX = ".part";
+    public static final String CHUNKS_SUFFIX = ".chunks";
+
+    private final OkHttpClient client;
+    private final int retries;
+    private final long backoffMs;
+    private final int chunks;
+    private final long chunkSize;
+    // null if only the retries per file limit the retries
+    private final RateLimitInterceptor.RetryBudget retryBudget;
+    private final ExecutorService chunkExecutor;
+
+    /**
+     * @param retries the number of retries of a file (or chunk) after a failure
+     * @param backoffMs the wait time before the first retry, doubled for every further retry
+     * @param chunks the maximum number of parallel Range requests per file
+     * @param chunkSize the minimum size of a chunk
+     */
+    public FileDownloader(OkHttpClient client, int retries, long backoffMs, int chunks, long chunkSize) {
+        this(client, null, retries, backoffMs, chunks, chunkSize);
+    }
+
+    /**
+     * @param retryBudget every retry is taken from this budget. If it is used up, the download fails
+     */
+    public FileDownloader(OkHttpClient client, RateLimitInterceptor.RetryBudget retryBudget, int retries, long backoffMs, int chunks, long chunkSize) {
+        this.client = client;
+        this.retryBudget = retryBudget;
+        this.retries = retries;
+        this.backoffMs = backoffMs;
+        this.chunks = chunks;
+        this.chunkSize = chunkSize;
+        this.chunkExecutor = Executors.newCachedThreadPool();
+    }
+
+    public static FileDownloader fromParameters(OkHttpClient client, RateLimitInterceptor.RetryBudget retryBudget, ParameterTool parameters) {
+        return new FileDownloader(client, retryBudget, parameters.getInt("download.retries", 5), parameters.getLong("download.backoff-ms", 1000),
+                parameters.getInt("download.chunks", 4), parameters.getLong("download.chunk-mb", 64) * 1024 * 1024);
+    }
+
+    /**
+     * Downloads the url into the target file.
+     *
+     * @param sizeHint the approximate size of the file, or -1 if unknown. It only decides whether a chunked download
+     *                 is tried, the downloaded file is verified against the size sent by the server
+     * @return the size of the downloaded file
+     */
+    public long download(String url, File target, long sizeHint) throws IOException, InterruptedException {
+        File part = new File(target.getPath() + PART_SUFFIX);
+        File chunksMarker = new File(target.getPath() + CHUNKS_SUFFIX);
+        File parent = target.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        if(chunksMarker.exists()) {
+            // the length of the part file of a chunked download says nothing about the bytes in it
+            LOG.info("Discarding the unfinished chunked download of {}", target);
+            Files.deleteIfExists(part.toPath());
+        }
+        // the size sent by the server, or -1 if unknown
+        AtomicLong totalSize = new AtomicLong(-1);
+        if(sizeHint >= 2 * chunkSize && chunks > 1 && !part.exists()) {
+            try {
+                totalSize.set(getSize(url));
+            } catch (RangesNotSupportedException e) {
+                LOG.info("Server does not support ranges for {}. Downloading it in one request", url);
+            }
+        }
+        long size;
+        if(totalSize.get() >= 2 * chunkSize) {
+            Files.write(chunksMarker.toPath(), (url + "\n").getBytes(StandardCharsets.UTF_8));
+            try {
+                size = downloadChunked(url, part, totalSize.get());
+            } catch (RangesNotSupportedException e) {
+                LOG.info("Server does not support ranges for {}. Downloading it in one request", url);
+                Files.deleteIfExists(part.toPath());
+                Files.delete(chunksMarker.toPath());
+                size = downloadSequential(url, part, totalSize);
+            }
+        } else {
+            size = downloadSequential(url, part, totalSize);
+        }
+        if(totalSize.get() >= 0 && size != totalSize.get()) {
+            Files.deleteIfExists(part.toPath());
+            Files.deleteIfExists(chunksMarker.toPath());
+            throw new IOException("Downloaded " + size + " bytes of " + url + ", but the server sent a size of " + totalSize.get());
+        }
+        if(sizeHint >= 0 && size != sizeHint) {
+            LOG.debug("{} has {} bytes, the size hint was {}", url, size, sizeHint);
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(chunksMarker.toPath());
+        return size;
+    }
+
+    /**
+     * Requests the url, for reading the body as a stream. Failures before the response arrived are retried, but a
+     * stream which breaks off can not be resumed.
+     */
+    public Response open(String url) throws IOException, InterruptedException {
+        for(int attempt = 0; ; attempt++) {
+            try {
+                Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+                if(response.isSuccessful()) {
+                    return response;
+                }
+                response.close();
+                throw httpError(url, response);
+            } catch (IOException e) {
+                backoff(url, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Requests the first byte of the file, and returns the size of the file from the Content-Range, or -1.
+     */
+    private long getSize(String url) throws IOException, InterruptedException {
+        Request request = new Request.Builder().url(url).header("Range", "bytes=0-0").build();
+        for(int attempt = 0; ; attempt++) {
+            try(Response response = client.newCall(request).execute()) {
+                if(response.code() == 200) {
+                    throw new RangesNotSupportedException(url);
+                }
+                if(response.code() != 206) {
+                    throw httpError(url, response);
+                }
+                Matcher range = CONTENT_RANGE.matcher(String.valueOf(response.header("Content-Range")));
+                if(!range.matches()) {
+                    throw new IOException("Unexpected Content-Range " + response.header("Content-Range") + " for " + url);
+                }
+                return range.group(3).equals("*") ? -1 : Long.parseLong(range.group(3));
+            } catch (IOException e) {
+                backoff(url, attempt, e);
+            }
+        }
+    }
+
+    /**
+     * Downloads the file in one request, appending to the part file if it exists.
+     *
+     * @param totalSize receives the size sent by the server, if there is one
+     */
+    private long downloadSequential(String url, File part, AtomicLong totalSize) throws IOException, InterruptedException {
+        for(int attempt = 0; ; attempt++) {
+            long offset = part.exists() ? part.length() : 0;
+            try {
+                fetch(url, part, offset, -1, totalSize);
+                return part.length();
+            } catch (IOException e) {
+                backoff(url, attempt, e);
+            }
+        }
+    }
+
+    private long downloadChunked(String url, File part, long size) throws IOException, InterruptedException {
+        try(FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+        }
+        int count = (int) Math.min(chunks, size / chunkSize);
+        long length = (size + count - 1) / count;
+        LOG.debug("Downloading {} in {} chunks of {} bytes", url, count, length);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for(long start = 0; start < size; start += length) {
+            long from = start;
+            long to = Math.min(size, start + length);
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    downloadChunk(url, part, from, to);
+                } catch (IOException | InterruptedException e) {
+                    throw new CompletionException(e);
+                }
+            }, chunkExecutor));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // the chunks are not tracked across runs
+            Files.deleteIfExists(part.toPath());
+            Throwable cause = e.getCause();
+            if(cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        return part.length();
+    }
+
+    /**
+     * Downloads the bytes [from, to) into the part file.
+     */
+    private void downloadChunk(String url, File part, long from, long to) throws IOException, InterruptedException {
+        long position = from;
+        for(int attempt = 0; position < to; attempt++) {
+            try {
+                long fetched = fetch(url, part, position, to, null);
+                if(fetched == 0) {
+                    throw new IOException("Empty response for bytes " + position + "-" + (to - 1) + " of " + url);
+                }
+                position += fetched;
+            } catch (IOException e) {
+                backoff(url, attempt, e);
+                // the bytes received before the failure have been written
+                position += getWritten(e);
+            }
+        }
+    }
+
+    /**
+     * Requests the bytes [from, to) (or until the end, if to is -1) and writes them into the part file at from.
+     *
+     * @param totalSize receives the size of the file sent by the server, if there is one. May be null
+     * @return the number of written bytes
+     */
+    private long fetch(String url, File part, long from, long to, AtomicLong totalSize) throws IOException {
+        Request.Builder request = new Request.Builder().url(url);
+        if(from > 0 || to >= 0) {
+            request.header("Range", "bytes=" + from + "-" + (to >= 0 ? String.valueOf(to - 1) : ""));
+        }
+        try(Response response = client.newCall(request.build()).execute()) {
+            long position = from;
+            if(response.code() == 416 && to < 0) {
+                // the part file is complete already, or larger than the file
+                Matcher range = UNSATISFIED_RANGE.matcher(String.valueOf(response.header("Content-Range")));
+                if(range.matches() && totalSize != null) {
+                    totalSize.set(Long.parseLong(range.group(1)));
+                }
+                return 0;
+            }
+            if(response.code() == 200) {
+                if(from > 0) {
+                    if(to >= 0) {
+                        throw new RangesNotSupportedException(url);
+                    }
+                    LOG.info("Server does not support ranges for {}. Downloading it again", url);
+                    position = 0;
+                }
+                if(totalSize != null) {
+                    totalSize.set(response.body().contentLength());
+                }
+            } else if(response.code() == 206) {
+                Matcher range = CONTENT_RANGE.matcher(String.valueOf(response.header("Content-Range")));
+                if(!range.matches() || Long.parseLong(range.group(1)) != from) {
+                    throw new IOException("Unexpected Content-Range " + response.header("Content-Range") + " for " + url);
+                }
+                if(totalSize != null && !range.group(3).equals("*")) {
+                    totalSize.set(Long.parseLong(range.group(3)));
+                }
+            } else if(!response.isSuccessful()) {
+                throw httpError(url, response);
+            }
+            return write(response.body(), part, position, from);
+        }
+    }
+
+    /**
+     * Writes the body into the part file at position.
+     *
+     * @return the number of bytes written, counting from "from" (the body may start before "from")
+     */
+    private static long write(ResponseBody body, File part, long position, long from) throws IOException {
+        try(FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            InputStream in = body.byteStream()) {
+            if(position < from) {
+                // the whole file is downloaded again
+                channel.truncate(0);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                while(bytes.hasRemaining()) {
+                    position += channel.write(bytes, position);
+                }
+            }
+        } catch (IOException e) {
+            throw new PartialDownloadException(e, position - from);
+        }
+        return position - from;
+    }
+
+    private static IOException httpError(String url, Response response) {
+        String message = "HTTP " + response.code() + " for " + url;
+        if(response.code() == 429 || response.code() >= 500) {
+            return new IOException(message);
+        }
+        return new NonRetryableException(message);
+    }
+
+    private void backoff(String url, int attempt, IOException e) throws IOException, InterruptedException {
+        if(e instanceof NonRetryableException || attempt >= retries) {
+            throw e;
+        }
+        if(retryBudget != null && !retryBudget.withdraw()) {
+            LOG.warn("Not retrying {}, the retry budget is used up", url);
+            throw e;
+        }
+        long wait = backoffMs << Math.min(attempt, 20);
+        LOG.info("Download of {} failed ({}). Retrying in {} ms", url, e.getMessage(), wait);
+        Thread.sleep(wait);
+    }
+
+    private static long getWritten(IOException e) {
+        return e instanceof PartialDownloadException ? ((PartialDownloadException) e).written : 0;
+    }
+
+    @Override
+    public void close() {
+        chunkExecutor.shutdownNow();
+    }
+
+    private static class NonRetryableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NonRetryableException(String message) {
+            super(message);
+        }
+    }
+
+    private static class RangesNotSupportedException extends NonRetryableException {
+        private static final long serialVersionUID = 1L;
+
+        RangesNotSupportedException(String url) {
+            super("Server does not support ranges for " + url);
+        }
+    }
+
+    /**
+     * A response body which broke off, after some bytes have been written.
+     */
+    private static class PartialDownloadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long written;
+
+        PartialDownloadException(IOException cause, long written) {
+            super(cause.getMessage(), cause);
+            this.written = written;
+        }
+    }
+}
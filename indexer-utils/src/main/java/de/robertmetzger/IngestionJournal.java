@@ -0,0 +1,133 @@
+package de.robertmetzger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Local journal of the acknowledged indexing progress, so that a restarted LogsIndexer can skip the work
+ * that has already been done.
+ *
+ * <p>The journal is a tab separated, append-only text file. Every line records how far an entry of an archive
+ * has been acknowledged by ES:
+ * <pre>
+ * archive   bulk   entry   offset
+ * </pre>
+ * The entry is either the buildname of a log file (the offset is the position in the uncompressed log file where
+ * indexing continues) or the name of a tgz inside the zip file. {@link #COMPLETE} as offset marks an entry as done.
+ * The bulk is the sequence number of the last acknowledged bulk request of the archive.
+ *
+ * <p>Archives that have been moved to the done directory are removed from the journal when it is opened.
+ */
+public class IngestionJournal implements Closeable {
+    private final static Logger LOG = LoggerFactory.getLogger(IngestionJournal.class);
+
+    /**
+     * Offset of entries that have been indexed completely.
+     */
+    public static final long COMPLETE = Long.MAX_VALUE;
+    private static final String COMPLETE_MARKER = "complete";
+    private static final String ARCHIVE_DONE_MARKER = "done";
+
+    private final File file;
+    private final Map<String, Map<String, Long>> progress = new HashMap<>();
+    private final Writer writer;
+
+    public IngestionJournal(File file) throws IOException {
+        this.file = file;
+        if(file.exists()) {
+            load();
+            compact();
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        LOG.info("Opened journal {} with progress for {} archives", file, progress.size());
+    }
+
+    private void load() throws IOException {
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if(fields.length == 2 && ARCHIVE_DONE_MARKER.equals(fields[1])) {
+                    progress.remove(fields[0]);
+                } else if(fields.length == 4) {
+                    long offset = COMPLETE_MARKER.equals(fields[3]) ? COMPLETE : Long.parseLong(fields[3]);
+                    progress.computeIfAbsent(fields[0], archive -> new LinkedHashMap<>()).merge(fields[2], offset, Math::max);
+                } else {
+                    // the last line might be incomplete after a crash
+                    LOG.warn("Ignoring invalid journal line '{}'", line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the journal with the latest progress only.
+     */
+    private void compact() throws IOException {
+        File compacted = new File(file.getPath() + ".tmp");
+        try(Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), StandardCharsets.UTF_8))) {
+            for(Map.Entry<String, Map<String, Long>> archive: progress.entrySet()) {
+                for(Map.Entry<String, Long> entry: archive.getValue().entrySet()) {
+                    writeLine(out, archive.getKey(), 0, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the offset in the entry where indexing has to continue: 0 for unknown entries,
+     * {@link #COMPLETE} for entries that have been indexed completely.
+     */
+    public synchronized long getResumeOffset(String archive, String entry) {
+        Map<String, Long> entries = progress.get(archive);
+        if(entries == null) {
+            return 0L;
+        }
+        return entries.getOrDefault(entry, 0L);
+    }
+
+    /**
+     * Records that all documents of the entry up to the offset have been acknowledged.
+     */
+    public synchronized void record(String archive, long bulk, String entry, long offset) throws IOException {
+        progress.computeIfAbsent(archive, a -> new LinkedHashMap<>()).merge(entry, offset, Math::max);
+        writeLine(writer, archive, bulk, entry, offset);
+        writer.flush();
+    }
+
+    /**
+     * Records that the archive has been processed completely, so that its progress can be forgotten.
+     */
+    public synchronized void archiveDone(String archive) throws IOException {
+        progress.remove(archive);
+        writer.write(archive + "\t" + ARCHIVE_DONE_MARKER + "\n");
+        writer.flush();
+    }
+
+    private static void writeLine(Writer out, String archive, long bulk, String entry, long offset) throws IOException {
+        out.write(archive + "\t" + bulk + "\t" + entry + "\t" + (offset == COMPLETE ? COMPLETE_MARKER : Long.toString(offset)) + "\n");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
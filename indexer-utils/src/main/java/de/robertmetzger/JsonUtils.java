@@ -1,30 +1,65 @@
 package de.robertmetzger;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.Headers;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
-import org.apache.commons.math3.analysis.function.Min;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
-public class JsonUtils {
+public class JsonUtils implements Closeable {
     private final static Logger LOG = LoggerFactory.getLogger(JsonUtils.class);
 
     private final OkHttpClient client;
     private final ObjectMapper objectMapper;
+    private final RateLimitInterceptor rateLimiter;
+    // stores the streamed responses, if set
+    private volatile MetadataCache metadataCache;
 
     public JsonUtils() {
+        this(new Dispatcher().getMaxRequestsPerHost());
+    }
+
+    public JsonUtils(int maxConcurrentRequests) {
+        this(maxConcurrentRequests, maxConcurrentRequests, RateLimitInterceptor.fromParameters(ParameterTool.fromArgs(new String[0])));
+    }
+
+    /**
+     * @param maxConcurrentRequests the number of asynchronous calls running at the same time. Further calls are
+     *                              queued by the dispatcher of the client
+     * @param maxIdleConnections the connections kept open for further calls, also of the clients derived from
+     *                           {@link #getClient()}
+     * @param rateLimiter limits the rate of all calls and retries them, also of the derived clients
+     */
+    public JsonUtils(int maxConcurrentRequests, int maxIdleConnections, RateLimitInterceptor rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxConcurrentRequests);
+        dispatcher.setMaxRequestsPerHost(maxConcurrentRequests);
         client = new OkHttpClient.Builder()
-                .connectTimeout(10, TimeUnit.MINUTES)
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(maxIdleConnections, 5, TimeUnit.MINUTES))
+                .addInterceptor(rateLimiter)
+                // failed connects are retried by the rate limiter
+                .connectTimeout(30, TimeUnit.SECONDS)
                 .callTimeout(10, TimeUnit.MINUTES)
                 .readTimeout(10, TimeUnit.MINUTES)
                 .writeTimeout(10, TimeUnit.MINUTES)
@@ -33,20 +68,261 @@ public class JsonUtils {
         objectMapper = new ObjectMapper();
     }
 
+    /**
+     * Configures the client with "concurrent-requests", the "http.*" parameters of the
+     * {@link RateLimitInterceptor}, and keeps a connection for every concurrent request and download.
+     */
+    public static JsonUtils fromParameters(ParameterTool parameters) {
+        int concurrentRequests = parameters.getInt("concurrent-requests", 8);
+        int concurrentDownloads = parameters.getInt("concurrent-downloads", 4) * parameters.getInt("download.chunks", 4);
+        return new JsonUtils(concurrentRequests, concurrentRequests + concurrentDownloads, RateLimitInterceptor.fromParameters(parameters));
+    }
+
     public static class JsonResult<T> {
         public T result;
         public Headers responseHeaders;
     }
-    public <T> JsonResult<T> getJsonFromUrl(String url, Class<T> target) throws IOException {
-        Request request = new Request.Builder()
-                .url(url)
-                .build();
-        try (Response response = client.newCall(request).execute()) {
-            String responseBody = response.body().string();
+
+    /**
+     * Reads a JSON document from a {@link JsonParser}, which is positioned before the first token.
+     */
+    @FunctionalInterface
+    public interface StreamingReader<T> {
+        T read(JsonParser parser) throws IOException;
+    }
+
+    /**
+     * Called with the parser at the value of a field, see {@link #readObject}.
+     */
+    @FunctionalInterface
+    public interface FieldReader {
+        void read(String field, JsonParser parser) throws IOException;
+    }
+
+    /**
+     * Called with the parser at the start of an array element, see {@link #readArray}.
+     */
+    @FunctionalInterface
+    public interface ElementReader {
+        void read(JsonParser parser) throws IOException;
+    }
+
+    /**
+     * Stores the responses of {@link #streamBuildJsonAsync} for good, and revalidates the responses of
+     * {@link #streamJsonFromUrl} and {@link #streamJsonFromUrlAsync} which came with an ETag. The cache is not closed
+     * by this class.
+     */
+    public void setMetadataCache(MetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+    }
+
+    /**
+     * Parses the response while it is received, without buffering it. Non 2xx responses fail with an IOException.
+     */
+    public <T> JsonResult<T> streamJsonFromUrl(String url, StreamingReader<T> reader) throws IOException {
+        MetadataCache cache = metadataCache;
+        if(cache == null) {
+            try (Response response = client.newCall(newRequest(url, null)).execute()) {
+                return read(url, response, reader);
+            }
+        }
+        MetadataCache.Entry cached = cache.get(url);
+        try (Response response = client.newCall(newRequest(url, cached)).execute()) {
+            return readCaching(cache, url, url, null, cached, response, reader);
+        }
+    }
+
+    /**
+     * Like {@link #streamJsonFromUrl}, but the call is enqueued in the client. The response is parsed on the
+     * thread of the client which received it.
+     */
+    public <T> CompletableFuture<JsonResult<T>> streamJsonFromUrlAsync(String url, StreamingReader<T> reader) {
+        MetadataCache cache = metadataCache;
+        if(cache == null) {
+            return enqueue(newRequest(url, null), response -> read(url, response, reader));
+        }
+        try {
+            MetadataCache.Entry cached = cache.get(url);
+            return enqueue(newRequest(url, cached), response -> readCaching(cache, url, url, null, cached, response, reader));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Like {@link #streamJsonFromUrlAsync}, for a response of a finished build, which never changes. If there is a
+     * metadata cache, the response is only requested once, and then read from the cache.
+     *
+     * @param name the name of the response within the build, e.g. "artifacts"
+     */
+    public <T> CompletableFuture<JsonResult<T>> streamBuildJsonAsync(String url, int buildId, String name, StreamingReader<T> reader) {
+        MetadataCache cache = metadataCache;
+        if(cache == null) {
+            return enqueue(newRequest(url, null), response -> read(url, response, reader));
+        }
+        String key = MetadataCache.buildKey(buildId, name);
+        try {
+            MetadataCache.Entry cached = cache.get(key);
+            if(cached != null) {
+                cache.recordHit(false);
+                return CompletableFuture.completedFuture(parse(url, cached.headers, cached.body, reader));
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return enqueue(newRequest(url, null), response -> readCaching(cache, url, key, buildId, null, response, reader));
+    }
+
+    @FunctionalInterface
+    private interface ResponseReader<T> {
+        T read(Response response) throws IOException;
+    }
+
+    private <T> CompletableFuture<T> enqueue(Request request, ResponseReader<T> reader) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response r = response) {
+                    future.complete(reader.read(r));
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            }
+        });
+        return future;
+    }
+
+    private Request newRequest(String url, MetadataCache.Entry cached) {
+        Request.Builder request = new Request.Builder().url(url);
+        if(metadataCache != null) {
+            // the metadata cache keeps the responses, not the disk cache of the client
+            request.cacheControl(new CacheControl.Builder().noStore().build());
+        }
+        if(cached != null && cached.etag != null) {
+            request.header("If-None-Match", cached.etag);
+        }
+        return request.build();
+    }
+
+    /**
+     * Reads a response with the metadata cache: a 304 is answered from the cache, responses of finished builds
+     * and responses with an ETag are stored. Other responses are streamed as usual.
+     */
+    private <T> JsonResult<T> readCaching(MetadataCache cache, String url, String key, Integer buildId,
+                                          MetadataCache.Entry cached, Response response, StreamingReader<T> reader) throws IOException {
+        if(response.code() == 304 && cached != null) {
+            cache.recordHit(true);
+            return parse(url, cached.headers, cached.body, reader);
+        }
+        cache.recordMiss();
+        String etag = response.header("ETag");
+        if(!response.isSuccessful() || (buildId == null && etag == null)) {
+            return read(url, response, reader);
+        }
+        byte[] body = response.body().bytes();
+        // only responses which can be read are stored
+        JsonResult<T> result = parse(url, response.headers(), body, reader);
+        cache.put(key, buildId, buildId == null ? etag : null, response.headers(), body);
+        return result;
+    }
+
+    private <T> JsonResult<T> parse(String url, Headers headers, byte[] body, StreamingReader<T> reader) throws IOException {
+        try {
+            JsonResult<T> res = new JsonResult<>();
+            res.responseHeaders = headers;
+            res.result = parse(body, reader);
+            return res;
+        } catch (IOException e) {
+            throw new IOException("Error while reading response of " + url, e);
+        }
+    }
+
+    private <T> JsonResult<T> read(String url, Response response, StreamingReader<T> reader) throws IOException {
+        if(!response.isSuccessful()) {
+            throw new IOException("HTTP " + response.code() + " for " + url);
+        }
+        try (JsonParser parser = objectMapper.getFactory().createParser(response.body().byteStream())) {
             JsonResult<T> res = new JsonResult<>();
             res.responseHeaders = response.headers();
-            res.result = objectMapper.readValue(responseBody, target);
+            res.result = reader.read(parser);
             return res;
+        } catch (IOException e) {
+            throw new IOException("Error while reading response of " + url, e);
+        }
+    }
+
+    /**
+     * Parses a JSON document with a {@link StreamingReader}.
+     */
+    public <T> T parse(byte[] json, StreamingReader<T> reader) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(json)) {
+            return reader.read(parser);
+        }
+    }
+
+    /**
+     * Reads the object at the current (or, before the first token, the next) token. The reader is called for every
+     * field, with the parser at the value. Values which the reader did not read, or only started to read, are skipped.
+     */
+    public static void readObject(JsonParser parser, FieldReader reader) throws IOException {
+        JsonToken token = parser.currentToken() == null ? parser.nextToken() : parser.currentToken();
+        if(token != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected an object, but got " + token);
+        }
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            reader.read(field, parser);
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * Reads the array at the current token, element by element. Elements which the reader did not read, or only
+     * started to read, are skipped. A null value is an empty array.
+     */
+    public static void readArray(JsonParser parser, ElementReader reader) throws IOException {
+        if(parser.currentToken() == JsonToken.VALUE_NULL) {
+            return;
+        }
+        if(parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new JsonParseException(parser, "Expected an array, but got " + parser.currentToken());
+        }
+        while(parser.nextToken() != JsonToken.END_ARRAY) {
+            reader.read(parser);
+            parser.skipChildren();
+        }
+    }
+
+    /**
+     * The rate limiter of the client, see {@link RateLimitInterceptor#withoutRetries()}.
+     */
+    public RateLimitInterceptor getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * The client of the REST calls, to be shared (see {@link OkHttpClient#newBuilder()}) by other HTTP requests.
+     */
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Stops the threads of the client, which would otherwise keep the JVM alive for a minute after async calls.
+     */
+    @Override
+    public void close() throws IOException {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        if(client.cache() != null) {
+            client.cache().close();
         }
     }
 }
@@ -1,25 +1,38 @@
 package de.robertmetzger;
 
+import org.apache.flink.annotation.VisibleForTesting;
 import org.apache.flink.api.java.utils.ParameterTool;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import org.apache.commons.io.FileUtils;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import org.apache.commons.io.input.TeeInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Azure REST API:
@@ -30,183 +43,420 @@ import java.util.stream.StreamSupport;
  *  Get artifacts of a build:
  *  https://dev.azure.com/apache-flink/apache-flink/_apis/build/builds/{buildId}/artifacts?api-version=5.1
  */
-public class LogFilesDownloader {
+public class LogFilesDownloader implements Closeable {
     private final static Logger LOG = LoggerFactory.getLogger(LogFilesDownloader.class);
 
     private final JsonUtils jsonUtils;
     private final ParameterTool parameters;
     private final String azureOrg;
+    private final String azureUrl;
+    private final BuildCatalog catalog;
+    private final FileDownloader fileDownloader;
+    private final MetadataCache metadataCache;
+    private final AtomicInteger failedDownloads = new AtomicInteger();
+    // indexes the log archives while they are downloaded, if "stream-index" is set
+    private volatile LogsIndexer indexer;
 
 
-    public LogFilesDownloader(ParameterTool pt) {
-        jsonUtils = new JsonUtils();
+    public LogFilesDownloader(ParameterTool pt) throws IOException {
         this.parameters = pt;
+        jsonUtils = JsonUtils.fromParameters(parameters);
         this.azureOrg = parameters.get("azure-org", "apache-flink/apache-flink");
+        this.azureUrl = parameters.get("azure-url", "https://dev.azure.com/");
+        this.catalog = BuildCatalog.fromParameters(parameters);
+        this.metadataCache = MetadataCache.fromParameters(parameters, new MetricRegistry());
+        jsonUtils.setMetadataCache(metadataCache);
+        // the artifacts are too large for the cache of the REST responses. The downloads share the connections, the
+        // rate limit and the retry budget of the REST calls, but the FileDownloader does the retries. A streamed
+        // archive is read at indexing speed, so only the read timeout applies, not the timeout of the whole call
+        OkHttpClient.Builder downloadClient = jsonUtils.getClient().newBuilder().cache(null).callTimeout(0, TimeUnit.MILLISECONDS);
+        downloadClient.interceptors().clear();
+        downloadClient.addInterceptor(jsonUtils.getRateLimiter().withoutRetries());
+        this.fileDownloader = FileDownloader.fromParameters(downloadClient.build(), jsonUtils.getRateLimiter().getRetryBudget(), parameters);
     }
 
-    private List<Integer> getBuildIDs() throws IOException {
-        List<Integer> buildIds = new ArrayList<>();
-        List<Integer> fetchResult;
+    /**
+     * Pages through the completed builds, the last finished first, and hands the master builds of each page to the
+     * consumer, as soon as the page has been fetched.
+     *
+     * @param minTime if not null, only builds which finished after this time are fetched
+     * @return the number of builds fetched
+     */
+    private int getBuilds(String minTime, Consumer<List<Build>> pageConsumer) throws IOException {
+        int total = 0;
+        List<Build> fetchResult;
         String continuationToken = "";
+        String filter = "&statusFilter=completed&queryOrder=finishTimeDescending" + (minTime == null ? "" : "&minTime=" + minTime);
         do {
-            JsonUtils.JsonResult<ObjectNode> callResult =
-                    jsonUtils.getJsonFromUrl("https://dev.azure.com/" + azureOrg + "/_apis/build/builds?api-version=5.1&continuationToken="+continuationToken+"&$top=2500", ObjectNode.class);
-            // LOG.debug("res = " + callResult.result);
-            JsonNode buildsArray = callResult.result.get("value");
-            if(buildsArray == null) {
-                LOG.debug("Unexpected REST result " + callResult.result);
-                return Collections.emptyList();
-            }
-            int count = callResult.result.get("count").asInt();
+            JsonUtils.JsonResult<BuildsPage> callResult =
+                    jsonUtils.streamJsonFromUrl(azureUrl + azureOrg + "/_apis/build/builds?api-version=5.1&continuationToken="+continuationToken+"&$top=2500" + filter, LogFilesDownloader::readBuildsPage);
             continuationToken = callResult.responseHeaders.get("x-ms-continuationtoken");
-            LOG.debug("Fetch count {}. Continuation token {}", count, continuationToken);
+            LOG.debug("Fetch count {}. Continuation token {}", callResult.result.count, continuationToken);
 
-            LOG.info("size = " + buildsArray.size());
-            fetchResult = StreamSupport.stream(buildsArray.spliterator(), false)
-                    // only on master pushes
-                    .filter(node -> {
-                        JsonNode definition = node.get("definition");
-
-                        String definitionName = definition.get("name").asText();
-                        return definitionName.equals("flink-ci.flink-master-mirror") || definitionName.equals("flink-ci.flink");
-                    })
-                    .map(node -> node.get("id").asInt())
-                    .collect(Collectors.toList());
-            buildIds.addAll(fetchResult);
-            LOG.info("Fetched {} build IDs", fetchResult.size());
-            LOG.debug("fetched tokens: " + fetchResult);
+            LOG.info("size = " + callResult.result.size);
+            fetchResult = callResult.result.masterBuilds;
+            total += fetchResult.size();
+            LOG.info("Fetched {} builds", fetchResult.size());
+            pageConsumer.accept(fetchResult);
             if(continuationToken == null) {
                 break;
             }
         } while(fetchResult.size() > 0);
-        LOG.info("Finished fetching. Total number of IDs fetched {}", buildIds.size());
-        return buildIds;
+        LOG.info("Finished fetching. Total number of builds fetched {}", total);
+        return total;
+    }
+
+    /**
+     * Reads a builds REST response. Of the builds in the "value" array, only the builds that ran on master pushes
+     * are kept, and only their id, finish time and definition name are read.
+     */
+    @VisibleForTesting
+    static BuildsPage readBuildsPage(JsonParser parser) throws IOException {
+        BuildsPage page = new BuildsPage();
+        boolean[] hasValue = {false};
+        JsonUtils.readObject(parser, (field, p) -> {
+            if(field.equals("count")) {
+                page.count = p.getValueAsInt();
+            } else if(field.equals("value")) {
+                hasValue[0] = true;
+                JsonUtils.readArray(p, element -> {
+                    page.size++;
+                    Build build = readBuild(element);
+                    // only on master pushes
+                    if(build.definitionName.equals("flink-ci.flink-master-mirror") || build.definitionName.equals("flink-ci.flink")) {
+                        page.masterBuilds.add(build);
+                    }
+                });
+            }
+        });
+        if(!hasValue[0]) {
+            throw new IOException("Unexpected REST result without \"value\"");
+        }
+        return page;
     }
 
-    private Stream<Download> getLogDownloadLinks(int buildID) throws IOException {
-        ObjectNode artifactsResultObject = jsonUtils.getJsonFromUrl("https://dev.azure.com/" + azureOrg + " /_apis/build/builds/" + buildID + "/artifacts?api-version=5.1", ObjectNode.class).result;
-        JsonNode artifactsArray = artifactsResultObject.get("value");
-        return StreamSupport.stream(artifactsArray.spliterator(), false)
-                .filter(artifact -> artifact.get("name").asText().startsWith("logs-"))
-                .map(artifact -> {
+    private static Build readBuild(JsonParser parser) throws IOException {
+        Build build = new Build();
+        JsonUtils.readObject(parser, (field, p) -> {
+            switch(field) {
+                case "id":
+                    build.id = p.getValueAsInt();
+                    break;
+                case "finishTime":
+                    build.finishTime = p.getValueAsString();
+                    break;
+                case "definition":
+                    JsonUtils.readObject(p, (definitionField, d) -> {
+                        if(definitionField.equals("name")) {
+                            build.definitionName = d.getValueAsString();
+                        }
+                    });
+                    break;
+            }
+        });
+        return build;
+    }
+
+    private CompletableFuture<List<Download>> getLogDownloadLinks(int buildID) {
+        return jsonUtils.streamBuildJsonAsync(azureUrl + azureOrg + "/_apis/build/builds/" + buildID + "/artifacts?api-version=5.1",
+                buildID, "artifacts", parser -> readLogDownloadLinks(parser, buildID)).thenApply(artifactsResult -> artifactsResult.result);
+    }
+
+    /**
+     * Returns the "logs-" artifacts in the artifacts REST response of a build.
+     */
+    @VisibleForTesting
+    static List<Download> readLogDownloadLinks(JsonParser parser, int buildID) throws IOException {
+        List<Download> downloads = new ArrayList<>();
+        JsonUtils.readObject(parser, (field, p) -> {
+            if(field.equals("value")) {
+                JsonUtils.readArray(p, element -> {
                     Download dl = new Download();
-                    dl.url = artifact.get("resource").get("downloadUrl").asText();
-                    dl.name = buildID + "-" + artifact.get("name").asText();
-                    return dl;
+                    String[] name = {""};
+                    JsonUtils.readObject(element, (artifactField, a) -> {
+                        if(artifactField.equals("name")) {
+                            name[0] = a.getValueAsString();
+                        } else if(artifactField.equals("resource")) {
+                            JsonUtils.readObject(a, (resourceField, r) -> {
+                                if(resourceField.equals("downloadUrl")) {
+                                    dl.url = r.getValueAsString();
+                                } else if(resourceField.equals("properties")) {
+                                    JsonUtils.readObject(r, (property, value) -> {
+                                        if(property.equals("artifactsize")) {
+                                            dl.size = value.getValueAsLong(-1);
+                                        }
+                                    });
+                                }
+                            });
+                        }
+                    });
+                    if(name[0].startsWith("logs-")) {
+                        dl.name = buildID + "-" + name[0];
+                        downloads.add(dl);
+                    }
                 });
+            }
+        });
+        return downloads;
     }
 
-    @FunctionalInterface
-    public interface ThrowingSupplier<T, E extends Exception> {
-        T get() throws E;
+    /**
+     * The master builds of a page of the builds REST API.
+     */
+    @VisibleForTesting
+    static class BuildsPage {
+        // the number of builds on the page, as reported by Azure
+        int count;
+        // the number of builds on the page
+        int size;
+        final List<Build> masterBuilds = new ArrayList<>();
+    }
+
+    public static class Build {
+        public int id;
+        // ISO-8601, as returned by Azure
+        public String finishTime;
+        public String definitionName = "";
     }
 
     public static class Download {
         public String url;
         public String name;
+        // the "artifactsize" in bytes, or -1 if unknown. It is the size of the artifact's content, not of the zip which
+        // is served for the download, so it is only a hint
+        public long size = -1;
 
         @Override
         public String toString() {
             return "Download{" +
                     "url='" + url + '\'' +
                     ", name='" + name + '\'' +
+                    ", size=" + size +
                     '}';
         }
     }
 
-    private static <R> Stream<R> emptyStreamOnException(ThrowingSupplier<Stream<R>, IOException> fun) {
-        try {
-            return fun.get();
-        } catch (IOException e) {
-            LOG.debug("Exception while retrieving download links", e);
-            return Stream.empty();
-        }
+    @VisibleForTesting
+    void runGetLogOutput() throws IOException, InterruptedException {
+        LOG.info("Getting e2e job output of the builds from Azure");
+        discoverAndDownload("output", this::getE2ELogOutputLinks);
     }
 
-
-    private void runGetLogOutput() throws IOException, InterruptedException {
-        LOG.info("Getting builds from Azure");
-        List<Integer> buildIDs = getBuildIDs();
-        //List<Integer> buildIDs = List.of(4143, 4142, 4141);
-        LOG.info("ids = " + buildIDs);
-        LOG.info("Downloading logs");
-        List<Download> urls = new ArrayList<>();
-        for(Integer id: buildIDs) {
-            // get download links
-            List<Download> buildUrls = getE2ELogOutputLinks(id);
-            LOG.info("Collected {} download URls for build #{}", buildUrls.size(), id);
-            urls.addAll(buildUrls);
-        }
-        download(urls);
+    private CompletableFuture<List<Download>> getE2ELogOutputLinks(int buildId) {
+        return jsonUtils.streamBuildJsonAsync(azureUrl + "apache-flink/98463496-1af2-4620-8eab-a2ecc1a2e6fe/_apis/build/builds/"+buildId+"/Timeline",
+                buildId, "timeline", parser -> readE2ELogOutputLinks(parser, buildId)).thenApply(timelineResult -> timelineResult.result);
     }
 
-    private List<Download> getE2ELogOutputLinks(Integer buildId) throws IOException {
-        ObjectNode artifactsResultObject = jsonUtils.getJsonFromUrl("https://dev.azure.com/apache-flink/98463496-1af2-4620-8eab-a2ecc1a2e6fe/_apis/build/builds/"+buildId+"/Timeline", ObjectNode.class).result;
-        JsonNode records = artifactsResultObject.get("records");
+    /**
+     * Returns the log URLs of the e2e jobs in the Timeline REST response of a build.
+     */
+    @VisibleForTesting
+    static List<Download> readE2ELogOutputLinks(JsonParser parser, int buildId) throws IOException {
         List<Download> urls = new ArrayList<>();
-        for(JsonNode record: records) {
-            String name = record.get("name").asText();
-            if(name.contains("e2e") && record.get("type").asText().equals("Job")) {
-                if(record.get("log") != null && record.get("log").isObject()) {
-                    Download dl = new Download();
-                    dl.url = record.get("log").get("url").asText();
-                    dl.name = "output-" + buildId + "-" + name;
-                    urls.add(dl);
-                }
+        JsonUtils.readObject(parser, (field, p) -> {
+            if(field.equals("records")) {
+                JsonUtils.readArray(p, element -> {
+                    String[] record = new String[3];
+                    JsonUtils.readObject(element, (recordField, r) -> {
+                        if(recordField.equals("name")) {
+                            record[0] = r.getValueAsString();
+                        } else if(recordField.equals("type")) {
+                            record[1] = r.getValueAsString();
+                        } else if(recordField.equals("log") && r.currentToken() == JsonToken.START_OBJECT) {
+                            JsonUtils.readObject(r, (logField, l) -> {
+                                if(logField.equals("url")) {
+                                    record[2] = l.getValueAsString();
+                                }
+                            });
+                        }
+                    });
+                    String name = record[0];
+                    if(name != null && name.contains("e2e") && "Job".equals(record[1]) && record[2] != null) {
+                        Download dl = new Download();
+                        dl.url = record[2];
+                        dl.name = "output-" + buildId + "-" + name;
+                        urls.add(dl);
+                    }
+                });
             }
-        }
-
+        });
         return urls;
     }
 
 
-    private void download(List<Download> downloads) throws InterruptedException {
+    /**
+     * Resolves the download links of the new builds, and downloads them. The links of the builds are requested
+     * asynchronously (up to "concurrent-requests" at a time) while the build list is still being paged through, and
+     * the downloads of a build are started as soon as its links are known.
+     *
+     * <p>Builds are new if they finished after the newest build of the last complete sync ("min-time" overrides
+     * it), have an ID of at least "min-build-id" and have not been resolved before. Downloads which did not finish
+     * in earlier runs are retried.
+     *
+     * @param kind the kind of the downloads in the {@link BuildCatalog}
+     */
+    private void discoverAndDownload(String kind, Function<Integer, CompletableFuture<List<Download>>> linkResolver) throws IOException, InterruptedException {
         ExecutorService executorService = Executors.newFixedThreadPool(parameters.getInt("concurrent-downloads",4));
-        for(Download download: downloads) {
-            executorService.submit( () -> {
-                try {
-                    LOG.info("Downloading " + download);
-                    File target = new File(parameters.get("data-dir", "data") + "/" + download.name);
-                    if(target.exists()) {
-                        LOG.info("File {} exists already. Skipping download ...", target);
-                        return;
+        List<CompletableFuture<Void>> discoveries = new ArrayList<>();
+        AtomicInteger failedBuilds = new AtomicInteger();
+        int minBuildId = parameters.getInt("min-build-id", 0);
+        // finish time of the last finished build
+        AtomicReference<String> newest = new AtomicReference<>();
+        try {
+            String minTime = parameters.get("min-time", catalog.getSyncMark(kind));
+            List<Download> pending = catalog.getPendingDownloads();
+            LOG.info("Syncing builds finished after {}. Retrying {} pending downloads", minTime, pending.size());
+            for(Download download: pending) {
+                executorService.submit(() -> download(download));
+            }
+
+            getBuilds(minTime, builds -> {
+                for(Build build: builds) {
+                    if(build.finishTime != null && (newest.get() == null || build.finishTime.compareTo(newest.get()) > 0)) {
+                        newest.set(build.finishTime);
                     }
-                    FileUtils.copyURLToFile(new URL(download.url), target);
-                } catch(Throwable t) {
-                    LOG.info("Exception while downloading name=" + download.name, t);
+                    if(build.id < minBuildId || isResolved(build.id, kind)) {
+                        continue;
+                    }
+                    discoveries.add(linkResolver.apply(build.id).handle((downloads, error) -> {
+                        try {
+                            if(error != null) {
+                                throw error;
+                            }
+                            catalog.addBuild(build.id, kind, build.finishTime, downloads);
+                        } catch (Throwable t) {
+                            failedBuilds.incrementAndGet();
+                            LOG.warn("Exception while retrieving download links of build #" + build.id, t);
+                            return null;
+                        }
+                        LOG.info("Collected {} download URLs for build #{}", downloads.size(), build.id);
+                        for(Download download: downloads) {
+                            executorService.submit(() -> download(download));
+                        }
+                        return null;
+                    }));
                 }
             });
+        } catch (SQLException e) {
+            throw new IOException("Unable to read the build catalog", e);
+        } finally {
+            // the downloads of builds found so far are finished, even if paging failed
+            CompletableFuture.allOf(discoveries.toArray(new CompletableFuture<?>[0])).join();
+            executorService.shutdown();
+            executorService.awaitTermination(10, TimeUnit.HOURS);
+        }
+        LOG.info("Finished downloading. Links of {} out of {} new builds could not be retrieved. {} downloads failed, they are "
+                + "retried in the next run", failedBuilds.get(), discoveries.size(), failedDownloads.get());
+        if(failedBuilds.get() == 0 && newest.get() != null) {
+            try {
+                catalog.setSyncMark(kind, newest.get());
+            } catch (SQLException e) {
+                throw new IOException("Unable to update the build catalog", e);
+            }
         }
-        executorService.shutdown();
-        executorService.awaitTermination(10, TimeUnit.HOURS);
     }
 
-    private void runGetLogFiles() throws IOException, InterruptedException {
-        LOG.info("Getting builds from Azure");
-        List<Integer> buildIDs = getBuildIDs();
-        LOG.info("ids = " + buildIDs);
+    private boolean isResolved(int buildId, String kind) {
+        try {
+            return catalog.isResolved(buildId, kind);
+        } catch (SQLException e) {
+            throw new UncheckedIOException(new IOException("Unable to read the build catalog", e));
+        }
+    }
 
-        LOG.info("Collecting download links for builds");
-        List<Download> downloadLinks = buildIDs
-                .stream()
-                .flatMap(buildID -> emptyStreamOnException(() -> getLogDownloadLinks(buildID)))
-                .collect(Collectors.toList());
+    private void download(Download download) {
+        try {
+            BuildCatalog.State state = catalog.getState(download.name);
+            if(state == BuildCatalog.State.DOWNLOADED || state == BuildCatalog.State.INDEXED) {
+                LOG.debug("{} has been downloaded already", download.name);
+                return;
+            }
+            if(indexer != null && LogsIndexer.isLogArchive(download.name)) {
+                stream(download);
+                return;
+            }
+            LOG.info("Downloading " + download);
+            File target = new File(parameters.get("data-dir", "data") + "/" + download.name);
+            // downloaded before the catalog existed
+            if(target.exists() && (download.size < 0 || target.length() == download.size)) {
+                LOG.info("File {} exists already. Skipping download ...", target);
+            } else {
+                fileDownloader.download(download.url, target, download.size);
+            }
+            catalog.markDownloaded(download.name, target.length());
+        } catch(Throwable t) {
+            failedDownloads.incrementAndGet();
+            LOG.warn("Exception while downloading name=" + download.name, t);
+        }
+    }
 
-        download(downloadLinks);
+    /**
+     * Indexes the archive while it is downloaded, without writing it to the data dir. The catalog marks it as indexed
+     * once ES acknowledged all documents. With "stream.keep-dir", a copy of the archive is written to that directory.
+     */
+    private void stream(Download download) throws IOException, InterruptedException {
+        LOG.info("Streaming " + download + " into the index");
+        try(Response response = fileDownloader.open(download.url)) {
+            InputStream in = response.body().byteStream();
+            if(!parameters.has("stream.keep-dir")) {
+                indexer.indexStream(download.name, in);
+                return;
+            }
+            File keepDir = new File(parameters.get("stream.keep-dir"));
+            if(!keepDir.isDirectory() && !keepDir.mkdirs()) {
+                throw new IOException("Unable to create directory " + keepDir);
+            }
+            File part = new File(keepDir, download.name + FileDownloader.PART_SUFFIX);
+            try(OutputStream copy = new BufferedOutputStream(new FileOutputStream(part), 64 * 1024)) {
+                indexer.indexStream(download.name, new TeeInputStream(in, copy));
+            }
+            long size = response.body().contentLength();
+            if(size >= 0 && part.length() != size) {
+                throw new IOException("Received " + part.length() + " bytes of " + download.url + ", but the server sent a size of " + size);
+            }
+            Files.move(part.toPath(), new File(keepDir, download.name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
     }
 
+    @VisibleForTesting
+    void runGetLogFiles() throws IOException, InterruptedException {
+        LOG.info("Getting log artifacts of the builds from Azure");
+        if(!parameters.has("stream-index")) {
+            discoverAndDownload("files", this::getLogDownloadLinks);
+            return;
+        }
+        LogsIndexer logsIndexer = new LogsIndexer(parameters);
+        logsIndexer.start();
+        indexer = logsIndexer;
+        try {
+            discoverAndDownload("files", this::getLogDownloadLinks);
+        } finally {
+            indexer = null;
+            logsIndexer.finish();
+        }
+    }
 
+    @Override
+    public void close() throws IOException {
+        fileDownloader.close();
+        jsonUtils.close();
+        metadataCache.close();
+        catalog.close();
+    }
 
     public static void main(String[] args) throws IOException, InterruptedException {
         ParameterTool pt = ParameterTool.fromArgs(args);
 
         LogFilesDownloader ld = new LogFilesDownloader(pt);
-        if(pt.has("get-files")) {
-            ld.runGetLogFiles();
-        }
-        if(pt.has("get-output")) {
-            ld.runGetLogOutput();
+        try {
+            if(pt.has("get-files")) {
+                ld.runGetLogFiles();
+            }
+            if(pt.has("get-output")) {
+                ld.runGetLogOutput();
+            }
+        } finally {
+            ld.close();
         }
-
     }
 }
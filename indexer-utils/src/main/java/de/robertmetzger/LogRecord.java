@@ -0,0 +1,57 @@
+package de.robertmetzger;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single log record (a log line including its stack trace, if any), as a slice of the UTF-8 encoded bytes
+ * read by the {@link LogRecordSplitter}.
+ *
+ * <p>Instances are reused by the splitter: the contents are only valid until the next record has been requested.
+ */
+public class LogRecord {
+    private byte[] data;
+    private int offset;
+    private int length;
+    private long streamOffset;
+
+    void set(byte[] data, int offset, int length, long streamOffset) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+        this.streamOffset = streamOffset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Position of the record in the uncompressed log file.
+     */
+    public long getStreamOffset() {
+        return streamOffset;
+    }
+
+    /**
+     * Position in the log file where the next record starts (after the newline ending this record).
+     */
+    public long getNextStreamOffset() {
+        return streamOffset + length + 1;
+    }
+
+    /**
+     * Decodes the record. This allocates, so it should not be used on the hot path.
+     */
+    @Override
+    public String toString() {
+        return new String(data, offset, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,107 @@
+package de.robertmetzger;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a log4j log file into records, so that a log line and its stack trace end up in the same record.
+ *
+ * <p>A new record starts at every "\n[0-9]" in the stream: the newline is dropped, the digit is the first
+ * character of the next record. The splitter works on the raw bytes (UTF-8 never uses ASCII bytes inside
+ * multi-byte sequences) and hands out slices of its read buffer, so no objects are allocated per record.
+ */
+public class LogRecordSplitter {
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private final InputStream in;
+    private final LogRecord record = new LogRecord();
+    private byte[] buffer;
+    // start of the current record in the buffer
+    private int start = 0;
+    // position up to which the current record has been scanned for a boundary
+    private int pos = 0;
+    // number of valid bytes in the buffer
+    private int limit = 0;
+    private boolean endOfStream = false;
+    // position of the beginning of the buffer in the stream
+    private long bufferOffset;
+
+    public LogRecordSplitter(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE, 0L);
+    }
+
+    public LogRecordSplitter(InputStream in, int bufferSize) {
+        this(in, bufferSize, 0L);
+    }
+
+    /**
+     * @param streamOffset position of the stream in the log file, if the beginning has been skipped.
+     *                     It must be the beginning of a record.
+     */
+    public LogRecordSplitter(InputStream in, int bufferSize, long streamOffset) {
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+        this.bufferOffset = streamOffset;
+    }
+
+    /**
+     * Returns the next record, or null if the stream is exhausted. The returned record is reused by the next call.
+     */
+    public LogRecord next() throws IOException {
+        while(true) {
+            // we need to see the byte after the newline, so we stop scanning one byte before the limit
+            for(int i = pos; i < limit - 1; i++) {
+                if(buffer[i] == '\n' && isDigit(buffer[i + 1])) {
+                    record.set(buffer, start, i - start, bufferOffset + start);
+                    start = i + 1;
+                    pos = start;
+                    return record;
+                }
+            }
+            pos = Math.max(start, limit - 1);
+
+            if(endOfStream) {
+                int recordStart = start;
+                int end = limit;
+                if(end > recordStart && buffer[end - 1] == '\n') {
+                    end--;
+                }
+                start = limit;
+                pos = limit;
+                if(end == recordStart) {
+                    return null;
+                }
+                record.set(buffer, recordStart, end - recordStart, bufferOffset + recordStart);
+                return record;
+            }
+            fill();
+        }
+    }
+
+    private void fill() throws IOException {
+        if(start > 0) {
+            // move the beginning of the current record to the front of the buffer
+            System.arraycopy(buffer, start, buffer, 0, limit - start);
+            bufferOffset += start;
+            pos -= start;
+            limit -= start;
+            start = 0;
+        }
+        if(limit == buffer.length) {
+            // the current record does not fit into the buffer
+            byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, limit);
+            buffer = larger;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if(read == -1) {
+            endOfStream = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
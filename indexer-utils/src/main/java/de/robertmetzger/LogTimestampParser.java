@@ -0,0 +1,176 @@
+package de.robertmetzger;
+
+/**
+ * Allocation-free parsers for the timestamps found in the Flink CI logs.
+ *
+ * <ul>
+ *     <li>log4j records start with the time of day: "12:52:27,904 [    main] INFO ..."</li>
+ *     <li>Azure pipeline output starts with an ISO-8601 timestamp: "2020-06-08T02:50:48.5046084Z ##[section]..."</li>
+ * </ul>
+ *
+ * <p>All timestamps are interpreted as UTC.
+ */
+public class LogTimestampParser {
+    /**
+     * Returned if the input does not start with a timestamp.
+     */
+    public static final long NO_TIMESTAMP = -1L;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * Parses the "HH:mm:ss,SSS [" prefix of a log4j record into the milliseconds since the beginning of the day.
+     *
+     * <p>The fixed-width format is checked first. Records where the fields have a different number of digits
+     * are handled by a slower fallback, which behaves like a lenient SimpleDateFormat("HH:mm:ss,SSS").
+     *
+     * @return the milliseconds of the day, or {@link #NO_TIMESTAMP} if the record does not start with a time.
+     */
+    public static long parseTimeOfDay(byte[] data, int offset, int length) {
+        // "HH:mm:ss,SSS [" is 14 bytes long
+        if(length >= 14
+                && data[offset + 2] == ':' && data[offset + 5] == ':' && data[offset + 8] == ','
+                && data[offset + 12] == ' ' && data[offset + 13] == '[') {
+            int hours = twoDigits(data, offset);
+            int minutes = twoDigits(data, offset + 3);
+            int seconds = twoDigits(data, offset + 6);
+            int millis = threeDigits(data, offset + 9);
+            if((hours | minutes | seconds | millis) >= 0) {
+                return ((hours * 60L + minutes) * 60L + seconds) * 1000L + millis;
+            }
+        }
+        return parseVariableWidthTimeOfDay(data, offset, length);
+    }
+
+    /**
+     * Fallback for time prefixes that are not zero padded, such as "1:02:03,4 [".
+     */
+    private static long parseVariableWidthTimeOfDay(byte[] data, int offset, int length) {
+        // hours, minutes and seconds are accumulated into "seconds", the current field is kept separately
+        long seconds = 0;
+        long current = 0;
+        int field = 0;
+        int digits = 0;
+        int end = offset + length;
+        for(int i = offset; i < end; i++) {
+            byte b = data[i];
+            if(b >= '0' && b <= '9') {
+                current = current * 10 + (b - '0');
+                if(++digits > 9) {
+                    return NO_TIMESTAMP;
+                }
+            } else if(digits > 0 && ((field < 2 && b == ':') || (field == 2 && b == ','))) {
+                seconds = seconds * 60 + current;
+                current = 0;
+                digits = 0;
+                field++;
+            } else if(digits > 0 && field == 3 && b == ' ' && i + 1 < end && data[i + 1] == '[') {
+                return seconds * 1000L + current;
+            } else {
+                return NO_TIMESTAMP;
+            }
+        }
+        return NO_TIMESTAMP;
+    }
+
+    /**
+     * Parses an ISO-8601 UTC timestamp ("yyyy-MM-ddTHH:mm:ss", optionally followed by a fraction of
+     * a second and "Z") at the beginning of the input.
+     *
+     * @return the epoch milliseconds, or {@link #NO_TIMESTAMP} if the input does not start with a timestamp.
+     */
+    public static long parseIso8601(CharSequence s) {
+        // "yyyy-MM-ddTHH:mm:ss" is 19 characters long
+        if(s.length() < 19
+                || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+                || s.charAt(13) != ':' || s.charAt(16) != ':') {
+            return NO_TIMESTAMP;
+        }
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hours = digits(s, 11, 2);
+        int minutes = digits(s, 14, 2);
+        int seconds = digits(s, 17, 2);
+        if((year | month | day | hours | minutes | seconds) < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+            return NO_TIMESTAMP;
+        }
+        int millis = 0;
+        int pos = 19;
+        if(pos < s.length() && s.charAt(pos) == '.') {
+            // Azure reports 7 fractional digits, we only keep the milliseconds
+            int fractionDigits = 0;
+            pos++;
+            while(pos < s.length() && isDigit(s.charAt(pos))) {
+                if(fractionDigits < 3) {
+                    millis = millis * 10 + (s.charAt(pos) - '0');
+                }
+                fractionDigits++;
+                pos++;
+            }
+            for(; fractionDigits < 3; fractionDigits++) {
+                millis *= 10;
+            }
+        }
+        long timeOfDay = ((hours * 60L + minutes) * 60L + seconds) * 1000L + millis;
+        return daysSinceEpoch(year, month, day) * MILLIS_PER_DAY + timeOfDay;
+    }
+
+    /**
+     * Returns the "yyyy-MM-dd" part of an ISO-8601 timestamp at the beginning of the input,
+     * or null if the input does not start with a timestamp.
+     */
+    public static String parseIso8601Date(CharSequence s) {
+        if(parseIso8601(s) == NO_TIMESTAMP) {
+            return null;
+        }
+        return s.subSequence(0, 10).toString();
+    }
+
+    /**
+     * Number of days between 1970-01-01 and the given date in the proleptic Gregorian calendar.
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        // shift the year to start in March, so that the leap day is the last day of the year
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int twoDigits(byte[] data, int offset) {
+        int d1 = data[offset] - '0';
+        int d2 = data[offset + 1] - '0';
+        if(d1 < 0 || d1 > 9 || d2 < 0 || d2 > 9) {
+            return -1;
+        }
+        return d1 * 10 + d2;
+    }
+
+    private static int threeDigits(byte[] data, int offset) {
+        int d1 = twoDigits(data, offset);
+        int d3 = data[offset + 2] - '0';
+        if(d1 < 0 || d3 < 0 || d3 > 9) {
+            return -1;
+        }
+        return d1 * 10 + d3;
+    }
+
+    private static int digits(CharSequence s, int offset, int count) {
+        int result = 0;
+        for(int i = offset; i < offset + count; i++) {
+            char c = s.charAt(i);
+            if(!isDigit(c)) {
+                return -1;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -6,147 +6,346 @@ import org.apache.flink.api.java.utils.ParameterTool;
 import org.apache.flink.shaded.guava18.com.google.common.io.Files;
 
 import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.jmx.JmxReporter;
 import org.apache.commons.compress.archivers.ArchiveEntry;
-import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.http.HttpHost;
-import org.elasticsearch.action.bulk.BackoffPolicy;
-import org.elasticsearch.action.bulk.BulkProcessor;
-import org.elasticsearch.action.bulk.BulkRequest;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
-import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 /**
  * Utility that reads a Zipped file from Azure (containing a tgz file), and sends it to ES
  */
 public class LogsIndexer {
     private final static Logger LOG = LoggerFactory.getLogger(LogsIndexer.class);
-    private final BulkProcessor bulkProcessor;
+    private final BulkIndexWriter bulkWriter;
+    private IngestionJournal journal;
+    private BuildCatalog catalog;
+    private ThreadPoolExecutor workers;
+    private int parallelism;
+    private Semaphore queuedArchives;
+    private final List<CompletableFuture<Void>> archivesRead = new ArrayList<>();
+    private final List<CompletableFuture<Void>> archivesDone = Collections.synchronizedList(new ArrayList<>());
+    private ConsoleReporter metricsReporter;
+    private JmxReporter jmxReporter;
+    private PrometheusMetricsServer metricsServer;
+    // inflates the blocks of BGZF compressed tgz files in parallel
+    private ExecutorService inflaters;
     private final ParameterTool parameters;
     private final MetricRegistry metrics = new MetricRegistry();
     private final Meter metricsLogsIndexed = metrics.meter("logs-indexed");
     private final Meter metricsFilesProcessed = metrics.meter("files-processed");
+    // the split and timestamp parsing time of every 32nd record
+    private final Timer metricsSplit = metrics.timer("parse.split", SummingTimer::new);
+    private final Timer metricsTimestamp = metrics.timer("parse.timestamp", SummingTimer::new);
 
 
     public LogsIndexer(ParameterTool parameters) {
         this.parameters = parameters;
 
-       RestHighLevelClient client = new RestHighLevelClient(
-                RestClient.builder(new HttpHost(parameters.get("es.host", "localhost"), parameters.getInt("es.port", 9200), "http")));
-
-        BulkProcessor.Listener listener = new BulkProcessor.Listener() {
-            @Override
-            public void beforeBulk(long executionId, BulkRequest request) {
-
-            }
-
-            @Override
-            public void afterBulk(long executionId, BulkRequest request,
-                                  BulkResponse response) {
-            }
-
-            @Override
-            public void afterBulk(long executionId, BulkRequest request,
-                                  Throwable failure) {
-                LOG.info("ES error", failure);
-                System.exit(1);
-            }
-        };
-
-        BulkProcessor.Builder builder = BulkProcessor.builder(
-                (request, bulkListener) ->
-                        client.bulkAsync(request, RequestOptions.DEFAULT, bulkListener),
-                listener);
-        builder.setBulkActions(parameters.getInt("es.bulkactions", 5000));
-        builder.setBulkSize(new ByteSizeValue(10L, ByteSizeUnit.MB));
-        builder.setConcurrentRequests(parameters.getInt("es.concurrent", 5));
-        builder.setFlushInterval(TimeValue.timeValueSeconds(10L));
-        builder.setBackoffPolicy(BackoffPolicy
-                .constantBackoff(TimeValue.timeValueSeconds(1L), 3));
-        this.bulkProcessor = builder.build();
+        RestClient client = RestClient.builder(new HttpHost(parameters.get("es.host", "localhost"), parameters.getInt("es.port", 9200), "http")).build();
+        this.bulkWriter = new BulkIndexWriter(client,
+                "logs",
+                new ByteSizeValue(parameters.getLong("es.bulksize-mb", 10L), ByteSizeUnit.MB).getBytes(),
+                AdaptiveBulkController.fromParameters(parameters),
+                metrics);
     }
 
     private void run() throws IOException, InterruptedException {
-        ConsoleReporter metricsReporter = ConsoleReporter.forRegistry(metrics)
-                .convertRatesTo(TimeUnit.SECONDS)
-                .convertDurationsTo(TimeUnit.MILLISECONDS)
-                .build();
-        metricsReporter.start(30, TimeUnit.SECONDS);
-
         File dataDir = new File(parameters.get("data-dir", "data/"));
         // get all log files in the data dir
-        File[] logFiles = dataDir.listFiles((dir, name) -> name.contains("logs"));
+        File[] logFiles = dataDir.listFiles((dir, name) -> isLogArchive(name));
         if(logFiles == null) {
             LOG.warn("No logfiles found in " + dataDir.getAbsolutePath());
-            bulkProcessor.close();
+            bulkWriter.close();
             return;
         }
-        // process them one after another
+
+        start();
+        LOG.info("Processing {} files with {} workers", logFiles.length, parallelism);
         for(File logFile: logFiles) {
             if(logFile.isDirectory()) {
                 LOG.debug("Skipping directory " + logFile);
                 continue;
             }
+            indexArchive(logFile);
+        }
+        finish();
+    }
 
-            // they are zip files
-            try(ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(logFile))) {
-                LOG.info("Processing " + logFile);
-                ZipEntry entry;
-                while((entry = zipInputStream.getNextEntry()) != null) {
-                    String n = entry.getName();
-                    if(n.endsWith(".tgz") || n.endsWith(".tar.gz")) {
-                        LOG.info("Uncompressing " + n);
-                        InputStream gzi = new GzipCompressorInputStream(zipInputStream, false);
-                        ArchiveInputStream tgzInput = new TarArchiveInputStream(gzi);
-                        ArchiveEntry tgzEntry;
-                        while ((tgzEntry = tgzInput.getNextEntry()) != null) {
-                            LOG.info("tgz entry: " + tgzEntry.getName());
-                            if (tgzEntry.getName().endsWith(".log")) {
-                                parseLogfile(tgzInput, logFile.getName() + "-" + tgzEntry.getName(), n);
-                            }
-                        }
-                        zipInputStream.closeEntry();
-                    } else {
-                        LOG.warn("Unexpected ZIP file content: "+ entry);
-                    }
+    /**
+     * Whether the file is an archive of logs, which is indexed by the LogsIndexer.
+     */
+    public static boolean isLogArchive(String name) {
+        return name.contains("logs");
+    }
+
+    /**
+     * Starts the metrics reporters and the workers. Archives can be indexed until {@link #finish()} is called.
+     */
+    public void start() throws IOException {
+        metricsReporter = ConsoleReporter.forRegistry(metrics)
+                .convertRatesTo(TimeUnit.SECONDS)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build();
+        metricsReporter.start(30, TimeUnit.SECONDS);
+        jmxReporter = JmxReporter.forRegistry(metrics).inDomain("flink-logs-indexer").build();
+        jmxReporter.start();
+        try {
+            metricsServer = new PrometheusMetricsServer(metrics,
+                    new InetSocketAddress(parameters.get("metrics.host", "localhost"), parameters.getInt("metrics.port", 9249)));
+        } catch (IOException e) {
+            LOG.warn("Unable to start the metrics endpoint", e);
+        }
+
+        journal = new IngestionJournal(new File(parameters.get("journal", "indexer-journal.tsv")));
+        catalog = BuildCatalog.fromParameters(parameters);
+
+        // the entries of the archives are processed independently by the workers. The semaphore bounds the number
+        // of queued archives, the BulkIndexWriter blocks the workers while ES can not take more bulk requests.
+        parallelism = parameters.getInt("concurrent-processing", Runtime.getRuntime().availableProcessors());
+        ThreadPoolExecutor workerPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(parallelism);
+        workers = workerPool;
+        ThreadPoolExecutor inflaterPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(parameters.getInt("gzip.inflaters", Runtime.getRuntime().availableProcessors()));
+        inflaters = inflaterPool;
+        queuedArchives = new Semaphore(2 * parallelism);
+        metrics.register("workers.queued-entries", (Gauge<Integer>) () -> workerPool.getQueue().size());
+        metrics.register("gzip.queued-blocks", (Gauge<Integer>) () -> inflaterPool.getQueue().size());
+        metrics.register("archives.in-progress", (Gauge<Integer>) () -> 2 * parallelism - queuedArchives.availablePermits());
+    }
+
+    /**
+     * Hands the entries of the archive to the workers. Blocks while too many archives are queued.
+     */
+    public void indexArchive(File logFile) throws InterruptedException {
+        ArchiveProgress archive = new ArchiveProgress(logFile, journal);
+        archivesDone.add(archive.acknowledged().thenAccept(success -> finishArchive(archive, success, false)));
+
+        queuedArchives.acquire();
+        archivesRead.add(processArchive(archive, workers).handle((ignored, t) -> {
+            if(t != null) {
+                LOG.warn("Error while processing file " + logFile, t);
+                archive.markFailed();
+            }
+            archive.seal();
+            queuedArchives.release();
+            return null;
+        }));
+    }
+
+    /**
+     * Indexes a zip archive which is read from a stream, for example while it is being downloaded. The entries are
+     * read one after another by the calling thread, and the stream is read until its end.
+     *
+     * @param name the name of the archive, as if it was a file in the data dir
+     * @throws IOException if the stream could not be read until its end
+     */
+    public void indexStream(String name, InputStream in) throws IOException {
+        ArchiveProgress archive = new ArchiveProgress(new File(name), journal);
+        archivesDone.add(archive.acknowledged().thenAccept(success -> finishArchive(archive, success, true)));
+        LOG.info("Processing stream of " + name);
+        try {
+            ZipArchiveInputStream zip = new ZipArchiveInputStream(in, "UTF8", true, true);
+            ZipArchiveEntry entry;
+            while((entry = zip.getNextZipEntry()) != null) {
+                String n = entry.getName();
+                if(!isTgzEntry(n) || archive.getResumeOffset(n) == IngestionJournal.COMPLETE) {
+                    LOG.info("Skipping {}", n);
+                    continue;
                 }
+                processEntry(n, archive.newReader(), () -> new CloseShieldInputStream(zip));
             }
-            // move to "done" directory
-            Files.move(logFile, new File(parameters.get("done-data-dir", "done-data/") + logFile.getName()));
-            metricsFilesProcessed.mark();
+            // the remaining bytes (the central directory) are read as well, for streams which are copied while reading
+            IOUtils.skip(in, Long.MAX_VALUE);
+        } catch (IOException | RuntimeException e) {
+            archive.markFailed();
+            throw e;
+        } finally {
+            archive.seal();
         }
+    }
+
+    /**
+     * Waits until all archives have been read and acknowledged (for up to 10 seconds), and stops the workers.
+     */
+    public void finish() throws IOException, InterruptedException {
+        // the entries are submitted by the workers, so the workers can only be shut down once all archives have been read
+        CompletableFuture.allOf(archivesRead.toArray(new CompletableFuture<?>[0])).join();
+        workers.shutdown();
+        inflaters.shutdown();
+
         LOG.info("Done processing the files ...");
-        bulkProcessor.awaitClose(10, TimeUnit.SECONDS);
+        if(!bulkWriter.awaitClose(10, TimeUnit.SECONDS)) {
+            LOG.warn("Not all bulk requests have finished.");
+        }
+        synchronized(archivesDone) {
+            for(CompletableFuture<Void> archiveDone: archivesDone) {
+                if(!archiveDone.isDone()) {
+                    LOG.warn("Archive has not been acknowledged completely. It will be processed again in the next run.");
+                }
+            }
+        }
+        journal.close();
+        catalog.close();
         metricsReporter.close();
+        jmxReporter.close();
+        if(metricsServer != null) {
+            metricsServer.close();
+        }
+    }
+
+    /**
+     * Reads the central directory of the zip file and hands each tgz entry to a separate worker. The returned
+     * future completes once all entries have been read and their documents have been handed to the BulkIndexWriter.
+     */
+    private CompletableFuture<Void> processArchive(ArchiveProgress archive, ExecutorService executor) {
+        File logFile = archive.getArchive();
+        return CompletableFuture.supplyAsync(() -> openArchive(logFile), executor).thenCompose(zipFile -> {
+            List<CompletableFuture<Void>> entriesRead = new ArrayList<>();
+            for(ZipArchiveEntry entry: Collections.list(zipFile.getEntries())) {
+                String n = entry.getName();
+                if(!isTgzEntry(n)) {
+                    // the entry is not read at all
+                    LOG.warn("Unexpected ZIP file content: " + entry);
+                    continue;
+                }
+                if(archive.getResumeOffset(n) == IngestionJournal.COMPLETE) {
+                    LOG.info("Skipping {}, it has been indexed already", n);
+                    continue;
+                }
+                ArchiveProgress reader = archive.newReader();
+                entriesRead.add(CompletableFuture.runAsync(() -> processEntry(n, reader, () -> zipFile.getInputStream(entry)), executor));
+            }
+            return CompletableFuture.allOf(entriesRead.toArray(new CompletableFuture<?>[0]))
+                    .whenComplete((ignored, t) -> ZipFile.closeQuietly(zipFile));
+        });
+    }
+
+    private static ZipFile openArchive(File logFile) {
+        LOG.info("Processing " + logFile);
+        try {
+            // they are zip files. The entries are read with positional reads on the channel, so they can be read concurrently
+            return new ZipFile(FileChannel.open(logFile.toPath(), StandardOpenOption.READ), logFile.getPath(), "UTF8", true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open " + logFile, e);
+        }
+    }
+
+    private static boolean isTgzEntry(String name) {
+        return name.endsWith(".tgz") || name.endsWith(".tar.gz");
+    }
+
+    private interface EntryOpener {
+        InputStream open() throws IOException;
+    }
+
+    private void processEntry(String n, ArchiveProgress reader, EntryOpener entryOpener) {
+        File logFile = reader.getArchive();
+        LOG.info("Uncompressing " + n);
+        // the tgz is inflated by a separate thread, while this thread splits and sends the log records
+        try(InputStream zipEntryInput = entryOpener.open();
+                InputStream gzi = new ParallelGzipInputStream(zipEntryInput,
+                        inflaters,
+                        parameters.getInt("gzip.buffer-kb", 1024) * 1024,
+                        parameters.getInt("gzip.read-ahead", 4),
+                        metrics)) {
+            ArchiveInputStream tgzInput = new TarArchiveInputStream(gzi);
+            ArchiveEntry tgzEntry;
+            while ((tgzEntry = tgzInput.getNextEntry()) != null) {
+                LOG.info("tgz entry: " + tgzEntry.getName());
+                if (tgzEntry.getName().endsWith(".log")) {
+                    String buildname = logFile.getName() + "-" + tgzEntry.getName();
+                    long resumeOffset = reader.getResumeOffset(buildname);
+                    if(resumeOffset == IngestionJournal.COMPLETE) {
+                        LOG.info("Skipping {}, it has been indexed already", buildname);
+                        continue;
+                    }
+                    if(resumeOffset > 0) {
+                        LOG.info("Resuming {} at offset {}", buildname, resumeOffset);
+                        IOUtils.skipFully(tgzInput, resumeOffset);
+                    }
+                    parseLogfile(tgzInput, buildname, n, reader, resumeOffset);
+                    reader.entryCompleted(buildname);
+                }
+            }
+            reader.entryCompleted(n);
+        } catch (Throwable t) {
+            LOG.warn("Error while processing " + n + " of file " + logFile, t);
+            reader.markFailed();
+        } finally {
+            try {
+                // documents that have been read before a failure still need to be acknowledged
+                bulkWriter.flush(reader);
+            } catch (IOException e) {
+                LOG.warn("Unable to send the remaining documents of " + logFile, e);
+                reader.markFailed();
+            }
+        }
+    }
+
+    /**
+     * Move the archive to the "done" directory, once all of its documents have been acknowledged by ES. Streamed
+     * archives are only marked as done.
+     */
+    private void finishArchive(ArchiveProgress archive, boolean success, boolean streamed) {
+        File logFile = archive.getArchive();
+        if(!success) {
+            LOG.warn("Not all documents of {} have been indexed. {}", logFile, streamed ? "It is indexed again in the next run." : "Leaving it in the data dir.");
+            return;
+        }
+        try {
+            if(!streamed) {
+                Files.move(logFile, new File(parameters.get("done-data-dir", "done-data/") + logFile.getName()));
+            }
+            journal.archiveDone(logFile.getName());
+            metricsFilesProcessed.mark();
+        } catch (IOException e) {
+            LOG.warn("Unable to move " + logFile + " to the done directory", e);
+            return;
+        }
+        try {
+            catalog.markIndexed(logFile.getName());
+        } catch (SQLException e) {
+            LOG.warn("Unable to mark " + logFile + " as indexed in the build catalog", e);
+        }
     }
 
     /**
@@ -155,6 +354,13 @@ public class LogsIndexer {
      */
     @VisibleForTesting
     public void parseLogfile(InputStream logStream, String buildname, String innerArchiveName) throws IOException {
+        parseLogfile(logStream, buildname, innerArchiveName, new ArchiveProgress(null), 0L);
+    }
+
+    /**
+     * @param streamOffset position of the stream in the log file, if indexing resumes after a restart
+     */
+    private void parseLogfile(InputStream logStream, String buildname, String innerArchiveName, ArchiveProgress archive, long streamOffset) throws IOException {
         Instant tsInst;
         // this parses the "old"? format, such as: "logs-ci-blinkplanner/20200629.4.tar.gz" or "logs-ci-e2e/20200629.4.tgz"
         if(innerArchiveName.contains("/20")) { // this will stop working in the year 2100+
@@ -164,6 +370,8 @@ public class LogsIndexer {
                 throw new RuntimeException("Expected to find date in inner archive name " + innerArchiveName);
             }
             SimpleDateFormat timePattern = new SimpleDateFormat("yyyyMMdd");
+            // the log timestamps are in UTC as well
+            timePattern.setTimeZone(TimeZone.getTimeZone("UTC"));
             try {
                 tsInst = timePattern.parse(m.group(1)).toInstant();
             } catch (ParseException e) {
@@ -180,74 +388,44 @@ public class LogsIndexer {
         }
         LOG.info("parsed " + tsInst);
         Instant baseTsBeginningOfDay = tsInst.truncatedTo(ChronoUnit.SECONDS).truncatedTo(ChronoUnit.MINUTES).truncatedTo(ChronoUnit.HOURS);
-        Instant logEventTime = tsInst;
         LOG.info("begin of day " + tsInst);
 
-        Pattern logTimestampPattern = Pattern.compile("^([0-9:,]+) \\[.*");
-        SimpleDateFormat timePattern = new SimpleDateFormat("HH:mm:ss,SSS");
+        long beginningOfDay = baseTsBeginningOfDay.toEpochMilli();
+        long logEventTime = tsInst.toEpochMilli();
 
         // we split the input stream on "\n[0-9]" (the number is included), so that we catch all log lines + exceptions.
-        InputStreamReader is = new InputStreamReader(logStream);
-        StringBuilder sb = new StringBuilder();
-        int next;
-        String log = null;
+        LogRecordSplitter splitter = new LogRecordSplitter(logStream, LogRecordSplitter.DEFAULT_BUFFER_SIZE, streamOffset);
+        LogRecord log;
+        long records = 0;
         while(true) {
-            next = is.read();
-            // search for newline + number
-            if(next == '\n') {
-                next = is.read();
-                if(next >= 48 && next <= 57) { // is number
-                    // we know that a log statement is finished
-                    log = sb.toString();
-                    sb.setLength(0);
-                    sb.append((char)next); // the number for the beginning of the next line
-                } else {
-                    // restore what we've consumed already
-                    sb.append('\n');
-                    sb.append((char)next);
-                }
-            } else if(next == -1) {
-                // end of stream
-                log = sb.toString();
-                sb.setLength(0);
-            } else {
-                // regular case, just append to buffer
-                sb.append((char)next);
+            // only every 32nd record is timed, to keep the overhead of the measurement low
+            boolean sampled = (records++ & 31) == 0;
+            long start = sampled ? System.nanoTime() : 0L;
+            if((log = splitter.next()) == null) {
+                break;
             }
-            if(log != null) {
-                Matcher timeMatcher = logTimestampPattern.matcher(log);
-                if(timeMatcher.find()) {
-                    Instant time = null;
-                    String timeString = timeMatcher.group(1);
-                    try {
-                        time = timePattern.parse(timeString).toInstant();
-                        logEventTime = baseTsBeginningOfDay.plusMillis(time.toEpochMilli());
-                    } catch (ParseException e) {
-                        LOG.debug("Error parsing date from log line '{}' ", log, e);
-                    }
-                }
-                emitLogToElastic(log, buildname, logEventTime.toEpochMilli());
-                log = null;
+            long split = sampled ? System.nanoTime() : 0L;
+            // records without a timestamp (such as stdout output) get the time of the previous record
+            long timeOfDay = LogTimestampParser.parseTimeOfDay(log.getData(), log.getOffset(), log.getLength());
+            if(timeOfDay != LogTimestampParser.NO_TIMESTAMP) {
+                logEventTime = beginningOfDay + timeOfDay;
             }
-            if(next == -1) {
-                break;
+            if(sampled) {
+                long parsed = System.nanoTime();
+                metricsSplit.update(split - start, TimeUnit.NANOSECONDS);
+                metricsTimestamp.update(parsed - split, TimeUnit.NANOSECONDS);
             }
+            emitLogToElastic(log, buildname, logEventTime, archive);
         }
     }
 
-    protected void emitLogToElastic(String line, String buildname, long timestamp) throws IOException {
-        XContentBuilder builder = XContentFactory.jsonBuilder();
-        builder.startObject();
-        {
-            builder.field("buildname", buildname);
-            builder.field("line", line);
-            builder.timeField("log-ts", timestamp);
-        }
-        builder.endObject();
-
+    /**
+     * Sends a log record to ES. The record is only valid during this call.
+     */
+    protected void emitLogToElastic(LogRecord line, String buildname, long timestamp, ArchiveProgress archive) throws IOException {
         metricsLogsIndexed.mark();
 
-        bulkProcessor.add(new IndexRequest("logs").source(builder));
+        bulkWriter.add(archive, line, buildname, timestamp);
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
@@ -0,0 +1,259 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import okhttp3.Headers;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Local store of Azure REST responses, so that repeated syncs do not fetch the same metadata again.
+ *
+ * <p>Responses of a finished build (artifacts, timeline) never change. They are stored under the build ID and a
+ * name, see {@link #buildKey}, and are used without asking the server. Other responses (the build listings) are
+ * stored under their URL, if the server sent an ETag, and are revalidated with If-None-Match.
+ *
+ * <pre>
+ * responses (key, build_id, etag, headers, body, size, used_at)  body is deflated, size is the length of the stored body
+ * </pre>
+ * If the stored bodies exceed maxBytes, the least recently used responses are evicted.
+ *
+ * <p>The cache is shared by the threads of the HTTP client, all methods are synchronized.
+ */
+public class MetadataCache implements Closeable {
+    private final static Logger LOG = LoggerFactory.getLogger(MetadataCache.class);
+
+    private final Connection connection;
+    private final long maxBytes;
+    private final Counter hits;
+    private final Counter revalidated;
+    private final Counter misses;
+    private final Counter evictions;
+    // size of the stored bodies
+    private long bytes;
+    // orders the entries by their last use, also within the same millisecond
+    private long clock;
+
+    public MetadataCache(String url, long maxBytes, MetricRegistry metrics) throws SQLException {
+        this.connection = DriverManager.getConnection(url);
+        this.maxBytes = maxBytes;
+        try(Statement statement = connection.createStatement()) {
+            // a lost write only costs a request
+            statement.execute("PRAGMA synchronous = OFF");
+            statement.execute("CREATE TABLE IF NOT EXISTS responses (key TEXT PRIMARY KEY, build_id INTEGER, etag TEXT, "
+                    + "headers TEXT NOT NULL, body BLOB NOT NULL, size INTEGER NOT NULL, used_at INTEGER NOT NULL)");
+            statement.execute("CREATE INDEX IF NOT EXISTS responses_used_at ON responses (used_at)");
+            try(ResultSet result = statement.executeQuery("SELECT COALESCE(SUM(size), 0), COALESCE(MAX(used_at), 0) FROM responses")) {
+                result.next();
+                bytes = result.getLong(1);
+                clock = Math.max(System.currentTimeMillis(), result.getLong(2));
+            }
+        }
+        this.hits = metrics.counter("metadata-cache.hits");
+        this.revalidated = metrics.counter("metadata-cache.revalidated");
+        this.misses = metrics.counter("metadata-cache.misses");
+        this.evictions = metrics.counter("metadata-cache.evictions");
+        metrics.register("metadata-cache.bytes", (Gauge<Long>) this::getBytes);
+    }
+
+    /**
+     * Opens the cache configured by "metadata-cache", with a size of "metadata-cache.max-mb".
+     */
+    public static MetadataCache fromParameters(ParameterTool parameters, MetricRegistry metrics) throws IOException {
+        try {
+            return new MetadataCache(parameters.get("metadata-cache", "jdbc:sqlite:metadata-cache.sqlite"),
+                    parameters.getLong("metadata-cache.max-mb", 256) * 1024 * 1024, metrics);
+        } catch (SQLException e) {
+            throw new IOException("Unable to open the metadata cache", e);
+        }
+    }
+
+    /**
+     * The key of a response of a finished build, e.g. of its "artifacts".
+     */
+    public static String buildKey(int buildId, String name) {
+        return "build/" + buildId + "/" + name;
+    }
+
+    public static class Entry {
+        // null for the responses of finished builds
+        public final String etag;
+        public final Headers headers;
+        public final byte[] body;
+
+        Entry(String etag, Headers headers, byte[] body) {
+            this.etag = etag;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Returns the stored response, or null.
+     */
+    public synchronized Entry get(String key) throws IOException {
+        try {
+            Entry entry = null;
+            try(PreparedStatement statement = connection.prepareStatement("SELECT etag, headers, body FROM responses WHERE key = ?")) {
+                statement.setString(1, key);
+                try(ResultSet result = statement.executeQuery()) {
+                    if(result.next()) {
+                        entry = new Entry(result.getString(1), parseHeaders(result.getString(2)), inflate(result.getBytes(3)));
+                    }
+                }
+            }
+            if(entry != null) {
+                try(PreparedStatement statement = connection.prepareStatement("UPDATE responses SET used_at = ? WHERE key = ?")) {
+                    statement.setLong(1, ++clock);
+                    statement.setString(2, key);
+                    statement.execute();
+                }
+            }
+            return entry;
+        } catch (SQLException e) {
+            throw new IOException("Unable to read " + key + " from the metadata cache", e);
+        }
+    }
+
+    /**
+     * Stores a response, and evicts the least recently used responses if the cache is full.
+     *
+     * @param buildId the build of a response which never changes, or null
+     * @param etag the ETag of a response which may change, or null
+     */
+    public synchronized void put(String key, Integer buildId, String etag, Headers headers, byte[] body) throws IOException {
+        byte[] stored = deflate(body);
+        try {
+            bytes -= getSize(key);
+            try(PreparedStatement statement = connection.prepareStatement("INSERT OR REPLACE INTO responses "
+                    + "(key, build_id, etag, headers, body, size, used_at) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                statement.setString(1, key);
+                if(buildId != null) {
+                    statement.setInt(2, buildId);
+                } else {
+                    statement.setNull(2, Types.INTEGER);
+                }
+                statement.setString(3, etag);
+                statement.setString(4, headers.toString());
+                statement.setBytes(5, stored);
+                statement.setLong(6, stored.length);
+                statement.setLong(7, ++clock);
+                statement.execute();
+            }
+            bytes += stored.length;
+            evict();
+        } catch (SQLException e) {
+            throw new IOException("Unable to store " + key + " in the metadata cache", e);
+        }
+    }
+
+    private long getSize(String key) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("SELECT size FROM responses WHERE key = ?")) {
+            statement.setString(1, key);
+            try(ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getLong(1) : 0;
+            }
+        }
+    }
+
+    private void evict() throws SQLException {
+        while(bytes > maxBytes) {
+            try(PreparedStatement select = connection.prepareStatement("SELECT key, size FROM responses ORDER BY used_at LIMIT 1");
+                ResultSet oldest = select.executeQuery();
+                PreparedStatement delete = connection.prepareStatement("DELETE FROM responses WHERE key = ?")) {
+                if(!oldest.next()) {
+                    bytes = 0;
+                    return;
+                }
+                delete.setString(1, oldest.getString(1));
+                delete.execute();
+                bytes -= oldest.getLong(2);
+                evictions.inc();
+            }
+        }
+    }
+
+    /**
+     * Counts a response which was served from the cache.
+     *
+     * @param revalidated whether the server was asked if the response is still valid
+     */
+    public void recordHit(boolean revalidated) {
+        hits.inc();
+        if(revalidated) {
+            this.revalidated.inc();
+        }
+    }
+
+    /**
+     * Counts a response which had to be fetched.
+     */
+    public void recordMiss() {
+        misses.inc();
+    }
+
+    public long getHits() {
+        return hits.getCount();
+    }
+
+    public long getMisses() {
+        return misses.getCount();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static Headers parseHeaders(String headers) {
+        Headers.Builder builder = new Headers.Builder();
+        for(String line: headers.split("\n")) {
+            if(!line.isEmpty()) {
+                builder.add(line);
+            }
+        }
+        return builder.build();
+    }
+
+    private static byte[] deflate(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        try(DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(body);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] stored) throws IOException {
+        try(InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(stored))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        LOG.info("Metadata cache: {} hits ({} revalidated), {} misses, {} evictions, {} bytes stored",
+                hits.getCount(), revalidated.getCount(), misses.getCount(), evictions.getCount(), bytes);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw new IOException("Unable to close the metadata cache", e);
+        }
+    }
+}
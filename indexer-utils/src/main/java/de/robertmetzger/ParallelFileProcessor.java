@@ -0,0 +1,155 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Processes a set of files with a fixed number of worker threads and waits until all of them are done.
+ *
+ * <p>The files are put into a bounded queue, largest first, and the workers take the next file whenever they are
+ * done with one. Starting with the large files keeps a single large file from being the only work left at the end.
+ * Failures of single files are recorded in the {@link Summary} and do not stop the other files.
+ *
+ * <p>The metrics are registered under the given name: the meters {@code <name>.files}, {@code <name>.failed-files}
+ * and {@code <name>.bytes}, and the timer {@code <name>.file-duration}.
+ */
+public class ParallelFileProcessor {
+    private final static Logger LOG = LoggerFactory.getLogger(ParallelFileProcessor.class);
+
+    private final String name;
+    private final int parallelism;
+    private final Meter metricsFiles;
+    private final Meter metricsFailedFiles;
+    private final Meter metricsBytes;
+    private final Timer metricsFileDuration;
+
+    public interface FileTask {
+        void process(File file) throws Exception;
+    }
+
+    public ParallelFileProcessor(String name, int parallelism, MetricRegistry metrics) {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("The parallelism has to be at least 1, got " + parallelism);
+        }
+        this.name = name;
+        this.parallelism = parallelism;
+        this.metricsFiles = metrics.meter(name + ".files");
+        this.metricsFailedFiles = metrics.meter(name + ".failed-files");
+        this.metricsBytes = metrics.meter(name + ".bytes");
+        this.metricsFileDuration = metrics.timer(name + ".file-duration", SummingTimer::new);
+    }
+
+    /**
+     * Processes all files and returns once every file is either processed or failed.
+     */
+    public Summary process(List<File> files, FileTask task) throws InterruptedException {
+        List<File> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparingLong(File::length).reversed());
+        BlockingQueue<File> queue = new ArrayBlockingQueue<>(Math.max(1, sorted.size()), false, sorted);
+
+        Summary summary = new Summary(files.size());
+        List<Thread> workers = new ArrayList<>(parallelism);
+        for(int i = 0; i < Math.min(parallelism, sorted.size()); i++) {
+            Thread worker = new Thread(() -> {
+                File file;
+                while((file = queue.poll()) != null && !Thread.currentThread().isInterrupted()) {
+                    processFile(file, task, summary);
+                }
+            }, name + "-worker-" + i);
+            worker.start();
+            workers.add(worker);
+        }
+        try {
+            for(Thread worker: workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            for(Thread worker: workers) {
+                worker.interrupt();
+            }
+            throw e;
+        }
+        summary.finish();
+        LOG.info("{}: {}", name, summary);
+        return summary;
+    }
+
+    private void processFile(File file, FileTask task, Summary summary) {
+        long length = file.length();
+        try(Timer.Context ignored = metricsFileDuration.time()) {
+            task.process(file);
+            metricsFiles.mark();
+            metricsBytes.mark(length);
+            summary.succeeded(file, length);
+        } catch (Throwable t) {
+            LOG.warn("Error while processing file {}", file, t);
+            metricsFailedFiles.mark();
+            summary.failed(file, t);
+        }
+    }
+
+    /**
+     * The outcome of processing a set of files.
+     */
+    public static class Summary {
+        private final int files;
+        private final long startMillis = System.currentTimeMillis();
+        private final List<File> succeeded = new ArrayList<>();
+        private final Map<File, Throwable> failed = new LinkedHashMap<>();
+        private long bytes = 0;
+        private long durationMillis = -1;
+
+        private Summary(int files) {
+            this.files = files;
+        }
+
+        private synchronized void succeeded(File file, long length) {
+            succeeded.add(file);
+            bytes += length;
+        }
+
+        private synchronized void failed(File file, Throwable cause) {
+            failed.put(file, cause);
+        }
+
+        private synchronized void finish() {
+            durationMillis = System.currentTimeMillis() - startMillis;
+        }
+
+        public synchronized List<File> getSucceeded() {
+            return Collections.unmodifiableList(new ArrayList<>(succeeded));
+        }
+
+        public synchronized Map<File, Throwable> getFailed() {
+            return Collections.unmodifiableMap(new LinkedHashMap<>(failed));
+        }
+
+        /**
+         * True if every file has been processed successfully.
+         */
+        public synchronized boolean isSuccessful() {
+            return failed.isEmpty() && succeeded.size() == files;
+        }
+
+        @Override
+        public synchronized String toString() {
+            double seconds = Math.max(durationMillis, 1) / 1000.0;
+            return String.format("%d of %d files processed, %d failed, %.1f MB in %.1f s (%.1f files/s, %.1f MB/s)",
+                    succeeded.size(), files, failed.size(), bytes / 1024.0 / 1024.0, seconds,
+                    succeeded.size() / seconds, bytes / 1024.0 / 1024.0 / seconds);
+        }
+    }
+}
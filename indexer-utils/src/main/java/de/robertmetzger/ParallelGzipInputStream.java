@@ -0,0 +1,307 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip stream on a separate thread, so that inflating overlaps with consuming the data.
+ *
+ * <p>A reader thread inflates the stream into a ring of large buffers, {@code readAhead} of them can be filled
+ * ahead of the consumer. If the stream consists of BGZF blocks (gzip members that record their compressed size in
+ * the "BC" extra field, as written by bgzip), the reader thread only splits the stream into members and the members
+ * are inflated in parallel by the given executor. Plain gzip streams can not be split without inflating them, so
+ * they are inflated by the reader thread.
+ *
+ * <p>Like {@code new GzipCompressorInputStream(in, false)}, plain gzip streams are only read up to the end of the
+ * first member. Closing this stream stops the reader thread, but does not close the underlying stream. The reader
+ * thread is not interrupted, as an interrupt closes an interruptible channel which the underlying stream reads from
+ * (such as a {@link java.nio.channels.FileChannel} shared by all entries of a zip file). Instead, it finishes its
+ * current read and then stops.
+ *
+ * <p>The time spent inflating a buffer or block is reported to the "gzip.inflate" timer, the time the consumer
+ * waits for decompressed data to the "gzip.wait" timer.
+ */
+public class ParallelGzipInputStream extends InputStream {
+    private final static Logger LOG = LoggerFactory.getLogger(ParallelGzipInputStream.class);
+    private static final AtomicInteger READER_THREAD_COUNT = new AtomicInteger();
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private static final int GZIP_HEADER_LENGTH = 10;
+    private static final int FEXTRA = 4;
+    private static final Chunk END_OF_STREAM = new Chunk(new byte[0], -1, false);
+
+    private final InputStream compressed;
+    private final ExecutorService inflaters;
+    private final int bufferSize;
+    private final BlockingQueue<Future<Chunk>> chunks;
+    private final BlockingQueue<byte[]> freeBuffers = new LinkedBlockingQueue<>();
+    private final Thread reader;
+    private final Timer inflateTimer;
+    private final Timer waitTimer;
+    private final byte[] singleByte = new byte[1];
+
+    private volatile boolean closed = false;
+    private Chunk current;
+    private int position;
+    private boolean endOfStream = false;
+
+    /**
+     * @param inflaters executor for inflating BGZF blocks in parallel, may be null
+     */
+    public ParallelGzipInputStream(InputStream compressed, ExecutorService inflaters, int bufferSize, int readAhead) {
+        this(compressed, inflaters, bufferSize, readAhead, new MetricRegistry());
+    }
+
+    /**
+     * @param inflaters executor for inflating BGZF blocks in parallel, may be null
+     * @param metrics registry for the decompression timers
+     */
+    public ParallelGzipInputStream(InputStream compressed, ExecutorService inflaters, int bufferSize, int readAhead, MetricRegistry metrics) {
+        this.compressed = compressed;
+        this.inflateTimer = metrics.timer("gzip.inflate", SummingTimer::new);
+        this.waitTimer = metrics.timer("gzip.wait", SummingTimer::new);
+        this.inflaters = inflaters;
+        this.bufferSize = bufferSize;
+        this.chunks = new ArrayBlockingQueue<>(Math.max(1, readAhead));
+        this.reader = new Thread(this::readCompressed, "gzip-reader-" + READER_THREAD_COUNT.incrementAndGet());
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    private void readCompressed() {
+        try {
+            BufferedInputStream in = new BufferedInputStream(compressed, 64 * 1024);
+            if(inflaters != null && isBgzf(in)) {
+                LOG.debug("Inflating BGZF blocks in parallel");
+                readBgzfBlocks(in);
+            } else {
+                inflateSequentially(in);
+            }
+            put(CompletableFuture.completedFuture(END_OF_STREAM));
+        } catch (Throwable t) {
+            CompletableFuture<Chunk> failure = new CompletableFuture<>();
+            failure.completeExceptionally(t);
+            try {
+                put(failure);
+            } catch (InterruptedException e) {
+                LOG.debug("Interrupted while handing over a failure", e);
+            }
+        }
+    }
+
+    /**
+     * Hands a chunk to the consumer. Gives up once the stream has been closed, as nobody takes the chunk anymore.
+     */
+    private void put(Future<Chunk> chunk) throws InterruptedException {
+        while(!closed) {
+            if(chunks.offer(chunk, 10, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    private void inflateSequentially(InputStream in) throws IOException, InterruptedException {
+        // the gzip stream is not closed, as that would close the underlying stream
+        GzipCompressorInputStream gzip = new GzipCompressorInputStream(in, false);
+        while(!closed) {
+            byte[] buffer = freeBuffers.poll();
+            if(buffer == null) {
+                buffer = new byte[bufferSize];
+            }
+            long start = System.nanoTime();
+            int length = IOUtils.read(gzip, buffer);
+            inflateTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if(length > 0) {
+                put(CompletableFuture.completedFuture(new Chunk(buffer, length, true)));
+            }
+            if(length < buffer.length) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks if the first member has a BGZF "BC" extra field, without consuming the stream.
+     */
+    private static boolean isBgzf(BufferedInputStream in) throws IOException {
+        byte[] header = new byte[18];
+        in.mark(header.length);
+        int read = IOUtils.read(in, header);
+        in.reset();
+        return read == header.length && getBlockSize(header) > 0;
+    }
+
+    /**
+     * Returns the total size of the BGZF block (BSIZE + 1), or -1 if the header is not a BGZF header.
+     * The header must contain at least the first 18 bytes of the member.
+     */
+    private static int getBlockSize(byte[] header) {
+        if((header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B || header[2] != 8 || (header[3] & FEXTRA) == 0) {
+            return -1;
+        }
+        int extraLength = readShort(header, 10);
+        // the BGZF subfield is the only subfield written by bgzip
+        if(extraLength < 6 || header[12] != 'B' || header[13] != 'C' || readShort(header, 14) != 2) {
+            return -1;
+        }
+        return readShort(header, 16) + 1;
+    }
+
+    private void readBgzfBlocks(InputStream in) throws IOException, InterruptedException {
+        byte[] header = new byte[18];
+        while(!closed) {
+            int read = IOUtils.read(in, header);
+            if(read == 0) {
+                return;
+            }
+            int blockSize = read == header.length ? getBlockSize(header) : -1;
+            if(blockSize < 0) {
+                throw new IOException("Unexpected gzip member in BGZF stream");
+            }
+            byte[] block = new byte[blockSize];
+            System.arraycopy(header, 0, block, 0, header.length);
+            IOUtils.readFully(in, block, header.length, blockSize - header.length);
+            put(inflaters.submit(() -> inflateBlock(block)));
+        }
+    }
+
+    private Chunk inflateBlock(byte[] block) throws IOException, DataFormatException {
+        long start = System.nanoTime();
+        int dataOffset = GZIP_HEADER_LENGTH + 2 + readShort(block, 10);
+        int trailerOffset = block.length - 8;
+        int uncompressedSize = readInt(block, trailerOffset + 4);
+        byte[] uncompressed = new byte[uncompressedSize];
+
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(block, dataOffset, trailerOffset - dataOffset);
+        int length = 0;
+        while(length < uncompressedSize && !inflater.finished()) {
+            int inflated = inflater.inflate(uncompressed, length, uncompressedSize - length);
+            if(inflated == 0 && inflater.needsInput()) {
+                throw new EOFException("Truncated BGZF block");
+            }
+            length += inflated;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(uncompressed, 0, length);
+        if(length != uncompressedSize || (int) crc.getValue() != readInt(block, trailerOffset)) {
+            throw new IOException("Corrupt BGZF block");
+        }
+        inflateTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return new Chunk(uncompressed, length, false);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(singleByte, 0, 1);
+        return read == -1 ? -1 : singleByte[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        while(current == null || position == current.length) {
+            if(!nextChunk()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    private boolean nextChunk() throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        if(current != null && current.pooled) {
+            freeBuffers.offer(current.data);
+        }
+        current = null;
+        if(endOfStream) {
+            return false;
+        }
+        Chunk next;
+        try(Timer.Context ignored = waitTimer.time()) {
+            next = chunks.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for decompressed data");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("Error while decompressing", e.getCause());
+        }
+        if(next == END_OF_STREAM) {
+            endOfStream = true;
+            return false;
+        }
+        current = next;
+        position = 0;
+        return true;
+    }
+
+    /**
+     * Stops the reader thread, once it has finished its current read. The underlying stream is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        chunks.clear();
+        try {
+            // make sure the reader thread does not touch the underlying stream anymore
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping the gzip reader");
+        }
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return readShort(data, offset) | readShort(data, offset + 2) << 16;
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        private final int length;
+        // buffers of the ring are handed back to the reader thread
+        private final boolean pooled;
+
+        private Chunk(byte[] data, int length, boolean pooled) {
+            this.data = data;
+            this.length = length;
+            this.pooled = pooled;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the metrics of a {@link MetricRegistry} in the Prometheus text format on "/metrics".
+ *
+ * <p>Meters are exported as counters (plus their one minute rate), histograms and timers as summaries. Timers
+ * are exported in seconds. Only a {@link SummingHistogram} or {@link SummingTimer} has a "_sum", other histograms
+ * and timers only have their quantiles and count. Metric names are prefixed with "logs_indexer_", dots and dashes become underscores.
+ */
+public class PrometheusMetricsServer implements Closeable {
+    private final static Logger LOG = LoggerFactory.getLogger(PrometheusMetricsServer.class);
+    private static final String PREFIX = "logs_indexer_";
+    private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.99, 0.999};
+    private static final double SECONDS_PER_NANO = 1.0 / TimeUnit.SECONDS.toNanos(1);
+
+    private final MetricRegistry registry;
+    private final HttpServer server;
+
+    public PrometheusMetricsServer(MetricRegistry registry, InetSocketAddress address) throws IOException {
+        this.registry = registry;
+        this.server = HttpServer.create(address, 0);
+        this.server.createContext("/metrics", this::handle);
+        this.server.start();
+        LOG.info("Serving metrics on http://{}:{}/metrics", address.getHostString(), getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        StringWriter out = new StringWriter();
+        write(registry, out);
+        byte[] body = out.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(body);
+        }
+    }
+
+    /**
+     * Writes all metrics of the registry in the Prometheus text format.
+     */
+    public static void write(MetricRegistry registry, Writer out) throws IOException {
+        // dropwizard returns raw gauges
+        for(Map.Entry<String, ?> gauge: registry.getGauges().entrySet()) {
+            Object value = ((Gauge<?>) gauge.getValue()).getValue();
+            if(value instanceof Number) {
+                String name = sanitize(gauge.getKey());
+                writeType(out, name, "gauge");
+                writeSample(out, name, "", ((Number) value).doubleValue());
+            }
+        }
+        for(Map.Entry<String, Counter> counter: registry.getCounters().entrySet()) {
+            // dropwizard counters can be decremented
+            String name = sanitize(counter.getKey());
+            writeType(out, name, "gauge");
+            writeSample(out, name, "", counter.getValue().getCount());
+        }
+        for(Map.Entry<String, Meter> meter: registry.getMeters().entrySet()) {
+            String name = sanitize(meter.getKey());
+            writeType(out, name + "_total", "counter");
+            writeSample(out, name + "_total", "", meter.getValue().getCount());
+            writeType(out, name + "_m1_rate", "gauge");
+            writeSample(out, name + "_m1_rate", "", meter.getValue().getOneMinuteRate());
+        }
+        for(Map.Entry<String, Histogram> histogram: registry.getHistograms().entrySet()) {
+            Histogram value = histogram.getValue();
+            Long sum = value instanceof SummingHistogram ? ((SummingHistogram) value).getSum() : null;
+            writeSummary(out, sanitize(histogram.getKey()), value.getSnapshot(), value.getCount(), sum, 1.0);
+        }
+        for(Map.Entry<String, Timer> timer: registry.getTimers().entrySet()) {
+            Timer value = timer.getValue();
+            Long sum = value instanceof SummingTimer ? ((SummingTimer) value).getSum() : null;
+            writeSummary(out, sanitize(timer.getKey()) + "_seconds", value.getSnapshot(), value.getCount(), sum, SECONDS_PER_NANO);
+        }
+    }
+
+    /**
+     * @param sum the sum of all values, or null if it is not kept
+     */
+    private static void writeSummary(Writer out, String name, Snapshot snapshot, long count, Long sum, double scale) throws IOException {
+        writeType(out, name, "summary");
+        for(double quantile: QUANTILES) {
+            writeSample(out, name, "{quantile=\"" + quantile + "\"}", snapshot.getValue(quantile) * scale);
+        }
+        // an estimate from the snapshot would not be monotonic, so there is no "_sum" without the real sum
+        if(sum != null) {
+            writeSample(out, name + "_sum", "", sum * scale);
+        }
+        writeSample(out, name + "_count", "", count);
+    }
+
+    private static void writeType(Writer out, String name, String type) throws IOException {
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void writeSample(Writer out, String name, String labels, double value) throws IOException {
+        out.write(name + labels + " " + value + "\n");
+    }
+
+    static String sanitize(String name) {
+        return PREFIX + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,265 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the request rate of a client with a token bucket, and retries throttled or failed requests.
+ *
+ * <p>The bucket holds up to {@code burst} requests and is refilled with {@code requestsPerSecond}. The server's
+ * rate limit headers pause it: a Retry-After (on any response), or an X-RateLimit-Remaining of 0 until
+ * X-RateLimit-Reset, as sent by Azure DevOps.
+ *
+ * <p>GET requests which failed with an IOException, a 429 or a 5xx are retried up to {@code retries} times, after
+ * {@code backoffMs}, doubled for every further retry. All requests share a budget of up to {@code retryBudget} retries,
+ * and every request adds {@code retryRatio} retries to it. If the budget is used up, the failure is handed to the
+ * caller, instead of adding to the load of a struggling server. Clients which retry themselves, like the
+ * {@link FileDownloader}, use {@link #withoutRetries()} and draw on the same {@link #getRetryBudget() budget}.
+ */
+public class RateLimitInterceptor implements Interceptor {
+    private final static Logger LOG = LoggerFactory.getLogger(RateLimitInterceptor.class);
+    // pauses requested by the server beyond this are not waited for in full
+    private static final long MAX_PAUSE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private final TokenBucket bucket;
+    private final RetryBudget budget;
+    private final int retries;
+    private final long backoffMs;
+
+    /**
+     * @param requestsPerSecond the sustained request rate
+     * @param burst the number of requests which may be sent at once after a quiet period
+     * @param retries the number of retries of a request
+     * @param backoffMs the wait time before the first retry
+     * @param retryRatio the retries which each request adds to the budget, e.g. 0.1
+     * @param retryBudget the maximum number of retries in the budget, which is full at the start
+     */
+    public RateLimitInterceptor(double requestsPerSecond, int burst, int retries, long backoffMs, double retryRatio, int retryBudget) {
+        this(new TokenBucket(requestsPerSecond, burst), new RetryBudget(retryRatio, retryBudget), retries, backoffMs);
+    }
+
+    private RateLimitInterceptor(TokenBucket bucket, RetryBudget budget, int retries, long backoffMs) {
+        this.bucket = bucket;
+        this.budget = budget;
+        this.retries = retries;
+        this.backoffMs = backoffMs;
+    }
+
+    /**
+     * Returns an interceptor with the same rate limit and retry budget, which does not retry requests.
+     */
+    public RateLimitInterceptor withoutRetries() {
+        return new RateLimitInterceptor(bucket, budget, 0, backoffMs);
+    }
+
+    /**
+     * The retry budget shared by all requests of the client.
+     */
+    public RetryBudget getRetryBudget() {
+        return budget;
+    }
+
+    public static RateLimitInterceptor fromParameters(ParameterTool parameters) {
+        return new RateLimitInterceptor(parameters.getDouble("http.rate-limit", 20), parameters.getInt("http.burst", 20),
+                parameters.getInt("http.retries", 3), parameters.getLong("http.backoff-ms", 500),
+                parameters.getDouble("http.retry-ratio", 0.1), parameters.getInt("http.retry-budget", 10));
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        boolean idempotent = request.method().equals("GET") || request.method().equals("HEAD");
+        budget.deposit();
+        for(int attempt = 0; ; attempt++) {
+            acquire();
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                if(!idempotent || !canRetry(request, attempt, e.getMessage())) {
+                    throw e;
+                }
+                backoff(attempt);
+                continue;
+            }
+            applyRateLimitHeaders(response);
+            int code = response.code();
+            if(!idempotent || (code != 429 && code < 500) || !canRetry(request, attempt, "HTTP " + code)) {
+                return response;
+            }
+            response.close();
+            backoff(attempt);
+        }
+    }
+
+    private boolean canRetry(Request request, int attempt, String failure) {
+        if(attempt >= retries) {
+            return false;
+        }
+        if(!budget.withdraw()) {
+            LOG.warn("Not retrying {} ({}), the retry budget is used up", request.url(), failure);
+            return false;
+        }
+        LOG.info("Retrying {} ({})", request.url(), failure);
+        return true;
+    }
+
+    /**
+     * Pauses the bucket if the server asked for it.
+     */
+    private void applyRateLimitHeaders(Response response) {
+        long now = System.currentTimeMillis();
+        long pauseUntil = 0;
+        String retryAfter = response.header("Retry-After");
+        if(retryAfter != null) {
+            pauseUntil = parseRetryAfter(retryAfter, now);
+        }
+        String remaining = response.header("X-RateLimit-Remaining");
+        String reset = response.header("X-RateLimit-Reset");
+        if(remaining != null && reset != null) {
+            try {
+                if(Double.parseDouble(remaining) <= 0) {
+                    pauseUntil = Math.max(pauseUntil, Long.parseLong(reset) * 1000);
+                }
+            } catch (NumberFormatException e) {
+                LOG.debug("Invalid rate limit headers {} / {}", remaining, reset);
+            }
+        }
+        if(pauseUntil > now) {
+            long pause = Math.min(pauseUntil - now, MAX_PAUSE_MS);
+            LOG.info("Rate limited by {}. Pausing requests for {} ms", response.request().url().host(), pause);
+            bucket.pause(TimeUnit.MILLISECONDS.toNanos(pause));
+        }
+    }
+
+    /**
+     * Returns the time of a Retry-After in seconds or as a date, or 0.
+     */
+    private static long parseRetryAfter(String retryAfter, long now) {
+        try {
+            return now + (long) (Double.parseDouble(retryAfter) * 1000);
+        } catch (NumberFormatException e) {
+            try {
+                return ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e2) {
+                LOG.debug("Invalid Retry-After {}", retryAfter);
+                return 0;
+            }
+        }
+    }
+
+    private void acquire() throws IOException {
+        long wait = bucket.reserve();
+        if(wait > 0) {
+            sleep(wait);
+        }
+    }
+
+    private void backoff(int attempt) throws IOException {
+        sleep(TimeUnit.MILLISECONDS.toNanos(backoffMs << Math.min(attempt, 20)));
+    }
+
+    private static void sleep(long nanos) throws IOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+        }
+    }
+
+    /**
+     * Tokens for requests. A request may take a token which is not there yet, it then waits until the token has
+     * been added.
+     */
+    static class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        // negative if requests wait for tokens
+        private double tokens;
+        // the time up to which the tokens have been added, in the future while the bucket is paused
+        private long refilledAt;
+
+        TokenBucket(double tokensPerSecond, int capacity) {
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+        }
+
+        /**
+         * Takes a token, and returns the nanoseconds to wait before it may be used.
+         */
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            refill(now);
+            tokens -= 1;
+            long wait = Math.max(0, refilledAt - now);
+            if(tokens < 0) {
+                wait += (long) (-tokens / tokensPerNano);
+            }
+            return wait;
+        }
+
+        /**
+         * Adds no tokens for the next nanos, and takes away the tokens which are there.
+         */
+        synchronized void pause(long nanos) {
+            long now = System.nanoTime();
+            refill(now);
+            if(now + nanos > refilledAt) {
+                tokens = Math.min(tokens, 0);
+                refilledAt = now + nanos;
+            }
+        }
+
+        private void refill(long now) {
+            if(now > refilledAt) {
+                tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+                refilledAt = now;
+            }
+        }
+    }
+
+    public static class RetryBudget {
+        private final double ratio;
+        private final double max;
+        private double retries;
+
+        RetryBudget(double ratio, int max) {
+            this.ratio = ratio;
+            this.max = max;
+            this.retries = max;
+        }
+
+        /**
+         * Adds the retries of a request.
+         */
+        public synchronized void deposit() {
+            retries = Math.min(max, retries + ratio);
+        }
+
+        /**
+         * Takes a retry, if there is one.
+         */
+        public synchronized boolean withdraw() {
+            if(retries < 1) {
+                return false;
+            }
+            retries -= 1;
+            return true;
+        }
+    }
+}
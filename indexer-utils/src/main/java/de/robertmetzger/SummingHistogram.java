@@ -0,0 +1,30 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram which also keeps the sum of all its values, for the "_sum" of a Prometheus summary. The sum can not
+ * be derived from the snapshot, as the reservoir only holds a decaying sample of the values.
+ *
+ * <p>Register it with {@code metrics.histogram(name, SummingHistogram::new)}.
+ */
+public class SummingHistogram extends Histogram {
+    private final LongAdder sum = new LongAdder();
+
+    public SummingHistogram() {
+        super(new ExponentiallyDecayingReservoir());
+    }
+
+    @Override
+    public void update(long value) {
+        sum.add(value);
+        super.update(value);
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+}
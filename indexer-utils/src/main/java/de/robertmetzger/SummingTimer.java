@@ -0,0 +1,31 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.Clock;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+
+/**
+ * A timer which also keeps the sum of all durations, see {@link SummingHistogram}.
+ *
+ * <p>Register it with {@code metrics.timer(name, SummingTimer::new)}.
+ */
+public class SummingTimer extends Timer {
+    private final SummingHistogram durations;
+
+    public SummingTimer() {
+        this(new SummingHistogram());
+    }
+
+    private SummingTimer(SummingHistogram durations) {
+        // all updates of the timer, also by its contexts, go to the histogram
+        super(new Meter(), durations, Clock.defaultClock());
+        this.durations = durations;
+    }
+
+    /**
+     * The sum of all durations, in nanoseconds.
+     */
+    public long getSum() {
+        return durations.getSum();
+    }
+}
@@ -0,0 +1,236 @@
+package de.robertmetzger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes test results into the "test_results" table on a dedicated thread.
+ *
+ * <p>The analysis workers hand their results to a bounded queue. The writer thread drains the queue and inserts
+ * up to {@code batchSize} rows per transaction with a single prepared statement, so that SQLite does not have to
+ * sync the database for every row. The connection is switched to WAL mode with synchronous=NORMAL.
+ *
+ * <p>Results that already exist for the build are ignored. Analyzed files are recorded in the "processed_files"
+ * table in queue order, so a file is only recorded once all of its results are committed.
+ */
+public class TestResultWriter implements Closeable {
+    private final static Logger LOG = LoggerFactory.getLogger(TestResultWriter.class);
+    private static final String INSERT_TEST_RESULT = "INSERT OR IGNORE INTO \"test_results\" "
+            + "(\"name\", \"build_id\", \"duration\", \"commit\", \"run_date\", \"added_at\") "
+            + "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_PROCESSED_FILE = "INSERT OR REPLACE INTO \"processed_files\" "
+            + "(\"file_name\", \"build_id\", \"size\", \"results\", \"analyzed_at\") "
+            + "VALUES (?, ?, ?, ?, ?)";
+    // marks the end of the queue
+    private static final TestResult END = new TestResult(null, 0, 0, null, null);
+
+    private final Connection connection;
+    private final int batchSize;
+    // the auto-commit mode of the connection, restored on close
+    private final boolean autoCommit;
+    // TestResults and ProcessedFiles
+    private final BlockingQueue<Object> queue;
+    private final Thread writer;
+    // only accessed by the writer thread
+    private PreparedStatement processedFiles;
+    private volatile Exception failure;
+    private boolean closed = false;
+    private long written = 0;
+
+    public TestResultWriter(Connection connection, int batchSize, int queueCapacity) throws SQLException {
+        this.connection = connection;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode=WAL");
+            // with WAL, NORMAL only syncs at checkpoints. A crash may lose the last transactions, but not corrupt the db
+            statement.execute("PRAGMA synchronous=NORMAL");
+            statement.execute("PRAGMA temp_store=MEMORY");
+            statement.execute("PRAGMA cache_size=-65536");
+        }
+        this.autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        this.writer = new Thread(this::writeResults, "test-result-writer");
+        this.writer.start();
+    }
+
+    /**
+     * Queues a test result, blocking while the queue is full.
+     */
+    public void add(TestResult result) throws IOException {
+        try {
+            enqueue(result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing a test result");
+        }
+    }
+
+    /**
+     * Records the file as analyzed, once the results queued before are written.
+     */
+    public void fileAnalyzed(ProcessedFile file) throws IOException {
+        try {
+            enqueue(file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing a processed file");
+        }
+    }
+
+    private void enqueue(Object result) throws InterruptedException, IOException {
+        // the writer thread does not take from the queue anymore once it failed
+        while(!queue.offer(result, 100, TimeUnit.MILLISECONDS)) {
+            checkFailure();
+        }
+        checkFailure();
+    }
+
+    private void writeResults() {
+        List<Object> batch = new ArrayList<>(batchSize);
+        try(PreparedStatement statement = connection.prepareStatement(INSERT_TEST_RESULT)) {
+            while(true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - batch.size());
+                boolean end = batch.remove(END);
+                if(!batch.isEmpty()) {
+                    writeBatch(statement, batch);
+                    batch.clear();
+                }
+                if(end) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Unable to write test results", e);
+            failure = e;
+        } finally {
+            if(processedFiles != null) {
+                try {
+                    processedFiles.close();
+                } catch (SQLException e) {
+                    LOG.debug("Unable to close statement", e);
+                }
+            }
+        }
+    }
+
+    private void writeBatch(PreparedStatement statement, List<Object> batch) throws SQLException {
+        Date addedAt = new Date(System.currentTimeMillis());
+        int files = 0;
+        for(Object element: batch) {
+            if(element instanceof ProcessedFile) {
+                ProcessedFile file = (ProcessedFile) element;
+                if(processedFiles == null) {
+                    // only prepared when needed, the table is optional
+                    processedFiles = connection.prepareStatement(INSERT_PROCESSED_FILE);
+                }
+                processedFiles.setString(1, file.fileName);
+                processedFiles.setInt(2, file.buildId);
+                processedFiles.setLong(3, file.size);
+                processedFiles.setInt(4, file.results);
+                processedFiles.setDate(5, addedAt);
+                processedFiles.addBatch();
+                files++;
+                continue;
+            }
+            TestResult result = (TestResult) element;
+            statement.setString(1, result.name);
+            statement.setInt(2, result.buildId);
+            statement.setInt(3, result.duration);
+            statement.setString(4, result.commit);
+            statement.setString(5, result.runDate);
+            statement.setDate(6, addedAt);
+            statement.addBatch();
+        }
+        try {
+            statement.executeBatch();
+            if(files > 0) {
+                processedFiles.executeBatch();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+        written += batch.size() - files;
+        LOG.debug("Wrote {} test results, {} in total", batch.size() - files, written);
+    }
+
+    private void checkFailure() throws IOException {
+        if(failure != null) {
+            throw new IOException("Unable to write test results", failure);
+        }
+    }
+
+    /**
+     * Writes the queued results and stops the writer thread. The connection is not closed, its auto-commit mode is
+     * restored.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if(failure == null) {
+                enqueue(END);
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the remaining test results");
+        }
+        try {
+            connection.setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            throw new IOException("Unable to restore the auto-commit mode of the connection", e);
+        }
+        checkFailure();
+    }
+
+    public static class TestResult {
+        public final String name;
+        public final int duration;
+        public final int buildId;
+        public final String commit;
+        public final String runDate;
+
+        public TestResult(String name, int duration, int buildId, String commit, String runDate) {
+            this.name = name;
+            this.duration = duration;
+            this.buildId = buildId;
+            this.commit = commit;
+            this.runDate = runDate;
+        }
+    }
+
+    public static class ProcessedFile {
+        public final String fileName;
+        public final int buildId;
+        public final long size;
+        public final int results;
+
+        public ProcessedFile(String fileName, int buildId, long size, int results) {
+            this.fileName = fileName;
+            this.buildId = buildId;
+            this.size = size;
+            this.results = results;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package de.robertmetzger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Creates and upgrades the schema of the e2e test results database.
+ *
+ * <p>The version of the schema is stored in SQLite's {@code PRAGMA user_version}. Each migration runs in its own
+ * transaction together with the update of the version, so a failed migration leaves the database at the previous
+ * version. The resulting schema is documented in {@code test_results.sql}.
+ */
+public class TestResultsSchema {
+    private final static Logger LOG = LoggerFactory.getLogger(TestResultsSchema.class);
+
+    private static final String[][] MIGRATIONS = {
+        // 1: the tables written by the E2ELogAnalyzer. Databases created before the migrations already have test_results
+        {
+            "CREATE TABLE IF NOT EXISTS test_results (id INTEGER CONSTRAINT table_name_pk PRIMARY KEY AUTOINCREMENT, "
+                    + "name TEXT NOT NULL, build_id INTEGER, duration INTEGER NOT NULL, \"commit\" TEXT, run_date TEXT, added_at DATE)",
+            "CREATE TABLE IF NOT EXISTS processed_files (file_name TEXT PRIMARY KEY, "
+                    + "build_id INTEGER NOT NULL, size INTEGER NOT NULL, results INTEGER NOT NULL, analyzed_at DATE)",
+            // the analyzer used to insert the results again on every run
+            "DELETE FROM test_results WHERE id NOT IN (SELECT MIN(id) FROM test_results GROUP BY build_id, name)",
+            "CREATE UNIQUE INDEX IF NOT EXISTS test_results_build_id_name ON test_results (build_id, name)",
+        },
+        // 2: indexes for the per-test queries of the report, and the per-test summary maintained by triggers
+        {
+            "CREATE INDEX test_results_name_duration ON test_results (name, duration)",
+            "CREATE INDEX test_results_name_run_date ON test_results (name, run_date)",
+            "CREATE TABLE test_summary (name TEXT PRIMARY KEY, runs INTEGER NOT NULL, total_duration INTEGER NOT NULL, "
+                    + "min_duration INTEGER NOT NULL, max_duration INTEGER NOT NULL)",
+            "INSERT INTO test_summary (name, runs, total_duration, min_duration, max_duration) "
+                    + "SELECT name, COUNT(*), SUM(duration), MIN(duration), MAX(duration) FROM test_results GROUP BY name",
+            "CREATE TRIGGER test_summary_insert AFTER INSERT ON test_results BEGIN "
+                    + "INSERT INTO test_summary (name, runs, total_duration, min_duration, max_duration) "
+                    + "VALUES (NEW.name, 1, NEW.duration, NEW.duration, NEW.duration) "
+                    + "ON CONFLICT (name) DO UPDATE SET runs = runs + 1, total_duration = total_duration + excluded.total_duration, "
+                    + "min_duration = MIN(min_duration, excluded.min_duration), max_duration = MAX(max_duration, excluded.max_duration); "
+                    + "END",
+            // min and max of the remaining rows are looked up in the (name, duration) index
+            "CREATE TRIGGER test_summary_delete AFTER DELETE ON test_results BEGIN "
+                    + "UPDATE test_summary SET runs = runs - 1, total_duration = total_duration - OLD.duration, "
+                    + "min_duration = IFNULL((SELECT MIN(duration) FROM test_results WHERE name = OLD.name), 0), "
+                    + "max_duration = IFNULL((SELECT MAX(duration) FROM test_results WHERE name = OLD.name), 0) "
+                    + "WHERE name = OLD.name; "
+                    + "DELETE FROM test_summary WHERE name = OLD.name AND runs = 0; "
+                    + "END",
+            "CREATE TRIGGER test_summary_update AFTER UPDATE OF name, duration ON test_results BEGIN "
+                    + "UPDATE test_summary SET runs = runs - 1, total_duration = total_duration - OLD.duration, "
+                    + "min_duration = IFNULL((SELECT MIN(duration) FROM test_results WHERE name = OLD.name), 0), "
+                    + "max_duration = IFNULL((SELECT MAX(duration) FROM test_results WHERE name = OLD.name), 0) "
+                    + "WHERE name = OLD.name; "
+                    + "DELETE FROM test_summary WHERE name = OLD.name AND runs = 0; "
+                    + "INSERT INTO test_summary (name, runs, total_duration, min_duration, max_duration) "
+                    + "VALUES (NEW.name, 1, NEW.duration, NEW.duration, NEW.duration) "
+                    + "ON CONFLICT (name) DO UPDATE SET runs = runs + 1, total_duration = total_duration + excluded.total_duration, "
+                    + "min_duration = MIN(min_duration, excluded.min_duration), max_duration = MAX(max_duration, excluded.max_duration); "
+                    + "END",
+        },
+        // 3: a change counter per test, so that the report only renders the pages of changed tests
+        {
+            "ALTER TABLE test_summary ADD COLUMN changes INTEGER NOT NULL DEFAULT 0",
+            "DROP TRIGGER test_summary_insert",
+            "DROP TRIGGER test_summary_delete",
+            "DROP TRIGGER test_summary_update",
+            "CREATE TRIGGER test_summary_insert AFTER INSERT ON test_results BEGIN "
+                    + "INSERT INTO test_summary (name, runs, total_duration, min_duration, max_duration) "
+                    + "VALUES (NEW.name, 1, NEW.duration, NEW.duration, NEW.duration) "
+                    + "ON CONFLICT (name) DO UPDATE SET runs = runs + 1, total_duration = total_duration + excluded.total_duration, "
+                    + "min_duration = MIN(min_duration, excluded.min_duration), max_duration = MAX(max_duration, excluded.max_duration), "
+                    + "changes = changes + 1; "
+                    + "END",
+            "CREATE TRIGGER test_summary_delete AFTER DELETE ON test_results BEGIN "
+                    + "UPDATE test_summary SET runs = runs - 1, total_duration = total_duration - OLD.duration, "
+                    + "min_duration = IFNULL((SELECT MIN(duration) FROM test_results WHERE name = OLD.name), 0), "
+                    + "max_duration = IFNULL((SELECT MAX(duration) FROM test_results WHERE name = OLD.name), 0), "
+                    + "changes = changes + 1 "
+                    + "WHERE name = OLD.name; "
+                    + "DELETE FROM test_summary WHERE name = OLD.name AND runs = 0; "
+                    + "END",
+            // any column, the report pages show the build id and the run date as well
+            "CREATE TRIGGER test_summary_update AFTER UPDATE ON test_results BEGIN "
+                    + "UPDATE test_summary SET runs = runs - 1, total_duration = total_duration - OLD.duration, "
+                    + "min_duration = IFNULL((SELECT MIN(duration) FROM test_results WHERE name = OLD.name), 0), "
+                    + "max_duration = IFNULL((SELECT MAX(duration) FROM test_results WHERE name = OLD.name), 0), "
+                    + "changes = changes + 1 "
+                    + "WHERE name = OLD.name; "
+                    + "DELETE FROM test_summary WHERE name = OLD.name AND runs = 0; "
+                    + "INSERT INTO test_summary (name, runs, total_duration, min_duration, max_duration) "
+                    + "VALUES (NEW.name, 1, NEW.duration, NEW.duration, NEW.duration) "
+                    + "ON CONFLICT (name) DO UPDATE SET runs = runs + 1, total_duration = total_duration + excluded.total_duration, "
+                    + "min_duration = MIN(min_duration, excluded.min_duration), max_duration = MAX(max_duration, excluded.max_duration), "
+                    + "changes = changes + 1; "
+                    + "END",
+        },
+        // 4: the state of the TestTrendDetector
+        {
+            "CREATE TABLE test_trends (name TEXT PRIMARY KEY, runs INTEGER NOT NULL, baseline BLOB NOT NULL, recent TEXT NOT NULL, "
+                    + "cusum REAL NOT NULL, cusum_start_build INTEGER, alarm_run INTEGER NOT NULL, change_build INTEGER, "
+                    + "baseline_p50 REAL, baseline_p95 REAL, recent_p50 REAL, recent_p95 REAL, regression INTEGER NOT NULL)",
+            "CREATE TABLE analysis_state (key TEXT PRIMARY KEY, value INTEGER NOT NULL)",
+        },
+    };
+
+    public static int getLatestVersion() {
+        return MIGRATIONS.length;
+    }
+
+    /**
+     * Applies the missing migrations.
+     *
+     * @return the version of the schema before the migration
+     */
+    public static int migrate(Connection connection) throws SQLException {
+        int version = getVersion(connection);
+        if(version > MIGRATIONS.length) {
+            throw new SQLException("The database has schema version " + version + ", but only versions up to "
+                    + MIGRATIONS.length + " are known. Is it used by a newer version?");
+        }
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try(Statement statement = connection.createStatement()) {
+            for(int next = version + 1; next <= MIGRATIONS.length; next++) {
+                LOG.info("Migrating the test results database to version {}", next);
+                try {
+                    for(String sql: MIGRATIONS[next - 1]) {
+                        statement.execute(sql);
+                    }
+                    statement.execute("PRAGMA user_version = " + next);
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw new SQLException("Migration to version " + next + " failed", e);
+                }
+            }
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return version;
+    }
+
+    public static int getVersion(Connection connection) throws SQLException {
+        try(Statement statement = connection.createStatement();
+            ResultSet result = statement.executeQuery("PRAGMA user_version")) {
+            return result.next() ? result.getInt(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import com.tdunning.math.stats.MergingDigest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds tests whose duration went up.
+ *
+ * <p>For every test, the durations are fed in the order of the runs into a window of the recent runs. Durations
+ * leaving the window go into a t-digest of the older runs, the baseline. Each new duration updates an upper CUSUM,
+ * measured in standard deviations of the baseline (estimated from its p50 and p95). A test is flagged as a
+ * regression if the CUSUM exceeded its limit within the recent window, and the p50 of the window is more than
+ * {@code threshold} above the p50 of the baseline.
+ *
+ * <p>The state of all tests is kept in the test_trends table. {@link #update()} only reads the test_results rows
+ * added since the last update, in one query. Results of runs older than already analyzed runs of a test are
+ * treated as the latest runs, and deleted or updated results are not taken back; {@link #rebuild()} starts over.
+ */
+public class TestTrendDetector {
+    private final static Logger LOG = LoggerFactory.getLogger(TestTrendDetector.class);
+    private static final String LAST_ID_KEY = "trends.last_id";
+    private static final double COMPRESSION = 100;
+    // a shift of the mean by 1 standard deviation is detected after about 10 runs
+    private static final double CUSUM_SLACK = 0.5;
+    private static final double CUSUM_LIMIT = 5;
+    // the quantiles of the baseline are computed again after this many new values, and not for every run
+    private static final int BASELINE_REFRESH = 16;
+
+    private final Connection connection;
+    private final int window;
+    private final int minBaseline;
+    private final double threshold;
+
+    /**
+     * @param window the number of recent runs which are compared against the older runs
+     * @param minBaseline the number of older runs needed before a test is checked
+     * @param threshold the relative increase of the p50 for a regression, e.g. 0.2 for 20%
+     */
+    public TestTrendDetector(Connection connection, int window, int minBaseline, double threshold) {
+        this.connection = connection;
+        this.window = window;
+        this.minBaseline = minBaseline;
+        this.threshold = threshold;
+    }
+
+    public static TestTrendDetector fromParameters(Connection connection, ParameterTool parameters) {
+        return new TestTrendDetector(connection, parameters.getInt("trends.window", 10),
+                parameters.getInt("trends.min-baseline", 20), parameters.getDouble("trends.threshold", 0.2));
+    }
+
+    /**
+     * Feeds the test results added since the last update into the trends.
+     *
+     * @return the number of updated tests
+     */
+    public int update() throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            long lastId = getLastId();
+            Map<String, TestTrend> trends = loadTrends();
+            Map<String, TestTrend> updated = new HashMap<>();
+            long maxId = lastId;
+            try(PreparedStatement statement = connection.prepareStatement("SELECT id, name, build_id, duration FROM test_results "
+                    + "WHERE id > ? ORDER BY name, run_date, build_id")) {
+                statement.setLong(1, lastId);
+                try(ResultSet rows = statement.executeQuery()) {
+                    TestTrend trend = null;
+                    while(rows.next()) {
+                        String name = rows.getString(2);
+                        if(trend == null || !trend.name.equals(name)) {
+                            trend = trends.computeIfAbsent(name, TestTrend::new);
+                            updated.put(name, trend);
+                        }
+                        trend.add(rows.getInt(3), rows.getInt(4));
+                        maxId = Math.max(maxId, rows.getLong(1));
+                    }
+                }
+            }
+            storeTrends(updated.values());
+            setLastId(maxId);
+            connection.commit();
+            long regressions = trends.values().stream().filter(TestTrend::isRegression).count();
+            LOG.info("Updated the trends of {} tests with the results after id {}. {} possible regressions", updated.size(), lastId, regressions);
+            return updated.size();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Forgets the state of all tests and analyzes all test results again.
+     */
+    public int rebuild() throws SQLException {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("DELETE FROM test_trends");
+            statement.execute("DELETE FROM analysis_state WHERE key = '" + LAST_ID_KEY + "'");
+        }
+        if(!connection.getAutoCommit()) {
+            connection.commit();
+        }
+        return update();
+    }
+
+    /**
+     * Returns the flagged tests, the largest increase first.
+     */
+    public List<TestTrend> getRegressions() throws SQLException {
+        List<TestTrend> regressions = new ArrayList<>();
+        try(Statement statement = connection.createStatement();
+            ResultSet rows = statement.executeQuery("SELECT * FROM test_trends WHERE regression = 1 "
+                    + "ORDER BY recent_p50 / baseline_p50 DESC, name")) {
+            while(rows.next()) {
+                regressions.add(readTrend(rows));
+            }
+        }
+        return regressions;
+    }
+
+    private long getLastId() throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("SELECT value FROM analysis_state WHERE key = ?")) {
+            statement.setString(1, LAST_ID_KEY);
+            try(ResultSet result = statement.executeQuery()) {
+                return result.next() ? result.getLong(1) : 0;
+            }
+        }
+    }
+
+    private void setLastId(long lastId) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("INSERT OR REPLACE INTO analysis_state (key, value) VALUES (?, ?)")) {
+            statement.setString(1, LAST_ID_KEY);
+            statement.setLong(2, lastId);
+            statement.execute();
+        }
+    }
+
+    private Map<String, TestTrend> loadTrends() throws SQLException {
+        Map<String, TestTrend> trends = new HashMap<>();
+        try(Statement statement = connection.createStatement();
+            ResultSet rows = statement.executeQuery("SELECT * FROM test_trends")) {
+            while(rows.next()) {
+                TestTrend trend = readTrend(rows);
+                trends.put(trend.name, trend);
+            }
+        }
+        return trends;
+    }
+
+    private void storeTrends(Iterable<TestTrend> trends) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("INSERT OR REPLACE INTO test_trends (name, runs, baseline, "
+                + "recent, cusum, cusum_start_build, alarm_run, change_build, baseline_p50, baseline_p95, recent_p50, recent_p95, "
+                + "regression) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+            for(TestTrend trend: trends) {
+                ByteBuffer baseline = ByteBuffer.allocate(trend.baseline.byteSize());
+                trend.baseline.asBytes(baseline);
+                statement.setString(1, trend.name);
+                statement.setLong(2, trend.runs);
+                statement.setBytes(3, baseline.array());
+                statement.setString(4, trend.getRecentAsString());
+                statement.setDouble(5, trend.cusum);
+                setInteger(statement, 6, trend.cusumStartBuild);
+                statement.setLong(7, trend.alarmRun);
+                setInteger(statement, 8, trend.changeBuild);
+                setDouble(statement, 9, trend.getBaselineP50());
+                setDouble(statement, 10, trend.getBaselineP95());
+                setDouble(statement, 11, trend.getRecentP50());
+                setDouble(statement, 12, trend.getRecentP95());
+                statement.setBoolean(13, trend.isRegression());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private TestTrend readTrend(ResultSet row) throws SQLException {
+        TestTrend trend = new TestTrend(row.getString("name"));
+        trend.runs = row.getLong("runs");
+        trend.baseline = MergingDigest.fromBytes(ByteBuffer.wrap(row.getBytes("baseline")));
+        String recent = row.getString("recent");
+        if(!recent.isEmpty()) {
+            for(String duration: recent.split(",")) {
+                trend.recent.addLast(Integer.parseInt(duration));
+            }
+        }
+        trend.baselineP50 = getDouble(row, "baseline_p50");
+        trend.baselineP95 = getDouble(row, "baseline_p95");
+        trend.cusum = row.getDouble("cusum");
+        trend.cusumStartBuild = getInteger(row, "cusum_start_build");
+        trend.alarmRun = row.getLong("alarm_run");
+        trend.changeBuild = getInteger(row, "change_build");
+        return trend;
+    }
+
+    private static Integer getInteger(ResultSet row, String column) throws SQLException {
+        int value = row.getInt(column);
+        return row.wasNull() ? null : value;
+    }
+
+    private static double getDouble(ResultSet row, String column) throws SQLException {
+        double value = row.getDouble(column);
+        return row.wasNull() ? Double.NaN : value;
+    }
+
+    private static void setInteger(PreparedStatement statement, int index, Integer value) throws SQLException {
+        if(value == null) {
+            statement.setNull(index, Types.INTEGER);
+        } else {
+            statement.setInt(index, value);
+        }
+    }
+
+    private static void setDouble(PreparedStatement statement, int index, double value) throws SQLException {
+        if(Double.isNaN(value)) {
+            statement.setNull(index, Types.REAL);
+        } else {
+            statement.setDouble(index, value);
+        }
+    }
+
+    /**
+     * The trend of a single test.
+     */
+    public class TestTrend {
+        public final String name;
+        private long runs = 0;
+        private MergingDigest baseline = new MergingDigest(COMPRESSION);
+        // quantiles of the baseline as of the last refresh
+        private double baselineP50 = Double.NaN;
+        private double baselineP95 = Double.NaN;
+        private final ArrayDeque<Integer> recent = new ArrayDeque<>();
+        private double cusum = 0;
+        private Integer cusumStartBuild;
+        private long alarmRun = -1;
+        private Integer changeBuild;
+
+        TestTrend(String name) {
+            this.name = name;
+        }
+
+        void add(int buildId, int duration) {
+            runs++;
+            if(baseline.size() >= minBaseline) {
+                if(Double.isNaN(baselineP50)) {
+                    refreshBaseline();
+                }
+                double p50 = baselineP50;
+                // the spread of a normal distribution, but at least 1 second or 5%
+                double sigma = Math.max((baselineP95 - p50) / 1.645, Math.max(1, 0.05 * p50));
+                double deviation = (duration - p50) / sigma - CUSUM_SLACK;
+                if(cusum == 0 && deviation > 0) {
+                    // the shift may start here
+                    cusumStartBuild = buildId;
+                }
+                cusum = Math.max(0, cusum + deviation);
+                if(cusum > CUSUM_LIMIT) {
+                    // further alarms within the window belong to the same shift
+                    if(alarmRun <= runs - window) {
+                        changeBuild = cusumStartBuild;
+                    }
+                    alarmRun = runs;
+                    cusum = 0;
+                }
+            }
+            recent.addLast(duration);
+            if(recent.size() > window) {
+                baseline.add(recent.removeFirst());
+                if(baseline.size() % BASELINE_REFRESH == 0) {
+                    refreshBaseline();
+                }
+            }
+        }
+
+        public boolean isRegression() {
+            return alarmRun > runs - window && getRecentP50() > getBaselineP50() * (1 + threshold);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRuns() {
+            return runs;
+        }
+
+        /**
+         * The build in which the duration started to go up, if known.
+         */
+        public Integer getChangeBuild() {
+            return changeBuild;
+        }
+
+        private void refreshBaseline() {
+            baselineP50 = baseline.quantile(0.5);
+            baselineP95 = baseline.quantile(0.95);
+        }
+
+        public double getBaselineP50() {
+            return baselineP50;
+        }
+
+        public double getBaselineP95() {
+            return baselineP95;
+        }
+
+        public double getRecentP50() {
+            return getRecentQuantile(0.5);
+        }
+
+        public double getRecentP95() {
+            return getRecentQuantile(0.95);
+        }
+
+        /**
+         * Nearest rank quantile of the recent window.
+         */
+        private double getRecentQuantile(double q) {
+            if(recent.isEmpty()) {
+                return Double.NaN;
+            }
+            int[] sorted = recent.stream().mapToInt(Integer::intValue).toArray();
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, (int) Math.ceil(q * sorted.length) - 1)];
+        }
+
+        private String getRecentAsString() {
+            StringBuilder result = new StringBuilder();
+            for(Integer duration: recent) {
+                if(result.length() > 0) {
+                    result.append(',');
+                }
+                result.append(duration);
+            }
+            return result.toString();
+        }
+    }
+}
@@ -1,11 +1,109 @@
+-- Schema of the e2e test results database, version 4 (PRAGMA user_version).
+-- The E2ELogAnalyzer and the E2EReportGenerator create and upgrade it through TestResultsSchema. A database created
+-- with this script is at version 4 as well. Keep it in sync with the migrations of TestResultsSchema.
 create table test_results
 (
     id       INTEGER
         constraint table_name_pk
             primary key autoincrement,
     name     TEXT    not null,
+    build_id INTEGER,
     duration INTEGER not null,
     "commit" TEXT,
+    run_date TEXT,
     added_at DATE
 );
 
+create unique index test_results_build_id_name on test_results (build_id, name);
+create index test_results_name_duration on test_results (name, duration);
+create index test_results_name_run_date on test_results (name, run_date);
+
+-- the files analyzed by the E2ELogAnalyzer
+create table processed_files
+(
+    file_name   TEXT primary key,
+    build_id    INTEGER not null,
+    size        INTEGER not null,
+    results     INTEGER not null,
+    analyzed_at DATE
+);
+
+-- per-test aggregates of test_results, maintained by the triggers test_summary_insert, test_summary_delete
+-- and test_summary_update
+create table test_summary
+(
+    name           TEXT primary key,
+    runs           INTEGER not null,
+    total_duration INTEGER not null,
+    min_duration   INTEGER not null,
+    max_duration   INTEGER not null,
+    -- incremented on every change of the test's rows
+    changes        INTEGER not null default 0
+);
+
+-- per-test state of the TestTrendDetector
+create table test_trends
+(
+    name              TEXT primary key,
+    runs              INTEGER not null,
+    -- t-digest of the durations before the recent window
+    baseline          BLOB    not null,
+    -- the durations of the recent window, comma separated
+    recent            TEXT    not null,
+    -- upper CUSUM of the durations, in standard deviations of the baseline
+    cusum             REAL    not null,
+    cusum_start_build INTEGER,
+    -- the run at which the CUSUM exceeded its limit the last time, or -1
+    alarm_run         INTEGER not null,
+    change_build      INTEGER,
+    baseline_p50      REAL,
+    baseline_p95      REAL,
+    recent_p50        REAL,
+    recent_p95        REAL,
+    regression        INTEGER not null
+);
+
+-- progress of incremental analyses. trends.last_id: the last test_results row seen by the TestTrendDetector
+create table analysis_state
+(
+    key   TEXT primary key,
+    value INTEGER not null
+);
+
+create trigger test_summary_insert after insert on test_results
+begin
+    insert into test_summary (name, runs, total_duration, min_duration, max_duration)
+    values (NEW.name, 1, NEW.duration, NEW.duration, NEW.duration)
+    on conflict (name) do update set runs = runs + 1, total_duration = total_duration + excluded.total_duration,
+        min_duration = min(min_duration, excluded.min_duration), max_duration = max(max_duration, excluded.max_duration),
+        changes = changes + 1;
+end;
+
+-- min and max of the remaining rows are looked up in the (name, duration) index
+create trigger test_summary_delete after delete on test_results
+begin
+    update test_summary set runs = runs - 1, total_duration = total_duration - OLD.duration,
+        min_duration = ifnull((select min(duration) from test_results where name = OLD.name), 0),
+        max_duration = ifnull((select max(duration) from test_results where name = OLD.name), 0),
+        changes = changes + 1
+    where name = OLD.name;
+    delete from test_summary where name = OLD.name and runs = 0;
+end;
+
+-- any column, the report pages show the build id and the run date as well
+create trigger test_summary_update after update on test_results
+begin
+    update test_summary set runs = runs - 1, total_duration = total_duration - OLD.duration,
+        min_duration = ifnull((select min(duration) from test_results where name = OLD.name), 0),
+        max_duration = ifnull((select max(duration) from test_results where name = OLD.name), 0),
+        changes = changes + 1
+    where name = OLD.name;
+    delete from test_summary where name = OLD.name and runs = 0;
+    insert into test_summary (name, runs, total_duration, min_duration, max_duration)
+    values (NEW.name, 1, NEW.duration, NEW.duration, NEW.duration)
+    on conflict (name) do update set runs = runs + 1, total_duration = total_duration + excluded.total_duration,
+        min_duration = min(min_duration, excluded.min_duration), max_duration = max(max_duration, excluded.max_duration),
+        changes = changes + 1;
+end;
+
+pragma user_version = 4;
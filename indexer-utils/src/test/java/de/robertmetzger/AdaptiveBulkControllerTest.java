@@ -0,0 +1,74 @@
+package de.robertmetzger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveBulkControllerTest {
+
+    @Test
+    public void testFastResponsesIncreaseLimits() {
+        AdaptiveBulkController controller = new AdaptiveBulkController(100, 10, 120, 2, 3, 60_000, 3, 1, 1);
+        // one round: as many fast responses as requests may be in flight
+        controller.onResponse(System.nanoTime(), 0);
+        Assert.assertEquals(100, controller.getBulkActions());
+        controller.onResponse(System.nanoTime(), 0);
+        Assert.assertEquals(110, controller.getBulkActions());
+        Assert.assertEquals(3, controller.getConcurrencyLimit());
+
+        // up to the maximum
+        for(int i = 0; i < 9; i++) {
+            controller.onResponse(System.nanoTime(), 0);
+        }
+        Assert.assertEquals(120, controller.getBulkActions());
+        Assert.assertEquals(3, controller.getConcurrencyLimit());
+    }
+
+    @Test
+    public void testSlowResponsesShrinkBulkSize() throws Exception {
+        AdaptiveBulkController controller = new AdaptiveBulkController(100, 10, 1000, 2, 4, 1, 3, 1, 1);
+        long sent = System.nanoTime();
+        Thread.sleep(5);
+        controller.onResponse(sent, 0);
+        Assert.assertEquals(75, controller.getBulkActions());
+        Assert.assertEquals(2, controller.getConcurrencyLimit());
+
+        // responses to requests sent before the decrease belong to the same overload
+        controller.onResponse(sent, 0);
+        Assert.assertEquals(75, controller.getBulkActions());
+    }
+
+    @Test
+    public void testRejectionsHalveLimits() {
+        AdaptiveBulkController controller = new AdaptiveBulkController(100, 30, 1000, 4, 8, 60_000, 3, 1, 1);
+        long sent = System.nanoTime();
+        controller.onResponse(sent, 5);
+        Assert.assertEquals(50, controller.getBulkActions());
+        Assert.assertEquals(2, controller.getConcurrencyLimit());
+
+        controller.onRejected(sent);
+        Assert.assertEquals(50, controller.getBulkActions());
+        Assert.assertEquals(2, controller.getConcurrencyLimit());
+
+        controller.onRejected(System.nanoTime());
+        Assert.assertEquals(30, controller.getBulkActions());
+        Assert.assertEquals(1, controller.getConcurrencyLimit());
+        controller.onRejected(System.nanoTime());
+        Assert.assertEquals(30, controller.getBulkActions());
+        Assert.assertEquals(1, controller.getConcurrencyLimit());
+    }
+
+    @Test
+    public void testBackoffWithJitter() {
+        AdaptiveBulkController controller = new AdaptiveBulkController(100, 10, 1000, 2, 4, 60_000, 3, 100, 1000);
+        for(int i = 0; i < 100; i++) {
+            long first = controller.getBackoffMillis(0);
+            Assert.assertTrue(String.valueOf(first), first >= 50 && first <= 100);
+            long third = controller.getBackoffMillis(2);
+            Assert.assertTrue(String.valueOf(third), third >= 200 && third <= 400);
+            long capped = controller.getBackoffMillis(10);
+            Assert.assertTrue(String.valueOf(capped), capped >= 500 && capped <= 1000);
+        }
+        Assert.assertTrue(controller.shouldRetry(2));
+        Assert.assertFalse(controller.shouldRetry(3));
+    }
+}
@@ -0,0 +1,61 @@
+package de.robertmetzger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+public class ArchiveProgressTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testProgressIsJournaledAfterAllEarlierBulksAreAcked() throws Exception {
+        try(IngestionJournal journal = new IngestionJournal(temporaryFolder.newFile("journal.tsv"))) {
+            ArchiveProgress archive = new ArchiveProgress(new File("a.zip"), journal);
+            ArchiveProgress.Checkpoint[] checkpoints = new ArchiveProgress.Checkpoint[3];
+            for(int i = 0; i < 3; i++) {
+                archive.added("log", (i + 1) * 10);
+                checkpoints[i] = archive.takeCheckpoint(1);
+            }
+            archive.entryCompleted("log");
+            Assert.assertNull(archive.takeCheckpoint(0));
+            archive.seal();
+
+            archive.acked(checkpoints[2], 1);
+            Assert.assertEquals(0, journal.getResumeOffset("a.zip", "log"));
+            archive.acked(checkpoints[1], 1);
+            Assert.assertEquals(0, journal.getResumeOffset("a.zip", "log"));
+            // the first bulk completes the contiguous range, up to the completed entry
+            archive.acked(checkpoints[0], 1);
+            Assert.assertEquals(IngestionJournal.COMPLETE, journal.getResumeOffset("a.zip", "log"));
+            Assert.assertTrue(archive.acknowledged().isDone());
+            Assert.assertTrue(archive.acknowledged().get());
+        }
+    }
+
+    @Test
+    public void testNoProgressIsJournaledAfterAFailedBulk() throws Exception {
+        try(IngestionJournal journal = new IngestionJournal(temporaryFolder.newFile("journal.tsv"))) {
+            ArchiveProgress archive = new ArchiveProgress(new File("a.zip"), journal);
+            ArchiveProgress.Checkpoint[] checkpoints = new ArchiveProgress.Checkpoint[3];
+            for(int i = 0; i < 3; i++) {
+                archive.added("log", (i + 1) * 10);
+                checkpoints[i] = archive.takeCheckpoint(1);
+            }
+            archive.seal();
+
+            archive.acked(checkpoints[0], 1);
+            Assert.assertEquals(10, journal.getResumeOffset("a.zip", "log"));
+            archive.markFailed(checkpoints[1]);
+            archive.acked(checkpoints[1], 1);
+            archive.acked(checkpoints[2], 1);
+            // the documents of the failed bulk have to be sent again
+            Assert.assertEquals(10, journal.getResumeOffset("a.zip", "log"));
+            Assert.assertFalse(archive.acknowledged().get());
+        }
+    }
+}
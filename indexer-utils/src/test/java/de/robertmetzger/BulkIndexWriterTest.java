@@ -0,0 +1,76 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.MetricRegistry;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+public class BulkIndexWriterTest {
+
+    @Test
+    public void testOnlyRejectedDocumentsAreSentAgain() throws Exception {
+        try(MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("{\"took\": 3, \"errors\": true, \"items\": ["
+                    + item(201) + ", " + item(429) + ", " + item(201) + ", " + item(429) + "]}"));
+            server.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("{\"took\": 1, \"errors\": false, \"items\": ["
+                    + item(201) + ", " + item(201) + "]}"));
+            AdaptiveBulkController controller = new AdaptiveBulkController(10, 1, 10, 1, 1, 60_000, 3, 1, 1);
+            BulkIndexWriter writer = new BulkIndexWriter(RestClient.builder(new HttpHost(server.getHostName(), server.getPort())).build(),
+                    "logs", 1024 * 1024, controller, new MetricRegistry());
+            ArchiveProgress archive = new ArchiveProgress(new File("archive.zip"));
+            LogRecordSplitter splitter = new LogRecordSplitter(new ByteArrayInputStream(
+                    "12:00:00,000 a\n12:00:01,000 b\n12:00:02,000 c\n12:00:03,000 d".getBytes(StandardCharsets.UTF_8)));
+            for(int i = 0; i < 4; i++) {
+                writer.add(archive, splitter.next(), "build", 0L);
+            }
+            writer.flush(archive);
+            archive.seal();
+
+            Assert.assertTrue(archive.acknowledged().get(10, TimeUnit.SECONDS));
+            Assert.assertTrue(writer.awaitClose(10, TimeUnit.SECONDS));
+            String[] first = server.takeRequest().getBody().readUtf8().split("\n");
+            String[] retry = server.takeRequest().getBody().readUtf8().split("\n");
+            Assert.assertEquals(8, first.length);
+            // the actions of the second and the fourth document, with their ids
+            Assert.assertArrayEquals(new String[] {first[2], first[3], first[6], first[7]}, retry);
+            Assert.assertTrue(Arrays.toString(retry), retry[3].contains("12:00:03,000 d"));
+            Assert.assertEquals(2, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testPermanentlyFailedDocumentsFailTheArchive() throws Exception {
+        try(MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setHeader("Content-Type", "application/json").setBody("{\"took\": 3, \"errors\": true, \"items\": ["
+                    + item(201) + ", {\"index\": {\"status\": 400, \"error\": {\"type\": \"mapper_parsing_exception\", \"reason\": \"failed to parse\"}}}]}"));
+            AdaptiveBulkController controller = new AdaptiveBulkController(10, 1, 10, 1, 1, 60_000, 3, 1, 1);
+            BulkIndexWriter writer = new BulkIndexWriter(RestClient.builder(new HttpHost(server.getHostName(), server.getPort())).build(),
+                    "logs", 1024 * 1024, controller, new MetricRegistry());
+            ArchiveProgress archive = new ArchiveProgress(new File("archive.zip"));
+            LogRecordSplitter splitter = new LogRecordSplitter(new ByteArrayInputStream(
+                    "12:00:00,000 a\n12:00:01,000 b".getBytes(StandardCharsets.UTF_8)));
+            writer.add(archive, splitter.next(), "build", 0L);
+            writer.add(archive, splitter.next(), "build", 0L);
+            writer.flush(archive);
+            archive.seal();
+
+            Assert.assertFalse(archive.acknowledged().get(10, TimeUnit.SECONDS));
+            Assert.assertTrue(writer.awaitClose(10, TimeUnit.SECONDS));
+            // not retried
+            Assert.assertEquals(1, server.getRequestCount());
+        }
+    }
+
+    private static String item(int status) {
+        return "{\"index\": {\"_index\": \"logs\", \"status\": " + status + "}}";
+    }
+}
@@ -0,0 +1,75 @@
+package de.robertmetzger;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class BulkRequestBufferTest {
+
+    @Test
+    public void testSameDocumentsAsXContentBuilder() throws IOException {
+        String line = "12:52:27,908 [main] WARN  \"quoted\" back\\slash ümläut €\n\tat foo(Bar.java:1)\u0001";
+        String buildname = "4143-logs-ci-e2e-\"x\".log";
+        long timestamp = 1593394347904L;
+
+        BulkRequestBuffer buffer = new BulkRequestBuffer(16);
+        buffer.add(record(line.getBytes(StandardCharsets.UTF_8)), buildname, timestamp);
+        buffer.add(record(line.getBytes(StandardCharsets.UTF_8)), buildname, -1L);
+
+        String expected = "{\"index\":{\"_id\":\"ID\"}}\n" + xContentDocument(line, buildname, timestamp) + "\n"
+                + "{\"index\":{\"_id\":\"ID\"}}\n" + xContentDocument(line, buildname, -1L) + "\n";
+        String actual = new String(buffer.getData(), 0, buffer.getSize(), StandardCharsets.UTF_8);
+        // the id is derived from the buildname and the offset of the record
+        Assert.assertEquals(expected, actual.replaceAll("\"_id\":\"[0-9a-f]{16}-0\"", "\"_id\":\"ID\""));
+        Assert.assertEquals(2, buffer.getActions());
+    }
+
+    @Test
+    public void testInvalidUtf8IsReplaced() throws IOException {
+        byte[] line = {'a', (byte) 0xC3, 'b', (byte) 0xE2, (byte) 0x82, (byte) 0xAC, (byte) 0xFF};
+        BulkRequestBuffer buffer = new BulkRequestBuffer(16);
+        buffer.add(record(line), "build", 0L);
+
+        String document = new String(buffer.getData(), 0, buffer.getSize(), StandardCharsets.UTF_8);
+        Assert.assertTrue(document, document.contains("\"line\":\"a�b€�\""));
+    }
+
+    @Test
+    public void testDocumentIdsAreDerivedFromBuildnameAndOffset() throws IOException {
+        byte[] log = "12:00:00,000 first\n12:00:01,000 second".getBytes(StandardCharsets.UTF_8);
+        LogRecordSplitter splitter = new LogRecordSplitter(new ByteArrayInputStream(log), 1024, 4096L);
+        BulkRequestBuffer buffer = new BulkRequestBuffer(16);
+        buffer.add(splitter.next(), "build-a", 0L);
+        buffer.add(splitter.next(), "build-a", 0L);
+        buffer.add(record(log), "build-b", 0L);
+
+        String[] lines = new String(buffer.getData(), 0, buffer.getSize(), StandardCharsets.UTF_8).split("\n");
+        String firstId = lines[0].substring(lines[0].indexOf("\"_id\":\"") + 7, lines[0].indexOf("\"}}"));
+        String secondId = lines[2].substring(lines[2].indexOf("\"_id\":\"") + 7, lines[2].indexOf("\"}}"));
+        String otherBuildId = lines[4].substring(lines[4].indexOf("\"_id\":\"") + 7, lines[4].indexOf("\"}}"));
+        Assert.assertTrue(firstId, firstId.endsWith("-1000"));
+        Assert.assertTrue(secondId, secondId.endsWith("-1013"));
+        Assert.assertEquals(firstId.substring(0, 16), secondId.substring(0, 16));
+        Assert.assertNotEquals(firstId.substring(0, 16), otherBuildId.substring(0, 16));
+    }
+
+    private static LogRecord record(byte[] bytes) throws IOException {
+        return new LogRecordSplitter(new ByteArrayInputStream(bytes)).next();
+    }
+
+    private static String xContentDocument(String line, String buildname, long timestamp) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder();
+        builder.startObject();
+        builder.field("buildname", buildname);
+        builder.field("line", line);
+        builder.timeField("log-ts", timestamp);
+        builder.endObject();
+        return Strings.toString(builder);
+    }
+}
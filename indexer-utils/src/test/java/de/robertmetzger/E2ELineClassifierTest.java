@@ -0,0 +1,93 @@
+package de.robertmetzger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class E2ELineClassifierTest {
+
+    // the patterns the E2ELogAnalyzer used before the classifier
+    private static final Pattern BASH_PATTERN = Pattern.compile(".*] '([^']+)'.* ([0-9]+) minutes.* ([0-9]+) seconds!.*");
+    private static final Pattern JAVA_PATTERN = Pattern.compile(".*Time elapsed: ([0-9]+)(.[0-9]+)? s - in (.*)");
+    private static final Pattern COMMIT_PATTERN = Pattern.compile(".*git checkout --progress --force ([a-z0-9-_.]+).*");
+
+    private static final List<String> LINES = Arrays.asList(
+            "2020-06-08T02:50:48.5046084Z ##[section]Starting: e2e_ci",
+            "2020-06-08T02:51:01.1234567Z git checkout --progress --force 3f4a5b6c7d8e9f0a1b2c3d4e5f6a7b8c9d0e1f2a",
+            "git checkout --progress --force refs/remotes/pull/12345/merge",
+            "[INFO] Tests run: 1, Failures: 0, Errors: 0, Skipped: 0, Time elapsed: 123.456 s - in org.apache.flink.tests.util.kafka.SQLClientKafkaITCase",
+            "[INFO] Tests run: 1, Failures: 0, Errors: 0, Skipped: 0, Time elapsed: 7 s - in org.apache.flink.Simple",
+            "Time elapsed: 12x34 s - in odd.Fraction",
+            "Time elapsed: 12.34 s - in  name with  spaces  ",
+            "Time elapsed: 1.5 s - in first Time elapsed: 2.5 s - in second",
+            "Time elapsed: 1.5 s - in first Time elapsed: nothing",
+            "Time elapsed: .5 s - in no.Seconds",
+            "Time elapsed: 99999999999 s - in too.Long",
+            "Time elapsed: 12.34 s",
+            "[PASS] 'Running HA dataset end-to-end test' passed after 3 minutes and 12 seconds! Test exited with exit code 0.",
+            "   [PASS] 'Wordcount on Docker test (custom fs plugin)' passed after 0 minutes and 5 seconds! Test exited with exit code 0.   ",
+            "[FAIL] 'Streaming SQL end-to-end test' failed after 10 minutes and 59 seconds! Test exited with exit code 1",
+            "[PASS] 'a' 'b' passed after 1 minutes and 2 seconds!",
+            "[PASS] 'first' [PASS] 'second' after 1 minutes and 2 seconds!",
+            "[PASS] 'name' after 1 minutes 2 minutes and 3 seconds! 4 seconds!",
+            "[PASS] 'name' after 1minutes and 3 seconds!",
+            "[PASS] '' after 1 minutes and 3 seconds!",
+            "[PASS] 'name' after 1 minutes and 3seconds!",
+            "[PASS] 'name' after 3 seconds! 1 minutes and",
+            "[PASS] 'name 1 minutes and 3 seconds!",
+            "[PASS] 'name' 1 minutes and 3 seconds!",
+            "[INFO] Downloaded from central: https://repo.maven.apache.org/maven2/org/apache/flink/flink-core/1.12-SNAPSHOT/flink-core-1.12-SNAPSHOT.jar (12 kB at 3 kB/s)",
+            "Jun 08 02:50:48 Waiting for the cluster to come up. This took 2 seconds! so far",
+            "");
+
+    @Test
+    public void testSameResultsAsPatterns() {
+        E2ELineClassifier classifier = new E2ELineClassifier();
+        for(String line: LINES) {
+            E2ELineClassifier.LineType type = classifier.classify(line);
+
+            Matcher commit = COMMIT_PATTERN.matcher(line);
+            Matcher java = JAVA_PATTERN.matcher(line);
+            Matcher bash = BASH_PATTERN.matcher(line.trim());
+            if(commit.find()) {
+                Assert.assertEquals(line, E2ELineClassifier.LineType.COMMIT, type);
+                Assert.assertEquals(line, commit.group(1), classifier.getCommit());
+            } else if(java.find() && fitsInt(java.group(1))) {
+                Assert.assertEquals(line, E2ELineClassifier.LineType.JAVA_TEST, type);
+                Assert.assertEquals(line, java.group(3), classifier.getTestName());
+                Assert.assertEquals(line, Integer.parseInt(java.group(1)), classifier.getSeconds());
+            } else if(bash.find()) {
+                Assert.assertEquals(line, E2ELineClassifier.LineType.BASH_TEST, type);
+                Assert.assertEquals(line, bash.group(1), classifier.getTestName());
+                Assert.assertEquals(line, Integer.parseInt(bash.group(2)) * 60 + Integer.parseInt(bash.group(3)), classifier.getSeconds());
+            } else {
+                Assert.assertEquals(line, E2ELineClassifier.LineType.OTHER, type);
+            }
+        }
+    }
+
+    @Test
+    public void testFields() {
+        E2ELineClassifier classifier = new E2ELineClassifier();
+        Assert.assertEquals(E2ELineClassifier.LineType.BASH_TEST, classifier.classify(LINES.get(12)));
+        Assert.assertEquals("Running HA dataset end-to-end test", classifier.getTestName());
+        Assert.assertEquals(192, classifier.getSeconds());
+
+        Assert.assertEquals(E2ELineClassifier.LineType.JAVA_TEST, classifier.classify(LINES.get(3)));
+        Assert.assertEquals("org.apache.flink.tests.util.kafka.SQLClientKafkaITCase", classifier.getTestName());
+        Assert.assertEquals(123, classifier.getSeconds());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testUnexpectedCheckout() {
+        new E2ELineClassifier().classify("git checkout --progress --force ABC");
+    }
+
+    private static boolean fitsInt(String digits) {
+        return Long.parseLong(digits) <= Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,69 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+public class E2EReportGeneratorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testShardedReport() throws Exception {
+        File database = temporaryFolder.newFile("e2e.sqlite");
+        Path reportDir = temporaryFolder.newFolder("www").toPath();
+        ParameterTool parameters = ParameterTool.fromArgs(new String[] {"--database", "jdbc:sqlite:" + database,
+                "--report.dir", reportDir.toString(), "--report.sharded", "true"});
+
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database)) {
+            TestResultsSchema.migrate(connection);
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO test_results (name, build_id, duration, run_date) VALUES "
+                        + "('Running HA (hashmap, async) end-to-end test', 1, 100, '2020-06-08'), "
+                        + "('Running HA (hashmap, async) end-to-end test', 2, 120, '2020-06-09'), "
+                        + "('Wordcount end-to-end test', 1, 30, '2020-06-08')");
+            }
+            new E2EReportGenerator(parameters).run();
+
+            Path haPage = reportDir.resolve("tests").resolve(E2EReportGenerator.TestReport.getPageName("Running HA (hashmap, async) end-to-end test"));
+            Path wordcountPage = reportDir.resolve("tests").resolve(E2EReportGenerator.TestReport.getPageName("Wordcount end-to-end test"));
+            String index = new String(Files.readAllBytes(reportDir.resolve("index.html")), StandardCharsets.UTF_8);
+            Assert.assertTrue(index.contains("href=\"tests/" + haPage.getFileName() + "\""));
+            String haReport = new String(Files.readAllBytes(haPage), StandardCharsets.UTF_8);
+            Assert.assertTrue(haReport.contains("Build #2 (120 seconds)"));
+            Assert.assertTrue(haReport.contains("Build #2 (Executed on 2020-06-09) (120s)"));
+
+            // only the page of the changed test is rendered again
+            FileTime old = FileTime.fromMillis(0);
+            Files.setLastModifiedTime(haPage, old);
+            Files.setLastModifiedTime(wordcountPage, old);
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO test_results (name, build_id, duration, run_date) VALUES "
+                        + "('Wordcount end-to-end test', 2, 35, '2020-06-09')");
+            }
+            new E2EReportGenerator(parameters).run();
+            Assert.assertEquals(old, Files.getLastModifiedTime(haPage));
+            Assert.assertNotEquals(old, Files.getLastModifiedTime(wordcountPage));
+
+            // pages of removed tests are deleted
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("DELETE FROM test_results WHERE name = 'Wordcount end-to-end test'");
+            }
+            new E2EReportGenerator(parameters).run();
+            Assert.assertFalse(Files.exists(wordcountPage));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package de.robertmetzger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class FileDownloaderTest {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final byte[] content = new byte[1024 * 1024];
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    // the number of responses which break off in the middle of the body
+    private final AtomicInteger failures = new AtomicInteger();
+    private boolean rangesSupported = true;
+    private final OkHttpClient client = new OkHttpClient();
+
+    @Before
+    public void setup() {
+        new Random(42).nextBytes(content);
+    }
+
+    @Test
+    public void testInterruptedDownloadIsResumed() throws Exception {
+        failures.set(2);
+        try(MockWebServer server = startServer();
+            FileDownloader downloader = new FileDownloader(client, 3, 1, 1, 1024)) {
+            File target = new File(temporaryFolder.getRoot(), "data/file.zip");
+            Assert.assertEquals(content.length, downloader.download(server.url("/file.zip").toString(), target, content.length));
+
+            Assert.assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+            Assert.assertFalse(new File(target.getPath() + FileDownloader.PART_SUFFIX).exists());
+            Assert.assertEquals(3, ranges.size());
+            Assert.assertNull(ranges.get(0));
+            // the retries continue where the previous response broke off
+            Assert.assertTrue(ranges.get(1), ranges.get(1).matches("bytes=[1-9]\\d*-"));
+            Assert.assertTrue(ranges.get(2), ranges.get(2).matches("bytes=[1-9]\\d*-"));
+        }
+    }
+
+    @Test
+    public void testRetriesAreTakenFromRetryBudget() throws Exception {
+        failures.set(3);
+        RateLimitInterceptor.RetryBudget budget = new RateLimitInterceptor.RetryBudget(0, 1);
+        try(MockWebServer server = startServer();
+            FileDownloader downloader = new FileDownloader(client, budget, 5, 1, 1, 1024)) {
+            try {
+                downloader.download(server.url("/file.zip").toString(), new File(temporaryFolder.getRoot(), "file.zip"), content.length);
+                Assert.fail("the retry budget should be used up");
+            } catch (IOException e) {
+                // expected
+            }
+            // the first request, and the only retry in the budget
+            Assert.assertEquals(2, ranges.size());
+            Assert.assertFalse(budget.withdraw());
+        }
+    }
+
+    @Test
+    public void testPartFileOfEarlierRunIsResumed() throws Exception {
+        File target = temporaryFolder.newFile("file.zip");
+        Assert.assertTrue(target.delete());
+        Files.write(new File(target.getPath() + FileDownloader.PART_SUFFIX).toPath(), Arrays.copyOf(content, 1000));
+        try(MockWebServer server = startServer();
+            FileDownloader downloader = new FileDownloader(client, 3, 1, 4, 1024 * 1024)) {
+            downloader.download(server.url("/file.zip").toString(), target, content.length);
+
+            Assert.assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+            Assert.assertEquals(Collections.singletonList("bytes=1000-"), ranges);
+        }
+    }
+
+    @Test
+    public void testChunkedDownload() throws Exception {
+        failures.set(1);
+        try(MockWebServer server = startServer();
+            FileDownloader downloader = new FileDownloader(client, 3, 1, 4, 100 * 1024)) {
+            File target = new File(temporaryFolder.getRoot(), "file.zip");
+            downloader.download(server.url("/file.zip").toString(), target, content.length);
+
+            Assert.assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+            // the size request, 4 chunks, and the retry of the chunk which broke off
+            Assert.assertEquals(6, ranges.size());
+            Assert.assertEquals("bytes=0-0", ranges.get(0));
+            for(String range: ranges) {
+                Assert.assertTrue(range, RANGE.matcher(range).matches());
+            }
+        }
+    }
+
+    @Test
+    public void testUnfinishedChunkedDownloadStartsOver() throws Exception {
+        File target = temporaryFolder.newFile("file.zip");
+        Assert.assertTrue(target.delete());
+        // the last chunk is done, but the second one is a hole: the part file has the full length
+        byte[] holes = content.clone();
+        Arrays.fill(holes, 300 * 1024, 400 * 1024, (byte) 0);
+        Files.write(new File(target.getPath() + FileDownloader.PART_SUFFIX).toPath(), holes);
+        Files.write(new File(target.getPath() + FileDownloader.CHUNKS_SUFFIX).toPath(), new byte[0]);
+        try(MockWebServer server = startServer();
+            FileDownloader downloader = new FileDownloader(client, 3, 1, 4, 100 * 1024)) {
+            downloader.download(server.url("/file.zip").toString(), target, content.length);
+
+            Assert.assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+            Assert.assertEquals(5, ranges.size());
+            Assert.assertFalse(new File(target.getPath() + FileDownloader.CHUNKS_SUFFIX).exists());
+        }
+    }
+
+    @Test
+    public void testChunkedDownloadWithoutRangeSupport() throws Exception {
+        rangesSupported = false;
+        try(MockWebServer server = startServer();
+            FileDownloader downloader = new FileDownloader(client, 3, 1, 4, 100 * 1024)) {
+            File target = new File(temporaryFolder.getRoot(), "file.zip");
+            downloader.download(server.url("/file.zip").toString(), target, content.length);
+
+            Assert.assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        }
+    }
+
+    @Test
+    public void testPartFileOfWrongSizeIsDiscarded() throws Exception {
+        File target = temporaryFolder.newFile("file.zip");
+        Assert.assertTrue(target.delete());
+        File part = new File(target.getPath() + FileDownloader.PART_SUFFIX);
+        Files.write(part.toPath(), Arrays.copyOf(content, content.length + 100));
+        try(MockWebServer server = startServer();
+            FileDownloader downloader = new FileDownloader(client, 3, 1, 1, 1024)) {
+            try {
+                downloader.download(server.url("/file.zip").toString(), target, content.length);
+                Assert.fail("size mismatch expected");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("server sent a size of " + content.length));
+            }
+            Assert.assertFalse(target.exists());
+            Assert.assertFalse(part.exists());
+
+            // the next run downloads the file again, instead of failing the same way
+            downloader.download(server.url("/file.zip").toString(), target, content.length);
+            Assert.assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+        }
+    }
+
+    @Test
+    public void testSizeHintIsNotVerified() throws Exception {
+        try(MockWebServer server = startServer();
+            FileDownloader downloader = new FileDownloader(client, 3, 1, 4, 100 * 1024)) {
+            File target = new File(temporaryFolder.getRoot(), "file.zip");
+            // like the "artifactsize" of Azure, which is the size of the content of the zip
+            Assert.assertEquals(content.length, downloader.download(server.url("/file.zip").toString(), target, 3 * content.length));
+
+            Assert.assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+            // the chunks are split by the size sent by the server
+            Assert.assertTrue(ranges.contains("bytes=786432-1048575"));
+        }
+    }
+
+    @Test
+    public void testClientErrorsAreNotRetried() throws Exception {
+        try(MockWebServer server = startServer();
+            FileDownloader downloader = new FileDownloader(client, 3, 1, 1, 1024)) {
+            try {
+                downloader.download(server.url("/missing.zip").toString(), new File(temporaryFolder.getRoot(), "file.zip"), -1);
+                Assert.fail("HTTP 404 expected");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("HTTP 404"));
+            }
+            Assert.assertEquals(1, server.getRequestCount());
+        }
+    }
+
+    private MockWebServer startServer() throws IOException {
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if(!request.getPath().equals("/file.zip")) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                String range = request.getHeader("Range");
+                ranges.add(range);
+                int from = 0;
+                int to = content.length;
+                MockResponse response = new MockResponse();
+                Matcher matcher = RANGE.matcher(String.valueOf(range));
+                if(rangesSupported && matcher.matches()) {
+                    from = Integer.parseInt(matcher.group(1));
+                    if(from >= content.length) {
+                        return new MockResponse().setResponseCode(416).setHeader("Content-Range", "bytes */" + content.length);
+                    }
+                    to = matcher.group(2).isEmpty() ? content.length : Integer.parseInt(matcher.group(2)) + 1;
+                    response.setResponseCode(206).setHeader("Content-Range", "bytes " + from + "-" + (to - 1) + "/" + content.length);
+                }
+                response.setBody(new Buffer().write(content, from, to - from));
+                // the size requests of chunked downloads do not break off
+                if(to - from > 1 && failures.getAndDecrement() > 0) {
+                    response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+                }
+                return response;
+            }
+        });
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,60 @@
+package de.robertmetzger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+public class IngestionJournalTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testProgressIsKeptAcrossRestarts() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "journal.tsv");
+        try(IngestionJournal journal = new IngestionJournal(file)) {
+            journal.record("a.zip", 0, "a.zip-mvn-1.log", 100);
+            journal.record("a.zip", 1, "a.zip-mvn-1.log", 200);
+            journal.record("a.zip", 2, "a.zip-mvn-2.log", IngestionJournal.COMPLETE);
+            journal.record("b.zip", 0, "b.zip-mvn-1.log", 5);
+            journal.archiveDone("b.zip");
+            Assert.assertEquals(200, journal.getResumeOffset("a.zip", "a.zip-mvn-1.log"));
+        }
+        // the last line of a crashed run may be incomplete
+        Files.write(file.toPath(), "a.zip\t3\ta.zip-mvn-1".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        try(IngestionJournal journal = new IngestionJournal(file)) {
+            Assert.assertEquals(200, journal.getResumeOffset("a.zip", "a.zip-mvn-1.log"));
+            Assert.assertEquals(IngestionJournal.COMPLETE, journal.getResumeOffset("a.zip", "a.zip-mvn-2.log"));
+            Assert.assertEquals(0, journal.getResumeOffset("a.zip", "a.zip-mvn-3.log"));
+            // forgotten once the archive was done
+            Assert.assertEquals(0, journal.getResumeOffset("b.zip", "b.zip-mvn-1.log"));
+        }
+
+        // compacted on open: only the latest progress of the archives which are not done
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(2, lines.size());
+        Assert.assertTrue(lines.contains("a.zip\t0\ta.zip-mvn-1.log\t200"));
+        Assert.assertTrue(lines.contains("a.zip\t0\ta.zip-mvn-2.log\tcomplete"));
+    }
+
+    @Test
+    public void testOffsetsOnlyIncrease() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "journal.tsv");
+        try(IngestionJournal journal = new IngestionJournal(file)) {
+            journal.record("a.zip", 1, "a.zip-mvn-1.log", 200);
+            journal.record("a.zip", 0, "a.zip-mvn-1.log", 100);
+            Assert.assertEquals(200, journal.getResumeOffset("a.zip", "a.zip-mvn-1.log"));
+        }
+        try(IngestionJournal journal = new IngestionJournal(file)) {
+            Assert.assertEquals(200, journal.getResumeOffset("a.zip", "a.zip-mvn-1.log"));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package de.robertmetzger;
+
+import org.apache.flink.api.java.utils.ParameterTool;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class LogFilesDownloaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testNewLogFilesAreDownloaded() throws Exception {
+        List<String> artifactRequests = Collections.synchronizedList(new ArrayList<>());
+        List<String> downloads = Collections.synchronizedList(new ArrayList<>());
+        try(MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    String path = request.getPath();
+                    if(path.startsWith("/org/project/_apis/build/builds?")) {
+                        if(path.contains("minTime=2020-06-03T10:00:00Z")) {
+                            // only the new build
+                            return new MockResponse().setBody("{\"count\": 1, \"value\": [" + build(4, "flink-ci.flink") + "]}");
+                        }
+                        // two pages, the second one also contains a build of another pipeline
+                        if(path.contains("continuationToken=&")) {
+                            return new MockResponse().setHeader("x-ms-continuationtoken", "page2")
+                                    .setBody("{\"count\": 2, \"value\": [" + build(3, "flink-ci.flink") + ", " + build(2, "flink-ci.flink-master-mirror") + "]}");
+                        }
+                        return new MockResponse().setBody("{\"count\": 2, \"value\": [" + build(1, "flink-ci.flink") + ", " + build(0, "other") + "]}");
+                    }
+                    if(path.matches("/org/project/_apis/build/builds/\\d/artifacts\\?api-version=5.1")) {
+                        String buildId = path.split("/")[6];
+                        artifactRequests.add(buildId);
+                        String url = server.url("/files/" + buildId).toString();
+                        return new MockResponse().setBody("{\"value\": [{\"name\": \"logs-ci\", \"resource\": {\"downloadUrl\": \"" + url + "\"}}, "
+                                + "{\"name\": \"other\", \"resource\": {\"downloadUrl\": \"" + url + "-other\"}}]}");
+                    }
+                    if(path.startsWith("/files/")) {
+                        downloads.add(path);
+                        return new MockResponse().setBody("content of " + path);
+                    }
+                    return new MockResponse().setResponseCode(404);
+                }
+            });
+
+            File dataDir = temporaryFolder.newFolder("data");
+            ParameterTool parameters = ParameterTool.fromArgs(new String[] {"--azure-url", server.url("/").toString(),
+                    "--azure-org", "org/project", "--data-dir", dataDir.toString(), "--concurrent-requests", "2",
+                    "--catalog", "jdbc:sqlite:" + temporaryFolder.newFile("catalog.sqlite"),
+                    "--metadata-cache", "jdbc:sqlite:" + temporaryFolder.newFile("metadata-cache.sqlite")});
+            try(LogFilesDownloader downloader = new LogFilesDownloader(parameters)) {
+                downloader.runGetLogFiles();
+            }
+
+            for(int buildId = 1; buildId <= 3; buildId++) {
+                File file = new File(dataDir, buildId + "-logs-ci");
+                Assert.assertEquals("content of /files/" + buildId, new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            }
+            Assert.assertEquals(3, dataDir.list().length);
+            Assert.assertEquals(3, artifactRequests.size());
+
+            // the indexer moves the files away. The next sync only lists the builds finished after the newest known build
+            for(File file: dataDir.listFiles()) {
+                Assert.assertTrue(file.delete());
+            }
+            artifactRequests.clear();
+            downloads.clear();
+            try(LogFilesDownloader downloader = new LogFilesDownloader(parameters)) {
+                downloader.runGetLogFiles();
+            }
+            Assert.assertEquals(Collections.singletonList("4"), artifactRequests);
+            Assert.assertEquals(Collections.singletonList("/files/4"), downloads);
+            Assert.assertArrayEquals(new String[] {"4-logs-ci"}, dataDir.list());
+        }
+    }
+
+    @Test
+    public void testReadE2ELogOutputLinks() throws Exception {
+        String timeline = "{\"records\": ["
+                // the log comes before the name
+                + "{\"log\": {\"id\": 1, \"url\": \"https://log/1\"}, \"previousAttempts\": [{\"a\": [1, {}]}], \"type\": \"Job\", \"name\": \"e2e_ci 1\"}, "
+                + "{\"name\": \"e2e_ci 2\", \"type\": \"Job\", \"log\": null}, "
+                + "{\"name\": \"e2e_ci 3\", \"type\": \"Task\", \"log\": {\"url\": \"https://log/3\"}}, "
+                + "{\"name\": \"compile_ci\", \"type\": \"Job\", \"log\": {\"url\": \"https://log/4\"}}, "
+                + "{\"name\": \"e2e_ci 5\", \"type\": \"Job\", \"log\": {\"url\": \"https://log/5\"}}"
+                + "], \"id\": \"abc\"}";
+        try(JsonUtils jsonUtils = new JsonUtils()) {
+            List<LogFilesDownloader.Download> links = jsonUtils.parse(timeline.getBytes(StandardCharsets.UTF_8),
+                    parser -> LogFilesDownloader.readE2ELogOutputLinks(parser, 42));
+            Assert.assertEquals(2, links.size());
+            Assert.assertEquals("output-42-e2e_ci 1", links.get(0).name);
+            Assert.assertEquals("https://log/1", links.get(0).url);
+            Assert.assertEquals("https://log/5", links.get(1).url);
+        }
+    }
+
+    private static String build(int id, String definition) {
+        return "{\"id\": " + id + ", \"finishTime\": \"2020-06-0" + id + "T10:00:00Z\", \"definition\": {\"name\": \"" + definition + "\"}}";
+    }
+}
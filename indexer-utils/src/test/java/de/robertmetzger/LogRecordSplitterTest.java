@@ -0,0 +1,45 @@
+package de.robertmetzger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class LogRecordSplitterTest {
+
+    @Test
+    public void testRecordsSpanningBufferRefills() throws IOException {
+        String input = "12:00:00,000 first line\n" +
+                "\tat some.Stack(Trace.java:1)\n" +
+                "12:00:01,000 second line with ümläuts and a long tail that does not fit into the buffer\n" +
+                "12:00:02,000 third line\n";
+
+        // a tiny buffer forces the splitter to compact and grow it
+        List<String> records = split(input, 4);
+        Assert.assertEquals(Arrays.asList(
+                "12:00:00,000 first line\n\tat some.Stack(Trace.java:1)",
+                "12:00:01,000 second line with ümläuts and a long tail that does not fit into the buffer",
+                "12:00:02,000 third line"), records);
+    }
+
+    @Test
+    public void testEmptyInput() throws IOException {
+        Assert.assertEquals(0, split("", 16).size());
+        Assert.assertEquals(0, split("\n", 16).size());
+    }
+
+    private static List<String> split(String input, int bufferSize) throws IOException {
+        LogRecordSplitter splitter = new LogRecordSplitter(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), bufferSize);
+        List<String> records = new ArrayList<>();
+        LogRecord record;
+        while((record = splitter.next()) != null) {
+            records.add(record.toString());
+        }
+        return records;
+    }
+}
@@ -0,0 +1,38 @@
+package de.robertmetzger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+public class LogTimestampParserTest {
+
+    @Test
+    public void testTimeOfDay() {
+        Assert.assertEquals(((12 * 60 + 52) * 60 + 27) * 1000L + 904, timeOfDay("12:52:27,904 [                main] INFO  foo"));
+        // not zero padded
+        Assert.assertEquals(((1 * 60 + 2) * 60 + 3) * 1000L + 4, timeOfDay("1:02:03,4 [main] INFO  foo"));
+        Assert.assertEquals(LogTimestampParser.NO_TIMESTAMP, timeOfDay("\tat org.junit.runners.ParentRunner.run(ParentRunner.java:363)"));
+        Assert.assertEquals(LogTimestampParser.NO_TIMESTAMP, timeOfDay("12:52:27 [main] missing millis"));
+        Assert.assertEquals(LogTimestampParser.NO_TIMESTAMP, timeOfDay("2020-06-29 12:52:27,904 [main]"));
+        Assert.assertEquals(LogTimestampParser.NO_TIMESTAMP, timeOfDay("12:52:27,904"));
+    }
+
+    @Test
+    public void testIso8601() {
+        Assert.assertEquals(Instant.parse("2020-06-08T02:50:48.504Z").toEpochMilli(),
+                LogTimestampParser.parseIso8601("2020-06-08T02:50:48.5046084Z ##[section]Starting: e2e_ci"));
+        Assert.assertEquals(Instant.parse("2020-02-29T23:59:59Z").toEpochMilli(),
+                LogTimestampParser.parseIso8601("2020-02-29T23:59:59Z"));
+        Assert.assertEquals(Instant.parse("1969-12-31T00:00:00.500Z").toEpochMilli(),
+                LogTimestampParser.parseIso8601("1969-12-31T00:00:00.5Z"));
+        Assert.assertEquals("2020-06-08", LogTimestampParser.parseIso8601Date("2020-06-08T02:50:48.5046084Z ##[section]"));
+        Assert.assertNull(LogTimestampParser.parseIso8601Date("##[section]Starting: e2e_ci"));
+    }
+
+    private static long timeOfDay(String record) {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        return LogTimestampParser.parseTimeOfDay(bytes, 0, bytes.length);
+    }
+}
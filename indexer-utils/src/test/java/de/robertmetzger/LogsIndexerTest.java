@@ -2,21 +2,35 @@ package de.robertmetzger;
 
 import org.apache.flink.api.java.utils.ParameterTool;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.hamcrest.MatcherAssert;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
 
 import static org.hamcrest.CoreMatchers.containsString;
 
 public class LogsIndexerTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void testParseExceptions() throws IOException {
         String sampleText = "12:52:27,904 [                main] INFO  org.apache.flink.streaming.runtime.tasks.StreamTask          [] - No state backend has been configured, using default (Memory / JobManager) MemoryStateBackend (data in heap memory / checkpoints to JobManager) (checkpoints: 'null', savepoints: 'null', asynchronous: TRUE, maxStateSize: 5242880)\n" +
@@ -125,15 +139,129 @@ public class LogsIndexerTest {
                 "--------------------------------------------------------------------------------", indexer.getEmittedLogs().get(0));
     }
 
+    @Test
+    public void testIndexStream() throws Exception {
+        TestLogsIndexer indexer = new TestLogsIndexer(ParameterTool.fromArgs(new String[] {"--metrics.port", "0",
+                "--journal", temporaryFolder.newFile("journal.tsv").toString(),
+                "--catalog", "jdbc:sqlite:" + temporaryFolder.newFile("catalog.sqlite")}));
+        indexer.start();
+        ByteArrayInputStream in = new ByteArrayInputStream(logArchive());
+        indexer.indexStream("1234-logs-ci-test", in);
+        indexer.finish();
+
+        Assert.assertEquals(2, indexer.getEmittedLogs().size());
+        MatcherAssert.assertThat(indexer.getEmittedLogs().get(1), containsString("second"));
+        // the whole stream has been read
+        Assert.assertEquals(0, in.available());
+    }
+
+    @Test
+    public void testIndexingResumesAtJournaledOffset() throws Exception {
+        File journalFile = temporaryFolder.newFile("journal.tsv");
+        try(IngestionJournal journal = new IngestionJournal(journalFile)) {
+            // the first line has been acknowledged before a crash
+            journal.record("1234-logs-ci-test", 0, "1234-logs-ci-test-mvn-1.log", FIRST_LINE.length());
+        }
+        TestLogsIndexer indexer = new TestLogsIndexer(ParameterTool.fromArgs(new String[] {"--metrics.port", "0",
+                "--journal", journalFile.toString(),
+                "--catalog", "jdbc:sqlite:" + temporaryFolder.newFile("catalog.sqlite")}));
+        indexer.start();
+        indexer.indexStream("1234-logs-ci-test", new ByteArrayInputStream(logArchive()));
+        indexer.finish();
+
+        Assert.assertEquals(1, indexer.getEmittedLogs().size());
+        MatcherAssert.assertThat(indexer.getEmittedLogs().get(0), containsString("second"));
+    }
+
+    @Test
+    public void testCorruptEntryDoesNotFailOtherEntries() throws Exception {
+        File dataDir = temporaryFolder.newFolder("data");
+        File doneDir = temporaryFolder.newFolder("done");
+        // a tgz with a large entry, which is skipped while the gzip reader thread is still inflating, followed by
+        // garbage instead of the next tar header. The entry fails while the reader thread reads from the zip file
+        Random random = new Random(42);
+        byte[] skipped = new byte[8 * 1024 * 1024];
+        random.nextBytes(skipped);
+        byte[] garbage = new byte[8 * 1024 * 1024];
+        random.nextBytes(garbage);
+        ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+        try(GzipCompressorOutputStream gzip = new GzipCompressorOutputStream(corrupt)) {
+            TarArchiveOutputStream tar = new TarArchiveOutputStream(gzip);
+            TarArchiveEntry entry = new TarArchiveEntry("skipped.bin");
+            entry.setSize(skipped.length);
+            tar.putArchiveEntry(entry);
+            tar.write(skipped);
+            tar.closeArchiveEntry();
+            tar.flush();
+            gzip.write(garbage);
+        }
+        File archive = new File(dataDir, "1234-logs-ci-test");
+        try(ZipArchiveOutputStream out = new ZipArchiveOutputStream(archive)) {
+            out.putArchiveEntry(new ZipArchiveEntry("logs-ci-test/20200629.3.tgz"));
+            out.write(corrupt.toByteArray());
+            out.closeArchiveEntry();
+            out.putArchiveEntry(new ZipArchiveEntry("logs-ci-test/20200629.4.tgz"));
+            out.write(tgz(LOG));
+            out.closeArchiveEntry();
+        }
+
+        // a single worker reads the entries one after another
+        TestLogsIndexer indexer = new TestLogsIndexer(ParameterTool.fromArgs(new String[] {"--metrics.port", "0",
+                "--concurrent-processing", "1", "--gzip.read-ahead", "1",
+                "--done-data-dir", doneDir + "/",
+                "--journal", temporaryFolder.newFile("journal.tsv").toString(),
+                "--catalog", "jdbc:sqlite:" + temporaryFolder.newFile("catalog.sqlite")}));
+        indexer.start();
+        indexer.indexArchive(archive);
+        indexer.finish();
+
+        Assert.assertEquals(2, indexer.getEmittedLogs().size());
+        MatcherAssert.assertThat(indexer.getEmittedLogs().get(1), containsString("second"));
+        // the archive is indexed again in the next run, because of the corrupt entry
+        Assert.assertTrue(archive.exists());
+    }
+
+    private static final String FIRST_LINE = "11:55:10,446 [main] INFO  org.apache.flink.tests.util.TestUtilsTest [] - first\n";
+    private static final String LOG = FIRST_LINE + "11:55:10,462 [main] INFO  org.apache.flink.tests.util.TestUtilsTest [] - second\n";
+
+    /**
+     * A zip with a tgz with a log file, like the log artifacts.
+     */
+    private static byte[] logArchive() throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try(ZipArchiveOutputStream out = new ZipArchiveOutputStream(zip)) {
+            out.putArchiveEntry(new ZipArchiveEntry("logs-ci-test/20200629.4.tgz"));
+            out.write(tgz(LOG));
+            out.closeArchiveEntry();
+        }
+        return zip.toByteArray();
+    }
+
+    private static byte[] tgz(String log) throws IOException {
+        ByteArrayOutputStream tgz = new ByteArrayOutputStream();
+        try(TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(tgz))) {
+            TarArchiveEntry entry = new TarArchiveEntry("mvn-1.log");
+            entry.setSize(log.length());
+            tar.putArchiveEntry(entry);
+            tar.write(log.getBytes(StandardCharsets.UTF_8));
+            tar.closeArchiveEntry();
+        }
+        return tgz.toByteArray();
+    }
+
     private static class TestLogsIndexer extends LogsIndexer {
         public List<String> emittedLogs = new ArrayList<>();
         public TestLogsIndexer() {
-            super(ParameterTool.fromMap(new HashMap<>()));
+            this(ParameterTool.fromMap(new HashMap<>()));
+        }
+
+        public TestLogsIndexer(ParameterTool parameters) {
+            super(parameters);
         }
 
         @Override
-        protected void emitLogToElastic(String line, String buildname, long timestamp) throws IOException {
-            emittedLogs.add(line);
+        protected void emitLogToElastic(LogRecord line, String buildname, long timestamp, ArchiveProgress archive) throws IOException {
+            emittedLogs.add(line.toString());
         }
 
         public List<String> getEmittedLogs() {
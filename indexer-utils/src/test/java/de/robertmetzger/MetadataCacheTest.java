@@ -0,0 +1,101 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.MetricRegistry;
+import okhttp3.Headers;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+
+public class MetadataCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final JsonUtils.StreamingReader<String> READ_NAME = parser -> {
+        String[] name = new String[1];
+        JsonUtils.readObject(parser, (field, p) -> {
+            if(field.equals("name")) {
+                name[0] = p.getValueAsString();
+            }
+        });
+        return name[0];
+    };
+
+    @Test
+    public void testBuildResponsesAreFetchedOnce() throws Exception {
+        try(MockWebServer server = new MockWebServer();
+            JsonUtils jsonUtils = new JsonUtils();
+            MetadataCache cache = newCache(1024 * 1024)) {
+            server.enqueue(new MockResponse().setBody("{\"name\": \"timeline\"}"));
+            jsonUtils.setMetadataCache(cache);
+            String url = server.url("/builds/42/Timeline").toString();
+
+            Assert.assertEquals("timeline", jsonUtils.streamBuildJsonAsync(url, 42, "timeline", READ_NAME).get().result);
+            Assert.assertEquals("timeline", jsonUtils.streamBuildJsonAsync(url, 42, "timeline", READ_NAME).get().result);
+
+            Assert.assertEquals(1, server.getRequestCount());
+            Assert.assertEquals(1, cache.getHits());
+            Assert.assertEquals(1, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void testListingsAreRevalidated() throws Exception {
+        try(MockWebServer server = new MockWebServer();
+            JsonUtils jsonUtils = new JsonUtils();
+            MetadataCache cache = newCache(1024 * 1024)) {
+            server.enqueue(new MockResponse().setHeader("ETag", "\"v1\"").setHeader("x-ms-continuationtoken", "page2")
+                    .setBody("{\"name\": \"builds\"}"));
+            server.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"v1\""));
+            server.enqueue(new MockResponse().setHeader("ETag", "\"v2\"").setBody("{\"name\": \"new builds\"}"));
+            jsonUtils.setMetadataCache(cache);
+            String url = server.url("/builds?minTime=1").toString();
+
+            Assert.assertEquals("builds", jsonUtils.streamJsonFromUrl(url, READ_NAME).result);
+            Assert.assertNull(server.takeRequest().getHeader("If-None-Match"));
+
+            JsonUtils.JsonResult<String> notModified = jsonUtils.streamJsonFromUrl(url, READ_NAME);
+            Assert.assertEquals("builds", notModified.result);
+            // the headers of the stored response
+            Assert.assertEquals("page2", notModified.responseHeaders.get("x-ms-continuationtoken"));
+            Assert.assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+
+            Assert.assertEquals("new builds", jsonUtils.streamJsonFromUrlAsync(url, READ_NAME).get().result);
+            Assert.assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+            Assert.assertEquals(1, cache.getHits());
+            Assert.assertEquals(2, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedResponsesAreEvicted() throws Exception {
+        // random bytes do not get smaller when they are stored
+        byte[] body = new byte[1000];
+        new Random(42).nextBytes(body);
+        try(MetadataCache cache = newCache(2500)) {
+            for(int buildId = 1; buildId <= 3; buildId++) {
+                cache.put(MetadataCache.buildKey(buildId, "artifacts"), buildId, null, Headers.of(), body);
+                if(buildId == 2) {
+                    cache.get(MetadataCache.buildKey(1, "artifacts"));
+                }
+            }
+            Assert.assertTrue(cache.getBytes() <= 2500);
+            Assert.assertNotNull(cache.get(MetadataCache.buildKey(1, "artifacts")));
+            Assert.assertNull(cache.get(MetadataCache.buildKey(2, "artifacts")));
+            Assert.assertArrayEquals(body, cache.get(MetadataCache.buildKey(3, "artifacts")).body);
+        }
+        // the size of the stored responses is known after a restart
+        try(MetadataCache cache = newCache(2500)) {
+            Assert.assertTrue(cache.getBytes() > 2000);
+        }
+    }
+
+    private MetadataCache newCache(long maxBytes) throws Exception {
+        return new MetadataCache("jdbc:sqlite:" + temporaryFolder.getRoot() + "/metadata-cache.sqlite", maxBytes, new MetricRegistry());
+    }
+}
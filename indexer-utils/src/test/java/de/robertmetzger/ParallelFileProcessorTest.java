@@ -0,0 +1,71 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ParallelFileProcessorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testLargestFirst() throws Exception {
+        List<File> files = new ArrayList<>();
+        for(int i = 0; i < 5; i++) {
+            files.add(newFile("file-" + i, i * 100));
+        }
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        MetricRegistry metrics = new MetricRegistry();
+        ParallelFileProcessor.Summary summary = new ParallelFileProcessor("test", 1, metrics)
+                .process(files, file -> order.add(file.getName()));
+
+        Assert.assertEquals(List.of("file-4", "file-3", "file-2", "file-1", "file-0"), order);
+        Assert.assertTrue(summary.isSuccessful());
+        Assert.assertEquals(5, metrics.meter("test.files").getCount());
+        Assert.assertEquals(1000, metrics.meter("test.bytes").getCount());
+    }
+
+    @Test
+    public void testFailuresAreSummarized() throws Exception {
+        List<File> files = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            files.add(newFile("file-" + i, i));
+        }
+        MetricRegistry metrics = new MetricRegistry();
+        ParallelFileProcessor.Summary summary = new ParallelFileProcessor("test", 4, metrics).process(files, file -> {
+            if(file.getName().equals("file-7")) {
+                throw new IOException("broken");
+            }
+        });
+
+        Assert.assertFalse(summary.isSuccessful());
+        Assert.assertEquals(19, summary.getSucceeded().size());
+        Assert.assertEquals(1, summary.getFailed().size());
+        Assert.assertEquals("broken", summary.getFailed().get(files.get(7)).getMessage());
+        Assert.assertEquals(1, metrics.meter("test.failed-files").getCount());
+        Assert.assertEquals(20, metrics.timer("test.file-duration").getCount());
+    }
+
+    @Test
+    public void testNoFiles() throws Exception {
+        ParallelFileProcessor.Summary summary = new ParallelFileProcessor("test", 4, new MetricRegistry())
+                .process(Collections.emptyList(), file -> Assert.fail());
+        Assert.assertTrue(summary.isSuccessful());
+    }
+
+    private File newFile(String name, int length) throws IOException {
+        File file = temporaryFolder.newFile(name);
+        Files.write(file.toPath(), new byte[length]);
+        return file;
+    }
+}
@@ -0,0 +1,149 @@
+package de.robertmetzger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+public class ParallelGzipInputStreamTest {
+    private final ExecutorService inflaters = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdown() {
+        inflaters.shutdownNow();
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        byte[] data = testData(1_000_000);
+        try(InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(gzip(data)), inflaters, 4096, 2)) {
+            Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testOnlyFirstGzipMemberIsRead() throws IOException {
+        byte[] first = testData(10_000);
+        ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+        concatenated.write(gzip(first));
+        concatenated.write(gzip(testData(100)));
+        try(InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(concatenated.toByteArray()), inflaters, 4096, 2)) {
+            Assert.assertArrayEquals(first, IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testBgzf() throws IOException {
+        byte[] data = testData(1_000_000);
+        try(InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(bgzf(data)), inflaters, 4096, 8)) {
+            Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testBgzfWithoutExecutorIsInflatedSequentially() throws IOException {
+        byte[] data = testData(200_000);
+        try(InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(bgzf(data)), null, 4096, 2)) {
+            // like GzipCompressorInputStream, only the first member is read
+            Assert.assertArrayEquals(Arrays.copyOf(data, 65280), IOUtils.toByteArray(in));
+        }
+    }
+
+    @Test
+    public void testCorruptBgzfBlock() throws IOException {
+        byte[] compressed = bgzf(testData(200_000));
+        compressed[100] ^= 0x55;
+        try(InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(compressed), inflaters, 4096, 8)) {
+            IOUtils.toByteArray(in);
+            Assert.fail("Expected an exception");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseBeforeEndOfStream() throws IOException {
+        byte[] data = testData(1_000_000);
+        ByteArrayInputStream compressed = new ByteArrayInputStream(gzip(data));
+        InputStream in = new ParallelGzipInputStream(compressed, inflaters, 1024, 1);
+        byte[] start = new byte[10];
+        IOUtils.readFully(in, start);
+        in.close();
+        Assert.assertArrayEquals(Arrays.copyOf(data, 10), start);
+
+        // the reader thread has stopped, the underlying stream is left untouched afterwards
+        int remaining = compressed.available();
+        Assert.assertTrue(remaining > 0);
+        Assert.assertEquals(remaining, compressed.available());
+    }
+
+    private static byte[] testData(int size) {
+        Random random = new Random(42);
+        byte[] data = new byte[size];
+        for(int i = 0; i < size; i++) {
+            // compressible, but not trivially
+            data[i] = (byte) ('a' + random.nextInt(8));
+        }
+        return data;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses the data like bgzip: independent gzip members of at most 65280 bytes, with the compressed
+     * size in the "BC" extra field, followed by an empty end-of-file member.
+     */
+    private static byte[] bgzf(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int offset = 0; offset < data.length; offset += 65280) {
+            writeBgzfBlock(out, data, offset, Math.min(65280, data.length - offset));
+        }
+        writeBgzfBlock(out, data, 0, 0);
+        return out.toByteArray();
+    }
+
+    private static void writeBgzfBlock(ByteArrayOutputStream out, byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        byte[] deflated = new byte[length + 1024];
+        int deflatedLength = deflater.deflate(deflated);
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+
+        out.write(new byte[] {0x1F, (byte) 0x8B, 8, 4, 0, 0, 0, 0, 0, (byte) 0xFF, 6, 0, 'B', 'C', 2, 0}, 0, 16);
+        writeShort(out, 18 + deflatedLength + 8 - 1);
+        out.write(deflated, 0, deflatedLength);
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, length);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value & 0xFFFF);
+        writeShort(out, (value >>> 16) & 0xFFFF);
+    }
+}
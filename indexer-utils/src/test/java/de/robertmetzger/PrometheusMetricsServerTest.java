@@ -0,0 +1,60 @@
+package de.robertmetzger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class PrometheusMetricsServerTest {
+
+    @Test
+    public void testMetricsEndpoint() throws IOException {
+        MetricRegistry metrics = new MetricRegistry();
+        metrics.meter("logs-indexed").mark(42);
+        Timer latency = metrics.timer("bulk.latency", SummingTimer::new);
+        latency.update(250, TimeUnit.MILLISECONDS);
+        try(Timer.Context ignored = latency.time()) {
+            // the durations of contexts are summed as well
+        }
+        metrics.histogram("bulk.bytes", SummingHistogram::new).update(1024);
+        metrics.histogram("bulk.actions").update(10);
+        metrics.register("bulk.in-flight", (Gauge<Integer>) () -> 3);
+        metrics.register("not-a-number", (Gauge<String>) () -> "ignored");
+
+        try(PrometheusMetricsServer server = new PrometheusMetricsServer(metrics, new InetSocketAddress("localhost", 0))) {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            String body;
+            try(InputStream in = connection.getInputStream()) {
+                body = IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+
+            Assert.assertTrue(body, body.contains("# TYPE logs_indexer_logs_indexed_total counter\nlogs_indexer_logs_indexed_total 42.0\n"));
+            Assert.assertTrue(body, body.contains("# TYPE logs_indexer_bulk_latency_seconds summary\n"));
+            Assert.assertTrue(body, body.contains("logs_indexer_bulk_latency_seconds{quantile=\"0.5\"} 0.25\n"));
+            Matcher latencySum = Pattern.compile("logs_indexer_bulk_latency_seconds_sum (.*)\n").matcher(body);
+            Assert.assertTrue(body, latencySum.find());
+            Assert.assertTrue(body, Double.parseDouble(latencySum.group(1)) >= 0.25 && Double.parseDouble(latencySum.group(1)) < 1);
+            Assert.assertTrue(body, body.contains("logs_indexer_bulk_latency_seconds_count 2.0\n"));
+            Assert.assertTrue(body, body.contains("logs_indexer_bulk_bytes{quantile=\"0.99\"} 1024.0\n"));
+            Assert.assertTrue(body, body.contains("logs_indexer_bulk_bytes_sum 1024.0\n"));
+            // a plain histogram has no sum
+            Assert.assertTrue(body, body.contains("logs_indexer_bulk_actions_count 1.0\n"));
+            Assert.assertFalse(body, body.contains("logs_indexer_bulk_actions_sum"));
+            Assert.assertTrue(body, body.contains("# TYPE logs_indexer_bulk_in_flight gauge\nlogs_indexer_bulk_in_flight 3.0\n"));
+            Assert.assertFalse(body, body.contains("not_a_number"));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package de.robertmetzger;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class RateLimitInterceptorTest {
+
+    private static final JsonUtils.StreamingReader<Integer> READ_COUNT = parser -> {
+        int[] count = new int[1];
+        JsonUtils.readObject(parser, (field, p) -> {
+            if(field.equals("count")) {
+                count[0] = p.getValueAsInt();
+            }
+        });
+        return count[0];
+    };
+
+    @Test
+    public void testThrottledRequestIsRetriedAfterRetryAfter() throws Exception {
+        try(MockWebServer server = new MockWebServer();
+            JsonUtils jsonUtils = new JsonUtils(2, 2, new RateLimitInterceptor(100, 10, 3, 1, 0.1, 10))) {
+            server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+            server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST));
+            server.enqueue(new MockResponse().setBody("{\"count\": 3}"));
+
+            long start = System.nanoTime();
+            Assert.assertEquals(3, (int) jsonUtils.streamJsonFromUrl(server.url("/builds").toString(), READ_COUNT).result);
+            Assert.assertTrue(System.nanoTime() - start >= 900_000_000L);
+            Assert.assertEquals(3, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testRateLimitHeadersPauseRequests() throws Exception {
+        try(MockWebServer server = new MockWebServer();
+            JsonUtils jsonUtils = new JsonUtils(2, 2, new RateLimitInterceptor(100, 10, 3, 1, 0.1, 10))) {
+            long reset = System.currentTimeMillis() / 1000 + 2;
+            server.enqueue(new MockResponse().setHeader("X-RateLimit-Remaining", "0").setHeader("X-RateLimit-Reset", reset)
+                    .setBody("{\"count\": 1}"));
+            server.enqueue(new MockResponse().setBody("{\"count\": 2}"));
+
+            Assert.assertEquals(1, (int) jsonUtils.streamJsonFromUrl(server.url("/builds").toString(), READ_COUNT).result);
+            Assert.assertEquals(2, (int) jsonUtils.streamJsonFromUrlAsync(server.url("/builds").toString(), READ_COUNT).get().result);
+            Assert.assertTrue(System.currentTimeMillis() >= (reset - 1) * 1000);
+        }
+    }
+
+    @Test
+    public void testRequestRateIsLimited() throws Exception {
+        try(MockWebServer server = new MockWebServer();
+            JsonUtils jsonUtils = new JsonUtils(2, 2, new RateLimitInterceptor(10, 1, 3, 1, 0.1, 10))) {
+            for(int i = 0; i < 6; i++) {
+                server.enqueue(new MockResponse().setBody("{\"count\": " + i + "}"));
+            }
+            long start = System.nanoTime();
+            for(int i = 0; i < 6; i++) {
+                jsonUtils.streamJsonFromUrl(server.url("/builds").toString(), READ_COUNT);
+            }
+            // the first request takes the token of the bucket, the others wait 100 ms each
+            Assert.assertTrue(System.nanoTime() - start >= 450_000_000L);
+        }
+    }
+
+    @Test
+    public void testFailureIsReportedWhenRetryBudgetIsUsedUp() throws Exception {
+        try(MockWebServer server = new MockWebServer();
+            JsonUtils jsonUtils = new JsonUtils(2, 2, new RateLimitInterceptor(100, 10, 5, 1, 0, 2))) {
+            for(int i = 0; i < 10; i++) {
+                server.enqueue(new MockResponse().setResponseCode(503));
+            }
+            for(int call = 0; call < 2; call++) {
+                try {
+                    jsonUtils.streamJsonFromUrl(server.url("/builds").toString(), READ_COUNT);
+                    Assert.fail("HTTP 503 expected");
+                } catch (IOException e) {
+                    Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("HTTP 503"));
+                }
+            }
+            // the first call used up the 2 retries, the second one is not retried
+            Assert.assertEquals(4, server.getRequestCount());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package de.robertmetzger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestResultWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite:" + temporaryFolder.newFile("e2e.sqlite"))) {
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE test_results (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+                        + "build_id INTEGER, duration INTEGER NOT NULL, \"commit\" TEXT, run_date TEXT, added_at DATE)");
+            }
+            TestResultWriter writer = new TestResultWriter(connection, 100, 50);
+            List<Thread> workers = new ArrayList<>();
+            List<Throwable> errors = new ArrayList<>();
+            for(int w = 0; w < 4; w++) {
+                int buildId = w;
+                Thread worker = new Thread(() -> {
+                    try {
+                        for(int i = 0; i < 1000; i++) {
+                            writer.add(new TestResultWriter.TestResult("test-" + i, i, buildId, "abc", "2020-06-08"));
+                        }
+                    } catch (IOException e) {
+                        synchronized(errors) {
+                            errors.add(e);
+                        }
+                    }
+                });
+                worker.start();
+                workers.add(worker);
+            }
+            for(Thread worker: workers) {
+                worker.join();
+            }
+            writer.close();
+
+            Assert.assertTrue(errors.toString(), errors.isEmpty());
+            Assert.assertTrue(connection.getAutoCommit());
+            try(Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT COUNT(*), SUM(duration), COUNT(DISTINCT build_id) FROM test_results")) {
+                Assert.assertTrue(result.next());
+                Assert.assertEquals(4000, result.getInt(1));
+                Assert.assertEquals(4 * 999 * 1000 / 2, result.getInt(2));
+                Assert.assertEquals(4, result.getInt(3));
+            }
+            try(Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("PRAGMA journal_mode")) {
+                Assert.assertTrue(result.next());
+                Assert.assertEquals("wal", result.getString(1));
+            }
+        }
+    }
+
+    @Test
+    public void testDuplicatesAreIgnored() throws Exception {
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE test_results (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+                        + "build_id INTEGER, duration INTEGER NOT NULL, \"commit\" TEXT, run_date TEXT, added_at DATE)");
+                statement.execute("CREATE UNIQUE INDEX test_results_build_id_name ON test_results (build_id, name)");
+                statement.execute("CREATE TABLE processed_files (file_name TEXT PRIMARY KEY, "
+                        + "build_id INTEGER NOT NULL, size INTEGER NOT NULL, results INTEGER NOT NULL, analyzed_at DATE)");
+            }
+            TestResultWriter writer = new TestResultWriter(connection, 10, 10);
+            for(int run = 0; run < 2; run++) {
+                for(int i = 0; i < 25; i++) {
+                    writer.add(new TestResultWriter.TestResult("test-" + i, run * 100 + i, 1, "abc", "2020-06-08"));
+                }
+                writer.fileAnalyzed(new TestResultWriter.ProcessedFile("e2e-dataoutput-1-e2e_ci", 1, 1000 + run, 25));
+            }
+            writer.close();
+
+            try(Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT COUNT(*), SUM(duration) FROM test_results")) {
+                Assert.assertTrue(result.next());
+                Assert.assertEquals(25, result.getInt(1));
+                // the first results are kept
+                Assert.assertEquals(24 * 25 / 2, result.getInt(2));
+            }
+            try(Statement statement = connection.createStatement();
+                ResultSet result = statement.executeQuery("SELECT file_name, size, results FROM processed_files")) {
+                Assert.assertTrue(result.next());
+                Assert.assertEquals("e2e-dataoutput-1-e2e_ci", result.getString(1));
+                Assert.assertEquals(1001, result.getLong(2));
+                Assert.assertEquals(25, result.getInt(3));
+                Assert.assertFalse(result.next());
+            }
+        }
+    }
+
+    @Test
+    public void testFailureIsReported() throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            // there is no test_results table
+            TestResultWriter writer = new TestResultWriter(connection, 10, 10);
+            try {
+                for(int i = 0; i < 1000; i++) {
+                    writer.add(new TestResultWriter.TestResult("test", i, 1, "abc", "2020-06-08"));
+                }
+                writer.close();
+                Assert.fail("Expected an exception");
+            } catch (IOException e) {
+                Assert.assertTrue(e.getCause() instanceof SQLException);
+            }
+        }
+    }
+}
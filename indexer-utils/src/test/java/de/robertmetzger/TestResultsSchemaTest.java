@@ -0,0 +1,112 @@
+package de.robertmetzger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class TestResultsSchemaTest {
+
+    @Test
+    public void testMigrateEmptyDatabase() throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            Assert.assertEquals(0, TestResultsSchema.migrate(connection));
+            Assert.assertEquals(TestResultsSchema.getLatestVersion(), TestResultsSchema.getVersion(connection));
+            // nothing to do the second time
+            Assert.assertEquals(TestResultsSchema.getLatestVersion(), TestResultsSchema.migrate(connection));
+            Assert.assertTrue(connection.getAutoCommit());
+        }
+    }
+
+    @Test
+    public void testMigrateExistingDatabase() throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+            Statement statement = connection.createStatement()) {
+            // a database from before the migrations, with duplicates
+            statement.execute("CREATE TABLE test_results (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+                    + "build_id INTEGER, duration INTEGER NOT NULL, \"commit\" TEXT, run_date TEXT, added_at DATE)");
+            for(int run = 0; run < 2; run++) {
+                statement.execute("INSERT INTO test_results (name, build_id, duration) VALUES ('a', 1, 10), ('a', 2, 30), ('b', 1, 5)");
+            }
+
+            TestResultsSchema.migrate(connection);
+
+            assertSummary(statement, "a", 2, 40, 10, 30);
+            assertSummary(statement, "b", 1, 5, 5, 5);
+            try(ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM test_results")) {
+                Assert.assertEquals(3, result.getInt(1));
+            }
+        }
+    }
+
+    @Test
+    public void testDatabaseCreatedFromScriptIsUpToDate() throws Exception {
+        String script;
+        try(InputStream in = TestResultsSchema.class.getResourceAsStream("/test_results.sql")) {
+            script = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+            Statement statement = connection.createStatement()) {
+            statement.executeUpdate(script);
+
+            Assert.assertEquals(TestResultsSchema.getLatestVersion(), TestResultsSchema.migrate(connection));
+            statement.execute("INSERT INTO test_results (name, build_id, duration) VALUES ('a', 1, 10), ('a', 2, 30)");
+            assertSummary(statement, "a", 2, 40, 10, 30);
+            Assert.assertEquals(1, getChanges(statement, "a"));
+        }
+    }
+
+    @Test
+    public void testSummaryIsMaintained() throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+            Statement statement = connection.createStatement()) {
+            TestResultsSchema.migrate(connection);
+
+            statement.execute("INSERT INTO test_results (name, build_id, duration) VALUES ('a', 1, 10), ('a', 2, 30), ('a', 3, 20), ('b', 1, 5)");
+            // ignored duplicate
+            statement.execute("INSERT OR IGNORE INTO test_results (name, build_id, duration) VALUES ('a', 1, 100)");
+            assertSummary(statement, "a", 3, 60, 10, 30);
+
+            statement.execute("DELETE FROM test_results WHERE name = 'a' AND build_id = 2");
+            assertSummary(statement, "a", 2, 30, 10, 20);
+
+            statement.execute("UPDATE test_results SET duration = 50 WHERE name = 'a' AND build_id = 1");
+            assertSummary(statement, "a", 2, 70, 20, 50);
+
+            long changes = getChanges(statement, "a");
+            statement.execute("UPDATE test_results SET run_date = '2020-06-09' WHERE name = 'a' AND build_id = 1");
+            assertSummary(statement, "a", 2, 70, 20, 50);
+            Assert.assertTrue(getChanges(statement, "a") > changes);
+
+            statement.execute("UPDATE test_results SET name = 'c' WHERE name = 'b'");
+            assertSummary(statement, "c", 1, 5, 5, 5);
+            try(ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM test_summary WHERE name = 'b'")) {
+                Assert.assertEquals(0, result.getInt(1));
+            }
+        }
+    }
+
+    private static long getChanges(Statement statement, String name) throws SQLException {
+        try(ResultSet result = statement.executeQuery("SELECT changes FROM test_summary WHERE name = '" + name + "'")) {
+            Assert.assertTrue(result.next());
+            return result.getLong(1);
+        }
+    }
+
+    private static void assertSummary(Statement statement, String name, int runs, int total, int min, int max) throws SQLException {
+        try(ResultSet result = statement.executeQuery("SELECT runs, total_duration, min_duration, max_duration FROM test_summary WHERE name = '" + name + "'")) {
+            Assert.assertTrue(result.next());
+            Assert.assertEquals(runs, result.getInt(1));
+            Assert.assertEquals(total, result.getInt(2));
+            Assert.assertEquals(min, result.getInt(3));
+            Assert.assertEquals(max, result.getInt(4));
+        }
+    }
+}
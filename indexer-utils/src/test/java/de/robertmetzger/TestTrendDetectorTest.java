@@ -0,0 +1,82 @@
+package de.robertmetzger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+
+public class TestTrendDetectorTest {
+
+    @Test
+    public void testRegressionIsFlagged() throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            TestResultsSchema.migrate(connection);
+            TestTrendDetector detector = new TestTrendDetector(connection, 10, 20, 0.2);
+            Random random = new Random(42);
+            // 60 stable runs of both tests
+            for(int build = 1; build <= 60; build++) {
+                insert(connection, "stable", build, 100 + random.nextInt(10));
+                insert(connection, "slower", build, 100 + random.nextInt(10));
+            }
+            Assert.assertEquals(2, detector.update());
+            Assert.assertTrue(detector.getRegressions().isEmpty());
+
+            // "slower" takes 50% longer from build 61 on
+            for(int build = 61; build <= 70; build++) {
+                insert(connection, "stable", build, 100 + random.nextInt(10));
+                insert(connection, "slower", build, 150 + random.nextInt(10));
+            }
+            Assert.assertEquals(2, detector.update());
+            List<TestTrendDetector.TestTrend> regressions = detector.getRegressions();
+            Assert.assertEquals(1, regressions.size());
+            TestTrendDetector.TestTrend slower = regressions.get(0);
+            Assert.assertEquals("slower", slower.getName());
+            // the CUSUM may start a few runs early, on a run which was slower by chance
+            Assert.assertTrue(String.valueOf(slower.getChangeBuild()), slower.getChangeBuild() >= 58 && slower.getChangeBuild() <= 61);
+            Assert.assertEquals(70, slower.getRuns());
+            Assert.assertTrue(slower.getRecentP50() >= 150);
+            Assert.assertTrue(slower.getBaselineP50() < 110);
+
+            // nothing new
+            Assert.assertEquals(0, detector.update());
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdateMatchesRebuild() throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            TestResultsSchema.migrate(connection);
+            TestTrendDetector detector = new TestTrendDetector(connection, 10, 20, 0.2);
+            Random random = new Random(7);
+            for(int build = 1; build <= 100; build++) {
+                insert(connection, "test", build, build <= 80 ? 60 + random.nextInt(5) : 90 + random.nextInt(5));
+                if(build % 25 == 0) {
+                    detector.update();
+                }
+            }
+            TestTrendDetector.TestTrend incremental = detector.getRegressions().get(0);
+
+            detector.rebuild();
+            TestTrendDetector.TestTrend rebuilt = detector.getRegressions().get(0);
+            Assert.assertEquals(rebuilt.getRuns(), incremental.getRuns());
+            Assert.assertEquals(rebuilt.getChangeBuild(), incremental.getChangeBuild());
+            Assert.assertEquals(rebuilt.getBaselineP50(), incremental.getBaselineP50(), 0.5);
+            Assert.assertEquals(rebuilt.getRecentP95(), incremental.getRecentP95(), 0.0);
+        }
+    }
+
+    private static void insert(Connection connection, String name, int build, int duration) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("INSERT INTO test_results (name, build_id, duration, run_date) VALUES (?, ?, ?, ?)")) {
+            statement.setString(1, name);
+            statement.setInt(2, build);
+            statement.setInt(3, duration);
+            statement.setString(4, String.format("2020-%02d-%02d", 1 + build / 28, 1 + build % 28));
+            statement.execute();
+        }
+    }
+}